@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.MatrixCursor;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Tests that the list adapter binds rows correctly and without allocating once warmed up.
+ */
+public class MyCursorAdapterTest extends AndroidTestCase {
+
+    private static final int ROWS = 40;
+
+    private static final Long[] CATEGORIES = {
+            NotePad.Categories.ID_STUDY, NotePad.Categories.ID_LIFE, NotePad.Categories.ID_TASK, 4L, null
+    };
+
+    private MatrixCursor mCursor;
+    private MyCursorAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // List pages are in-memory copies like this one (see PagedNotesCursor).
+        mCursor = new MatrixCursor(NotesList.PROJECTION);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            mCursor.addRow(new Object[] {
+                    (long) i,
+                    "Note " + i,
+                    now - i * 61000L,
+                    (long) (i % 5),
+                    CATEGORIES[i % CATEGORIES.length],
+                    "Snippet of note " + i
+            });
+        }
+        mAdapter = new MyCursorAdapter(getContext(), R.layout.noteslist_item, mCursor,
+                new String[0], new int[0], 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    /*
+     * Tests that a bound row shows the row's title, snippet, date label and category icon, and
+     * that a row without a category shows no icon even where the view showed one before.
+     */
+    public void testBindView() {
+        View view = mAdapter.newView(getContext(), mCursor, null);
+        NoteDateLabels labels = mAdapter.getDateLabels();
+        for (int i = 0; i < ROWS; i++) {
+            mCursor.moveToPosition(i);
+            mAdapter.bindView(view, getContext(), mCursor);
+
+            assertEquals("Note " + i, text(view, R.id.tv_title));
+            assertEquals("Snippet of note " + i, text(view, R.id.tv_snippet));
+            long modified = mCursor.getLong(2);
+            assertEquals(labels.label(modified), text(view, R.id.tv_date));
+            Drawable icon = ((ImageView) view.findViewById(R.id.iv_category)).getDrawable();
+            assertEquals(CATEGORIES[i % CATEGORIES.length] == null, icon == null);
+        }
+    }
+
+    /*
+     * Tests that reading rows and looking up their date labels allocates nothing after warm-up,
+     * and that rebinding rows to the views already showing them, as the list does when its data
+     * set changes, allocates nothing either: the unchanged text, colour, date and icon are not set
+     * again.
+     */
+    @SuppressWarnings("deprecation")
+    public void testBindAllocations() {
+        View[] views = new View[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            views[i] = mAdapter.newView(getContext(), mCursor, null);
+        }
+        MyCursorAdapter.RowHolder holder = (MyCursorAdapter.RowHolder) views[0].getTag();
+        NoteDateLabels labels = mAdapter.getDateLabels();
+
+        // Warm up: sizes the row buffers, loads the category icons and caches the date labels.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < ROWS; i++) {
+                mCursor.moveToPosition(i);
+                mAdapter.bindView(views[i], getContext(), mCursor);
+            }
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int pass = 0; pass < 5; pass++) {
+            for (int i = 0; i < ROWS; i++) {
+                mCursor.moveToPosition(i);
+                mAdapter.readRow(mCursor, holder);
+                labels.label(holder.modified);
+            }
+        }
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int pass = 0; pass < 5; pass++) {
+            for (int i = 0; i < ROWS; i++) {
+                mCursor.moveToPosition(i);
+                mAdapter.bindView(views[i], getContext(), mCursor);
+            }
+        }
+        Debug.stopAllocCounting();
+        assertEquals(0, Debug.getThreadAllocCount());
+
+        // The rows still show their own content.
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals("Note " + i, text(views[i], R.id.tv_title));
+            assertEquals("Snippet of note " + i, text(views[i], R.id.tv_snippet));
+        }
+    }
+
+    private static String text(View row, int id) {
+        return ((TextView) row.findViewById(id)).getText().toString();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the autosaver writes in submission order, merges writes that are still queued,
+ * that flush and discard wait for the writes they cover, and that each write's outcome is
+ * reported with the revision it carried.
+ */
+public class NoteAutosaverTest extends TestCase {
+
+    // Long enough that a debounced save never fires on its own during a test
+    private static final long DEBOUNCE_MILLIS = 60 * 1000;
+
+    private static final Uri NOTE_URI =
+            ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+
+    // A store that records saved bodies and can hold the writer thread on a latch
+    private static class RecordingStore implements NoteAutosaver.Store {
+        final ArrayList<String> saved = new ArrayList<String>();
+        volatile CountDownLatch gate;
+        final CountDownLatch started = new CountDownLatch(1);
+
+        @Override
+        public long save(Uri uri, ContentValues values) {
+            started.countDown();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (saved) {
+                saved.add(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+                return saved.size();
+            }
+        }
+    }
+
+    // A store whose writes always fail
+    private static class FailingStore implements NoteAutosaver.Store {
+        @Override
+        public long save(Uri uri, ContentValues values) {
+            throw new IllegalStateException("disk full");
+        }
+    }
+
+    // A listener that records the outcomes reported to it on the UI thread
+    private static class RecordingListener implements NoteAutosaver.Listener {
+        final ArrayList<Long> saved = new ArrayList<Long>();
+        final ArrayList<Long> modified = new ArrayList<Long>();
+        final ArrayList<Long> failed = new ArrayList<Long>();
+        final CountDownLatch reported;
+
+        RecordingListener(int count) {
+            reported = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onSaved(ContentValues values, long revision, long modified) {
+            saved.add(revision);
+            this.modified.add(modified);
+            reported.countDown();
+        }
+
+        @Override
+        public void onSaveFailed(ContentValues values, long revision, RuntimeException e) {
+            failed.add(revision);
+            reported.countDown();
+        }
+    }
+
+    private RecordingStore mStore;
+    private NoteAutosaver mAutosaver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new RecordingStore();
+        mAutosaver = newAutosaver(mStore, null);
+    }
+
+    /*
+     * Tests that saves queued behind a busy writer are merged into one write of the latest
+     * values, and that flush returns only after that write.
+     */
+    public void testMergesQueuedSaves() throws Exception {
+        mStore.gate = new CountDownLatch(1);
+        mAutosaver.save(body("first"));
+        assertTrue(mStore.started.await(10, TimeUnit.SECONDS));
+
+        // The writer is busy with "first"; these wait in the queue and merge.
+        mAutosaver.save(body("second"));
+        mAutosaver.save(body("third"));
+        mStore.gate.countDown();
+        mAutosaver.flush(null);
+
+        assertEquals(2, mStore.saved.size());
+        assertEquals("first", mStore.saved.get(0));
+        assertEquals("third", mStore.saved.get(1));
+    }
+
+    /*
+     * Tests that a flush writes its values after everything queued before it, so an older
+     * autosave can't overwrite them, and that a pending debounced save is dropped.
+     */
+    public void testFlushWritesLast() {
+        mAutosaver.onEdit();
+        mAutosaver.save(body("autosaved"));
+        mAutosaver.flush(body("final"));
+
+        assertEquals(2, mStore.saved.size());
+        assertEquals("autosaved", mStore.saved.get(0));
+        assertEquals("final", mStore.saved.get(1));
+    }
+
+    /*
+     * Tests that discard drops a save that hasn't started, as when the note is about to be
+     * deleted.
+     */
+    public void testDiscardDropsQueuedSave() throws Exception {
+        mStore.gate = new CountDownLatch(1);
+        mAutosaver.save(body("first"));
+        assertTrue(mStore.started.await(10, TimeUnit.SECONDS));
+        mAutosaver.save(body("dropped"));
+
+        // Release the writer from another thread, since discard waits for it. The delay lets
+        // discard drop the queued save first.
+        final CountDownLatch gate = mStore.gate;
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // release right away
+                }
+                gate.countDown();
+            }
+        }.start();
+        mAutosaver.discard();
+
+        assertEquals(1, mStore.saved.size());
+        assertEquals("first", mStore.saved.get(0));
+    }
+
+    /*
+     * Tests that a successful write reports the revision of the body it wrote along with the
+     * store's result, and that a body merged into a queued write takes its revision along.
+     */
+    public void testReportsSavedRevision() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        mAutosaver = newAutosaver(mStore, listener);
+        mStore.gate = new CountDownLatch(1);
+        mAutosaver.save(body("first"), 1);
+        assertTrue(mStore.started.await(10, TimeUnit.SECONDS));
+
+        // Queued behind "first": the category-only values keep the body's revision.
+        mAutosaver.save(body("second"), 2);
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, 1L);
+        mAutosaver.save(category, NoteAutosaver.NO_REVISION);
+        mStore.gate.countDown();
+        mAutosaver.flush(null);
+
+        assertTrue(listener.reported.await(10, TimeUnit.SECONDS));
+        assertEquals(2, listener.saved.size());
+        assertEquals(1L, (long) listener.saved.get(0));
+        assertEquals(2L, (long) listener.saved.get(1));
+        // Each report carries what the store returned for that write.
+        assertEquals(1L, (long) listener.modified.get(0));
+        assertEquals(2L, (long) listener.modified.get(1));
+        assertTrue(listener.failed.isEmpty());
+    }
+
+    /*
+     * Tests that a failed write is reported instead of only being logged, so the editor can keep
+     * the body unsaved and write it again.
+     */
+    public void testReportsFailedWrite() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        mAutosaver = newAutosaver(new FailingStore(), listener);
+        mAutosaver.flush(body("lost"), 3);
+
+        assertTrue(listener.reported.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.saved.isEmpty());
+        assertEquals(1, listener.failed.size());
+        assertEquals(3L, (long) listener.failed.get(0));
+    }
+
+    private static NoteAutosaver newAutosaver(NoteAutosaver.Store store,
+            NoteAutosaver.Listener listener) {
+        return new NoteAutosaver(NOTE_URI, new NoteAutosaver.Source() {
+            @Override
+            public ContentValues autosaveValues() {
+                return body("debounced");
+            }
+
+            @Override
+            public long autosaveRevision() {
+                return NoteAutosaver.NO_REVISION;
+            }
+        }, store, listener, DEBOUNCE_MILLIS);
+    }
+
+    private static ContentValues body(String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        return values;
+    }
+}
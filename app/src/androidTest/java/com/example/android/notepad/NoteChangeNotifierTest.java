@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.test.mock.MockContentResolver;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests that the change notifier merges writes into single notifications that list the
+ * affected notes and columns.
+ */
+public class NoteChangeNotifierTest extends TestCase {
+
+    // Long enough that the window never closes on its own during a test
+    private static final long WINDOW_MILLIS = 60 * 1000;
+
+    // A resolver that records notifications instead of dispatching them
+    private static class RecordingResolver extends MockContentResolver {
+        final ArrayList<Uri> notified = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            notified.add(uri);
+        }
+    }
+
+    private RecordingResolver mResolver;
+    private NoteChangeNotifier mNotifier;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new RecordingResolver();
+        mNotifier = new NoteChangeNotifier(mResolver, WINDOW_MILLIS);
+    }
+
+    /*
+     * Tests that two saves of the same note within the window, such as the body and then the
+     * category when the editor pauses, produce one notification on that note's URI.
+     */
+    public void testCoalescesWritesWithinWindow() {
+        mNotifier.rowUpdated(5, Arrays.asList(NotePad.Notes.COLUMN_NAME_NOTE));
+        mNotifier.rowUpdated(5, Arrays.asList(NotePad.Notes.COLUMN_NAME_CATEGORY));
+        assertTrue(mResolver.notified.isEmpty());
+
+        mNotifier.flush();
+        assertEquals(1, mResolver.notified.size());
+
+        Uri uri = mResolver.notified.get(0);
+        assertEquals(5, ContentUris.parseId(uri));
+        assertEquals("5", uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_IDS));
+        assertEquals(NotePad.Notes.COLUMN_NAME_CATEGORY + "," + NotePad.Notes.COLUMN_NAME_NOTE,
+                uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_COLUMNS));
+
+        // Nothing is left pending.
+        mNotifier.flush();
+        assertEquals(1, mResolver.notified.size());
+    }
+
+    /*
+     * Tests that a committed batch is sent at once as a structural change of the notes
+     * directory, and that a rolled back batch sends nothing.
+     */
+    public void testBatch() {
+        mNotifier.beginBatch();
+        mNotifier.rowInserted(1);
+        mNotifier.rowInserted(2);
+        mNotifier.rowUpdated(3, Arrays.asList(NotePad.Notes.COLUMN_NAME_TITLE));
+        mNotifier.endBatch(true);
+
+        assertEquals(1, mResolver.notified.size());
+        Uri uri = mResolver.notified.get(0);
+        assertEquals(NotePad.Notes.CONTENT_URI.getPath(), uri.getPath());
+        assertEquals("1,2,3", uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_IDS));
+        assertNull(uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_COLUMNS));
+
+        mNotifier.beginBatch();
+        mNotifier.rowDeleted(1);
+        mNotifier.endBatch(false);
+        mNotifier.flush();
+        assertEquals(1, mResolver.notified.size());
+    }
+
+    /*
+     * Tests that changes to rows selected by a condition are reported without ids.
+     */
+    public void testUnknownRows() {
+        mNotifier.rowUpdated(7, Arrays.asList(NotePad.Notes.COLUMN_NAME_BACK_COLOR));
+        mNotifier.rowsUpdated(Arrays.asList(NotePad.Notes.COLUMN_NAME_TITLE));
+        mNotifier.flush();
+
+        assertEquals(1, mResolver.notified.size());
+        Uri uri = mResolver.notified.get(0);
+        assertEquals(NotePad.Notes.CONTENT_URI.getPath(), uri.getPath());
+        assertNull(uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_IDS));
+        assertEquals(NotePad.Notes.COLUMN_NAME_BACK_COLOR + "," + NotePad.Notes.COLUMN_NAME_TITLE,
+                uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_COLUMNS));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Tests that date labels are shared per minute and that relative labels only change when the
+ * clock ticks into a new minute.
+ */
+public class NoteDateLabelsTest extends AndroidTestCase {
+
+    private static final long MINUTE = DateUtils.MINUTE_IN_MILLIS;
+
+    /*
+     * Tests that times in the same minute share one label instance, formatted without seconds.
+     */
+    public void testAbsoluteLabels() {
+        NoteDateLabels labels = new NoteDateLabels(getContext(), false);
+        long minute = (System.currentTimeMillis() / MINUTE - 90) * MINUTE;
+
+        String label = labels.label(minute + 1000);
+        assertSame(label, labels.label(minute + 59000));
+        assertNotSame(label, labels.label(minute + MINUTE));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        assertEquals(format.format(new Date(minute)), label);
+
+        // Ticking does not change absolute labels.
+        assertFalse(labels.tick(minute + 200 * MINUTE));
+        assertSame(label, labels.label(minute));
+    }
+
+    /*
+     * Tests relative labels: the current minute reads as "just now", and a tick into the next
+     * minute is the only thing that invalidates the cached labels.
+     */
+    public void testRelativeLabels() {
+        NoteDateLabels labels = new NoteDateLabels(getContext(), true);
+        long now = System.currentTimeMillis();
+        labels.tick(now);
+        long minute = now / MINUTE * MINUTE;
+
+        String justNow = labels.label(now);
+        assertEquals(getContext().getString(R.string.date_just_now), justNow);
+        String fiveAgo = labels.label(minute - 5 * MINUTE);
+        assertSame(fiveAgo, labels.label(minute - 5 * MINUTE + 30000));
+        assertFalse(fiveAgo.equals(justNow));
+
+        // Within the same minute nothing changes.
+        assertFalse(labels.tick(minute + MINUTE - 1));
+        assertSame(justNow, labels.label(now));
+
+        // A new minute moves every label along.
+        assertTrue(labels.tick(minute + MINUTE));
+        assertFalse(justNow.equals(labels.label(now)));
+        assertNotSame(fiveAgo, labels.label(minute - 5 * MINUTE));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the document's modified flag follows the edits and the outcome of the writes, and
+ * that it recognises the note row's modification time of its own content.
+ */
+public class NoteDocumentTest extends TestCase {
+
+    private static final String ORIGINAL = "The quick brown fox\njumps over the lazy dog\n";
+
+    // Modification time of the row the document was loaded from
+    private static final long LOADED = 1000;
+
+    private NoteDocument mDocument;
+    private SpannableStringBuilder mText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDocument = new NoteDocument();
+        mText = new SpannableStringBuilder(ORIGINAL);
+        // The builder reports its edits to watcher spans, as an EditText does.
+        mText.setSpan(mDocument, 0, mText.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+        mDocument.load(LOADED);
+    }
+
+    /*
+     * Tests that any edit makes the document modified, that a confirmed write of the current
+     * revision makes it unmodified, and that edits made while loading are not counted.
+     */
+    public void testModifiedAndSaved() {
+        assertFalse(mDocument.isModified());
+        assertFalse(mDocument.hasUnsubmittedChanges());
+
+        mText.replace(4, 9, "slow");
+        assertTrue(mDocument.isModified());
+        assertTrue(mDocument.hasUnsubmittedChanges());
+
+        long revision = mDocument.getRevision();
+        mDocument.markSubmitted(revision, 2000);
+        assertTrue(mDocument.isModified());
+        assertFalse(mDocument.hasUnsubmittedChanges());
+        mDocument.markSaved(revision, 2000);
+        assertFalse(mDocument.isModified());
+
+        // Deleting everything is a change too.
+        mText.delete(0, mText.length());
+        assertTrue(mDocument.isModified());
+
+        mDocument.setPaused(true);
+        mText.replace(0, mText.length(), ORIGINAL);
+        mDocument.setPaused(false);
+        mDocument.load(3000);
+        assertFalse(mDocument.isModified());
+    }
+
+    /*
+     * Tests that a submitted revision only counts as saved once its write succeeds, that edits
+     * made while it is being written stay modified, and that a failed write is submitted again.
+     */
+    public void testSavedAfterWrite() {
+        mText.replace(0, 3, "A");
+        long first = mDocument.getRevision();
+        mDocument.markSubmitted(first, 2000);
+
+        // Typing while the write is in flight.
+        mText.insert(1, "n");
+        mDocument.markSaved(first, 2000);
+        assertTrue(mDocument.isModified());
+        assertTrue(mDocument.hasUnsubmittedChanges());
+
+        long second = mDocument.getRevision();
+        mDocument.markSubmitted(second, 3000);
+        mDocument.markSaveFailed(second);
+        assertTrue(mDocument.isModified());
+        assertTrue(mDocument.hasUnsubmittedChanges());
+
+        mDocument.markSubmitted(second, 4000);
+        mDocument.markSaved(second, 4000);
+        assertFalse(mDocument.isModified());
+        assertFalse(mDocument.hasUnsubmittedChanges());
+        // A late report for the older revision doesn't make the document modified again.
+        mDocument.markSaved(first, 4000);
+        assertFalse(mDocument.isModified());
+    }
+
+    /*
+     * Tests that the modification times loaded, submitted or returned by a save are recognised
+     * as the document's own, so the editor doesn't reload the body, while any other is not.
+     */
+    public void testOwnContent() {
+        assertTrue(mDocument.isOwnContent(LOADED));
+        assertFalse(mDocument.isOwnContent(LOADED + 1));
+        assertFalse(mDocument.isOwnContent(NoteDocument.NO_MODIFIED));
+
+        mText.insert(0, "# ");
+        long revision = mDocument.getRevision();
+        mDocument.markSubmitted(revision, 2000);
+        // While the write is in flight the row may hold either time.
+        assertTrue(mDocument.isOwnContent(LOADED));
+        assertTrue(mDocument.isOwnContent(2000));
+
+        mDocument.markSaveFailed(revision);
+        assertFalse(mDocument.isOwnContent(2000));
+
+        // A write the provider skipped as unchanged returns the row's existing time.
+        mDocument.markSubmitted(revision, 3000);
+        mDocument.markSaved(revision, LOADED);
+        assertTrue(mDocument.isOwnContent(LOADED));
+
+        // Category-only writes carry no revision but still report the row's time.
+        mDocument.markSaved(NoteAutosaver.NO_REVISION, 4000);
+        assertTrue(mDocument.isOwnContent(4000));
+        assertFalse(mDocument.isOwnContent(5000));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * Rendering benchmarks for the note editor. Like NotePadBenchmarkTest, each benchmark logs its
+ * measurements under the tag "NotePadBenchmark" and asserts only on what it did, not on timings.
+ */
+public class NoteEditorBenchmarkTest extends AndroidTestCase {
+
+    // Tag for the benchmark output
+    private static final String TAG = "NotePadBenchmark";
+
+    // Size of the simulated editor viewport
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+
+    // Number of timed frames per document
+    private static final int RUNS = 50;
+
+    /*
+     * Measures one frame of the ruled editor scrolled to the middle of 100-line, 10k-line and
+     * 100k-line documents. Only the visible lines are ruled, so the number of ruled lines stays
+     * the same and the frame time should stay roughly flat as the document grows.
+     */
+    public void testLinedEditTextDraw() {
+        int[] sizes = { 100, 10000, 100000 };
+        long[] medians = new long[sizes.length];
+        int[] ruled = new int[sizes.length];
+
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < sizes.length; i++) {
+            NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(getContext(), null);
+            view.setText(makeDocument(sizes[i]));
+            view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+            view.layout(0, 0, WIDTH, HEIGHT);
+            int scrollY = Math.max(view.getLayout().getHeight() / 2 - HEIGHT / 2, 0);
+            view.scrollTo(0, scrollY);
+
+            long[] times = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                drawFrame(view, canvas, scrollY);
+                times[run] = System.nanoTime() - start;
+            }
+            medians[i] = median(times);
+            ruled[i] = view.mLinesDrawn;
+            Log.i(TAG, sizes[i] + "-line document: median frame " + medians[i] / 1000
+                    + " us, " + ruled[i] + " lines ruled");
+        }
+        bitmap.recycle();
+
+        // A viewport of ruled lines, however long the document.
+        assertTrue(ruled[2] > 0);
+        assertTrue(ruled[2] <= ruled[0] + 1);
+    }
+
+    // Draws the view the way its parent would: translated by the scroll and clipped to its bounds
+    private static void drawFrame(View view, Canvas canvas, int scrollY) {
+        canvas.save();
+        canvas.translate(0, -scrollY);
+        canvas.clipRect(0, scrollY, WIDTH, scrollY + HEIGHT);
+        view.draw(canvas);
+        canvas.restore();
+    }
+
+    private static String makeDocument(int lines) {
+        StringBuilder text = new StringBuilder(lines * 12);
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) {
+                text.append('\n');
+            }
+            text.append("line ").append(i);
+        }
+        return text.toString();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
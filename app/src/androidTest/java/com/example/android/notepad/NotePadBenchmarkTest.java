@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks for the Note Pad provider. Each benchmark logs its measurements under the tag
+ * "NotePadBenchmark" for comparison across builds. Timings vary too much between devices and
+ * runs to assert on, so the benchmarks only assert what they did: rows committed, bytes saved.
+ */
+public class NotePadBenchmarkTest extends ProviderTestCase2<NotePadProvider> {
+
+    // Tag for the benchmark output
+    private static final String TAG = "NotePadBenchmark";
+
+    // Number of notes in the benchmark data set
+    private static final int NOTE_COUNT = 2000;
+
+    // Number of timed runs per measurement
+    private static final int RUNS = 50;
+
+    // Rows per bulk insert issued by the concurrent writer
+    private static final int WRITER_BATCH = 200;
+
+    // The mocked content resolver for the provider under test
+    private MockContentResolver mMockResolver;
+
+    public NotePadBenchmarkTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, makeNotes(NOTE_COUNT, "seed"));
+    }
+
+    /*
+     * Measures the latency of the NotesList query on its own, and again while another thread
+     * keeps committing bulk inserts. With write-ahead logging the reader does not wait for the
+     * writer's transactions, so the median latency should stay roughly flat.
+     */
+    public void testListQueryLatencyUnderConcurrentWrites() throws Exception {
+        long[] idle = timeListQueries();
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger batches = new AtomicInteger();
+        Thread writer = new Thread("BenchmarkWriter") {
+            @Override
+            public void run() {
+                while (!stop.get()) {
+                    mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                            makeNotes(WRITER_BATCH, "writer"));
+                    batches.incrementAndGet();
+                }
+            }
+        };
+        writer.start();
+
+        long[] busy;
+        try {
+            busy = timeListQueries();
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+
+        long idleMedian = median(idle);
+        long busyMedian = median(busy);
+        Log.i(TAG, "list query median: idle " + idleMedian + "us, with writer " + busyMedian
+                + "us (" + batches.get() + " batches of " + WRITER_BATCH + " committed)");
+
+        // The writer must have committed while the readers ran, or nothing was measured.
+        assertTrue(batches.get() > 0);
+    }
+
+    /*
+     * Measures single-note save throughput at the database layer, comparing the statement shape
+     * the provider used to build (the note id concatenated into the WHERE clause, so every note
+     * produces a new SQL string) with the cached statement that binds the id as a parameter.
+     */
+    public void testSingleNoteSaveThroughput() {
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        NoteStatementCache cache = new NoteStatementCache(NoteStatementCache.DEFAULT_CAPACITY);
+        ContentValues values = new ContentValues();
+
+        try {
+            // Warm up both paths before timing them.
+            saveNotes(db, null, values, NOTE_COUNT / 10);
+            saveNotes(db, cache, values, NOTE_COUNT / 10);
+
+            long start = System.nanoTime();
+            saveNotes(db, null, values, NOTE_COUNT);
+            long concatenated = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            saveNotes(db, cache, values, NOTE_COUNT);
+            long cached = System.nanoTime() - start;
+
+            Log.i(TAG, "single-note saves/s: concatenated id " + perSecond(NOTE_COUNT, concatenated)
+                    + ", cached statement " + perSecond(NOTE_COUNT, cached));
+        } finally {
+            cache.clear();
+        }
+    }
+
+    /*
+     * Compares a collection of repetitive meeting notes stored uncompressed with the same notes
+     * compressed with a trained dictionary: the database size, the time to load the list from a
+     * freshly opened database, and the latency of saving a note through the provider. The
+     * full-text index keeps a plaintext copy of every body, so the database shrinks by less than
+     * the bodies do.
+     */
+    public void testNoteCompression() {
+        NoteCompressor compressor = getProvider().getCompressorForTest();
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+
+        compressor.setEnabled(false);
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, makeMeetingNotes(NOTE_COUNT, 0));
+        long plainBytes = usedBytes();
+        long plainCold = coldListLoad();
+
+        compressor.setEnabled(true);
+        Bundle result = getProvider().recompressNotes(true);
+        long compressedBytes = usedBytes();
+        long compressedCold = coldListLoad();
+
+        compressor.setEnabled(false);
+        long plainSave = median(timeSaves(1));
+        compressor.setEnabled(true);
+        long compressedSave = median(timeSaves(2));
+
+        Log.i(TAG, "note bodies: " + result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_BEFORE)
+                + " -> " + result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_AFTER) + " bytes");
+        Log.i(TAG, "database size: plain " + plainBytes + " bytes, compressed " + compressedBytes
+                + " bytes");
+        Log.i(TAG, "cold list load: plain " + plainCold + "us, compressed " + compressedCold + "us");
+        Log.i(TAG, "save median: plain " + plainSave + "us, compressed " + compressedSave + "us");
+
+        assertTrue(result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_AFTER)
+                < result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_BEFORE) / 2);
+        assertTrue("plain " + plainBytes + ", compressed " + compressedBytes,
+                compressedBytes < plainBytes);
+    }
+
+    // Bytes in use by the database, not counting free pages left behind by rewritten rows.
+    private long usedBytes() {
+        SQLiteDatabase db = getProvider().getOpenHelperForTest().getWritableDatabase();
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        return pages * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    // Closes the database so that its page cache is empty, then times one full list load in
+    // microseconds.
+    private long coldListLoad() {
+        getProvider().getOpenHelperForTest().close();
+        long start = System.nanoTime();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, NotesList.PROJECTION,
+                null, null, NotePad.Notes.SORT_ORDER_MODIFIED);
+        while (cursor.moveToNext()) {
+            cursor.getString(1); // title
+        }
+        cursor.close();
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    // Saves RUNS notes one at a time through the provider and returns each latency in
+    // microseconds.
+    private long[] timeSaves(int revision) {
+        ContentValues[] notes = makeMeetingNotes(RUNS, revision);
+        long[] ids = new long[RUNS];
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, NotePad.Notes.SORT_ORDER_CREATED);
+        for (int i = 0; i < RUNS && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        long[] latencies = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[i]);
+            long start = System.nanoTime();
+            mMockResolver.update(noteUri, notes[i], null, null);
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        return latencies;
+    }
+
+    // Builds count meeting notes that share their layout and most of their lines.
+    private static ContentValues[] makeMeetingNotes(int count, int revision) {
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Weekly sync " + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Weekly sync, project " + (i % 7) + "\n"
+                    + "Attendees: Alice Chen, Bob Martin, Carol Diaz, Dan Wu\n"
+                    + "Agenda:\n1. Status updates\n2. Blockers\n3. Action items\n"
+                    + "Notes:\n- Build " + (1000 + i) + " passed all checks on the CI server\n"
+                    + "- Release candidate is scheduled for week " + (i % 52) + "\n"
+                    + "- Revision " + revision + " of the meeting notes\n"
+                    + "Action items:\n- Follow up with the platform team on ticket NP-" + i + "\n"
+                    + "- Update the release checklist before the next sync\n");
+        }
+        return rows;
+    }
+
+    // Updates the body of notes 1..count, one statement per note, in the way the provider does.
+    private static void saveNotes(SQLiteDatabase db, NoteStatementCache cache, ContentValues values,
+                                  int count) {
+        for (int id = 1; id <= count; id++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved body " + id);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            int rows = cache != null
+                    ? cache.update(db, id, values)
+                    : db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + id, null);
+            assertEquals(1, rows);
+        }
+    }
+
+    private static long perSecond(int count, long nanos) {
+        return nanos > 0 ? count * 1000000000L / nanos : 0;
+    }
+
+    // Runs the list query RUNS times and returns each latency in microseconds.
+    private long[] timeListQueries() {
+        long[] latencies = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, NotesList.PROJECTION,
+                    null, null, NotePad.Notes.SORT_ORDER_MODIFIED);
+            // Forces the query to run and fill the first window.
+            cursor.getCount();
+            cursor.close();
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+        return latencies;
+    }
+
+    // Builds count rows of note values.
+    private static ContentValues[] makeNotes(int count, String prefix) {
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, prefix + " " + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Benchmark note " + i + " from " + prefix);
+        }
+        return rows;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the individual steps of the notes database migration chain and the chunked backfill
+ * runner, against an in-memory database built with an older schema.
+ */
+public class NotePadMigrationsTest extends TestCase {
+
+    // Number of notes in the version 2 fixture. Not a multiple of the chunk size used below.
+    private static final int NOTE_COUNT = 23;
+
+    // Chunk size used to run the backfill in the tests
+    private static final int CHUNK_SIZE = 5;
+
+    // An in-memory database, recreated for each test
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        createVersion2Schema();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    /*
+     * Builds the schema shipped as version 2, before the color and category columns existed,
+     * and fills it with notes.
+     */
+    private void createVersion2Schema() {
+        mDb.execSQL("CREATE TABLE notes (_id INTEGER PRIMARY KEY, title TEXT, note TEXT,"
+                + " created INTEGER, modified INTEGER);");
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            mDb.execSQL("INSERT INTO notes (title, note, created, modified) VALUES (?, ?, ?, ?)",
+                    new Object[] { "Note" + i, "This is note " + i, i, i });
+        }
+    }
+
+    /*
+     * Tests that the 2 -> 3 step keeps every note, adds the missing columns and schedules the
+     * full-text index backfill instead of filling the index inside the upgrade.
+     */
+    public void testMigration2To3() {
+        NotePadMigrations.MIGRATION_2_3.migrate(mDb);
+
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertTrue(NotePadMigrations.hasColumn(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_BACK_COLOR));
+        assertTrue(NotePadMigrations.hasColumn(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_CATEGORY));
+
+        // The index exists but is empty until the backfill runs.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadMigrations.BACKFILL_TABLE_NAME));
+
+        // New rows are indexed by the triggers straight away.
+        mDb.execSQL("INSERT INTO notes (title, note) VALUES ('Fresh', 'fresh note')");
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TABLE_NAME));
+    }
+
+    /*
+     * Tests that the backfill runs in bounded chunks, records its progress, skips rows that
+     * the triggers already indexed and removes itself once finished.
+     */
+    public void testBackfillRunsInChunks() {
+        NotePadMigrations.MIGRATION_2_3.migrate(mDb);
+        mDb.execSQL("INSERT INTO notes (title, note) VALUES ('Fresh', 'fresh note')");
+
+        int chunks = 0;
+        while (NotePadMigrations.runBackfillChunk(mDb, NotePadMigrations.BACKFILL_FTS, CHUNK_SIZE)) {
+            chunks++;
+            assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TABLE_NAME)
+                    <= chunks * CHUNK_SIZE + 1);
+        }
+
+        // (NOTE_COUNT + 1) rows in chunks of CHUNK_SIZE
+        assertEquals((NOTE_COUNT + 1 + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks);
+        assertEquals(NOTE_COUNT + 1, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadMigrations.BACKFILL_TABLE_NAME));
+
+        // The backfilled index answers searches.
+        Cursor c = mDb.rawQuery("SELECT docid FROM " + NotePadProvider.FTS_TABLE_NAME
+                + " WHERE " + NotePadProvider.FTS_TABLE_NAME + " MATCH 'note7'", null);
+        assertEquals(1, c.getCount());
+        c.close();
+    }
+
+    /*
+     * Tests that the 11 -> 12 step moves text categories into the dictionary in the background:
+     * until the backfill has run, the legacy expressions the provider reads resolve the text
+     * column; afterwards the display strings older versions wrote and the built-in keys map to
+     * the built-in ids, other names become user-defined categories, and the text column is
+     * cleared. A category written by id after the upgrade is kept.
+     */
+    public void testMigration11To12() {
+        assertTrue(NotePadMigrations.migrate(mDb, 2, 11));
+        final String[] CATEGORIES = { "学习", NotePad.Notes.CATEGORY_LIFE, "任务", "Reading", null };
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            mDb.execSQL("UPDATE notes SET " + NotePad.Notes.COLUMN_NAME_CATEGORY + " = ? WHERE title = ?",
+                    new Object[] { CATEGORIES[i % CATEGORIES.length], "Note" + i });
+        }
+
+        NotePadMigrations.MIGRATION_11_12.migrate(mDb);
+
+        // The upgrade itself writes no note rows.
+        assertTrue(NotePadMigrations.isBackfillPending(mDb, NotePadMigrations.BACKFILL_CATEGORY_ID));
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IS NULL"));
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME));
+
+        // Readers resolve the text column meanwhile; "Reading" is not in the dictionary yet.
+        final String[] NAMES = {
+                NotePad.Notes.CATEGORY_STUDY, NotePad.Notes.CATEGORY_LIFE, NotePad.Notes.CATEGORY_TASK,
+                "Reading", null
+        };
+        final Long[] LEGACY_IDS = {
+                NotePad.Categories.ID_STUDY, NotePad.Categories.ID_LIFE, NotePad.Categories.ID_TASK,
+                null, null
+        };
+        assertCategories(NoteCategories.legacyIdSql(), LEGACY_IDS, NoteCategories.legacyNameSql(), NAMES);
+
+        // A note recategorised before the backfill reaches it keeps its new category.
+        mDb.execSQL("UPDATE notes SET " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+                + NotePad.Categories.ID_TASK + " WHERE title = 'Note0'");
+
+        int chunks = 0;
+        while (NotePadMigrations.runBackfillChunk(mDb, NotePadMigrations.BACKFILL_CATEGORY_ID, CHUNK_SIZE)) {
+            chunks++;
+        }
+        assertEquals((NOTE_COUNT + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks);
+        assertFalse(NotePadMigrations.isBackfillPending(mDb, NotePadMigrations.BACKFILL_CATEGORY_ID));
+        assertEquals(NotePad.Categories.ID_TASK, DatabaseUtils.longForQuery(mDb, "SELECT "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " FROM notes WHERE title = 'Note0'", null));
+        mDb.execSQL("UPDATE notes SET " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = "
+                + NotePad.Categories.ID_STUDY + " WHERE title = 'Note0'");
+
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME));
+        long readingId = DatabaseUtils.longForQuery(mDb, "SELECT _id FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE name = 'Reading'", null);
+        final Long[] EXPECTED = {
+                NotePad.Categories.ID_STUDY, NotePad.Categories.ID_LIFE, NotePad.Categories.ID_TASK,
+                readingId, null
+        };
+        assertCategories(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, EXPECTED,
+                NoteCategories.legacyNameSql(), NAMES);
+
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NULL"));
+    }
+
+    // Checks the category id and name each note reads as, by the note's position in the fixture.
+    private void assertCategories(String idSql, Long[] ids, String nameSql, String[] names) {
+        Cursor c = mDb.rawQuery("SELECT title, " + idSql + ", " + nameSql + " FROM notes", null);
+        assertEquals(NOTE_COUNT, c.getCount());
+        while (c.moveToNext()) {
+            int i = Integer.parseInt(c.getString(0).substring("Note".length()));
+            Long expected = ids[i % ids.length];
+            if (expected == null) {
+                assertTrue(c.isNull(1));
+            } else {
+                assertEquals(expected.longValue(), c.getLong(1));
+            }
+            assertEquals(names[i % names.length], c.getString(2));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests that the 12 -> 13 step backfills the length of revisions recorded before it, by
+     * replaying each note's history once.
+     */
+    public void testMigration12To13() {
+        assertTrue(NotePadMigrations.migrate(mDb, 2, 12));
+        long noteId = DatabaseUtils.longForQuery(mDb, "SELECT _id FROM notes WHERE title = 'Note7'", null);
+        final String[] TEXTS = { "This is note 7", "This is note 7, edited", "Note 7" };
+        NoteRevisions revisions = new NoteRevisions(10, 0);
+        String previous = null;
+        for (String text : TEXTS) {
+            revisions.record(mDb, noteId, previous, text);
+            previous = text;
+        }
+        mDb.execSQL("UPDATE " + NoteRevisions.TABLE_NAME + " SET "
+                + NoteRevisions.COLUMN_NAME_LENGTH + " = NULL");
+
+        NotePadMigrations.MIGRATION_12_13.migrate(mDb);
+        NotePadMigrations.runPendingBackfills(mDb, CHUNK_SIZE);
+
+        Cursor c = NoteRevisions.list(mDb, noteId);
+        assertEquals(TEXTS.length, c.getCount());
+        for (int i = TEXTS.length - 1; c.moveToNext(); i--) {
+            assertEquals(TEXTS[i].length(), c.getInt(2));
+        }
+        c.close();
+    }
+
+    /*
+     * Tests that the full chain runs from version 2, and that there is no path from versions
+     * the chain does not know about.
+     */
+    public void testMigrationChain() {
+        assertTrue(NotePadMigrations.migrate(mDb, 2, NotePadProvider.DATABASE_VERSION));
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+
+        NotePadMigrations.runPendingBackfills(mDb, CHUNK_SIZE);
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_SNIPPET + " IS NULL"));
+        assertEquals("This is note 7", DatabaseUtils.stringForQuery(mDb,
+                "SELECT " + NotePad.Notes.COLUMN_NAME_SNIPPET + " FROM notes WHERE title = 'Note7'", null));
+
+        // Existing notes stay inline until their body is next written.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " != 0"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunkStore.TABLE_NAME));
+        assertTrue(NotePadMigrations.hasColumn(mDb, NoteChunkStore.TABLE_NAME,
+                NoteChunkStore.COLUMN_NAME_LENGTH));
+
+        // They are not compressed either, and no dictionary has been trained yet.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NoteCompressor.COLUMN_NAME_NOTE_Z + " IS NOT NULL"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteCompressor.TABLE_NAME));
+
+        // Content hashes are filled in lazily as well.
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePadProvider.COLUMN_NAME_CONTENT_HASH + " IS NULL"));
+
+        // History starts with the next save.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.TABLE_NAME));
+
+        // Categories come from the dictionary, and the list index leads with the category id.
+        assertEquals(3, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "sqlite_master",
+                "type = 'index' AND name = 'notes_list_by_category' AND sql LIKE '%("
+                        + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", %'"));
+
+        // Renaming a note keeps its indexed body.
+        mDb.execSQL("UPDATE notes SET title = 'Renamed' WHERE title = 'Note7'");
+        assertEquals("This is note 7", DatabaseUtils.stringForQuery(mDb,
+                "SELECT note FROM " + NotePadProvider.FTS_TABLE_NAME + " WHERE title = 'Renamed'", null));
+
+        assertFalse(NotePadMigrations.migrate(mDb, 1, NotePadProvider.DATABASE_VERSION));
+    }
+}
@@ -16,21 +16,32 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
+import org.json.JSONObject;
+
 import java.io.BufferedReader;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -186,18 +197,37 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
-
-        // Tests the live folders URI. This should return null, since the content provider does not
-        // provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.LIVE_FOLDER_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. The whole collection can be exported as NDJSON or as
+        // plain text.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_NDJSON, exportTypes[0]);
+        assertEquals(MIME_TYPE_TEXT, exportTypes[1]);
+
+        // Tests the live folders URI, which exports the same collection.
+        exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.LIVE_FOLDER_URI, MIME_TYPE_TEXT);
+        assertNotNull(exportTypes);
+        assertEquals(1, exportTypes.length);
+        assertEquals(MIME_TYPE_TEXT, exportTypes[0]);
+
+        // The search URI has no stream types.
+        assertNull(mMockResolver.getStreamTypes(searchUri("note"), MIME_TYPES_ALL));
+
+        // Neither has the revision history of a note, nor a single revision.
+        Uri revisionsUri = Uri.withAppendedPath(NotePad.Notes.CONTENT_ID_URI_BASE, "1")
+                .buildUpon().appendPath(NotePad.Notes.PATH_SEGMENT_REVISIONS).build();
+        assertNull(mMockResolver.getStreamTypes(revisionsUri, MIME_TYPES_ALL));
+        assertNull(mMockResolver.getStreamTypes(ContentUris.withAppendedId(revisionsUri, 1),
+                MIME_TYPES_ALL));
+
+        // The category dictionary has none either.
+        assertNull(mMockResolver.getStreamTypes(NotePad.Categories.CONTENT_URI, MIME_TYPES_ALL));
 
         /*
          * Tests the note id URI for a single note, using _ID value "1" which is a valid ID. Uses a
          * valid MIME type filter that will return all the supported MIME types for a content URI.
-         * The result should be "text/plain".
+         * The result should be "text/plain" and the body-only stream type.
          */
 
         // Constructs the note id URI
@@ -206,11 +236,12 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         // Gets the MIME types for the URI, with the filter that selects all MIME types.
         String mimeType[] = mMockResolver.getStreamTypes(testUri, MIME_TYPES_ALL);
 
-        // Tests that the result is not null and is equal to the expected value. Also tests that
-        // only one MIME type is returned.
+        // Tests that the result is not null and is equal to the expected values: plain text
+        // first, then the body-only stream.
         assertNotNull(mimeType);
         assertEquals(mimeType[0],"text/plain");
-        assertEquals(mimeType.length,1);
+        assertEquals(mimeType[1], NotePad.Notes.STREAM_TYPE_NOTE_BODY);
+        assertEquals(mimeType.length,2);
 
         /*
          * Tests with the same URI but with a filter that should not return any URIs.
@@ -219,10 +250,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes table URI with a filter that should not return any types.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_NONE);
         assertNull(mimeType);
 
     }
@@ -280,14 +310,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         testAssetDescriptor.close();
 
         /*
-         * Changes the URI to a notes URI for multiple notes, and re-test. This should fail, since
-         * the provider does not support this type of URI. A FileNotFound exception is expected,
-         * so call fail() if it does *not* occur.
+         * Changes the URI to a notes URI for multiple notes, with a MIME type filter that the
+         * export does not support. A FileNotFound exception is expected, so call fail() if it
+         * does *not* occur.
          */
         try {
             testAssetDescriptor = mMockResolver.openTypedAssetFileDescriptor(
                     NotePad.Notes.CONTENT_URI,
-                    MIME_TYPE_TEXT,
+                    MIME_TYPES_NONE,
                     null
             );
             fail();
@@ -790,6 +820,1182 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests that single-note updates and deletes still work after the database is closed and
+     * reopened, so cached statements compiled on the closed connection are never reused.
+     */
+    public void testWritesAfterReopen() {
+        insertData();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Before close");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        getProvider().getOpenHelperForTest().close();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "After reopen");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("After reopen", DatabaseUtils.stringForQuery(mDb,
+                "SELECT title FROM notes WHERE _id = 1", null));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+    }
+
+    /*
+     * Tests the full-text search URI. The shadow index is maintained by triggers, so rows written
+     * directly to the database, updated rows and deleted rows must all be reflected in the results.
+     */
+    public void testSearchUri() {
+        // A projection that returns the note id and its rank
+        final String[] SEARCH_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_RANK
+        };
+
+        // Tests the MIME type for the search URI.
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mMockResolver.getType(searchUri("note")));
+
+        // Inserts the test data. The rows are written straight to the table, so the index must
+        // have been filled in by the insert trigger.
+        insertData();
+
+        // Every note contains the word "note", so a prefix search returns all of them.
+        Cursor cursor = mMockResolver.query(searchUri("not"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Two terms are combined with AND, so only "Note5" / "This is note 5" matches.
+        cursor = mMockResolver.query(searchUri("note 5"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note5", cursor.getString(1));
+        long noteId = cursor.getLong(0);
+        cursor.close();
+
+        // Updates the body of the note. The update trigger must re-index the new contents.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten with zebra");
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        cursor = mMockResolver.query(searchUri("zebra"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Rows that match more often rank higher.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "zebra zebra zebra");
+        Uri otherUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId + 1);
+        assertEquals(1, mMockResolver.update(otherUri, values, null, null));
+
+        cursor = mMockResolver.query(searchUri("zebra"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteId + 1, cursor.getLong(0));
+        assertTrue(cursor.getInt(2) > 1);
+        cursor.close();
+
+        // Deletes the note. The delete trigger must drop it from the index.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        cursor = mMockResolver.query(searchUri("zebra"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // A non-ASCII query can't use the index, but must still return matches.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "今天开会");
+        assertEquals(1, mMockResolver.update(otherUri, values, null, null));
+        cursor = mMockResolver.query(searchUri("开会"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The fallback ranks by the number of matches too: the older note that matches three
+        // times comes before the newer note that matches once.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "今天开会，明天开会，后天还开会");
+        assertEquals(1, mMockResolver.update(otherUri, values, null, null));
+        ContentValues newer = new ContentValues();
+        newer.put(NotePad.Notes.COLUMN_NAME_TITLE, "Meeting");
+        newer.put(NotePad.Notes.COLUMN_NAME_NOTE, "下午开会");
+        Uri newerUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, newer);
+
+        cursor = mMockResolver.query(searchUri("开会"), SEARCH_PROJECTION, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(noteId + 1, cursor.getLong(0));
+        assertEquals(3, cursor.getInt(2));
+        assertTrue(cursor.moveToNext());
+        assertEquals(ContentUris.parseId(newerUri), cursor.getLong(0));
+        assertEquals(1, cursor.getInt(2));
+        cursor.close();
+    }
+
+    /*
+     * Tests that a cancellation signal passed to query() reaches SQLite. A signal that is already
+     * cancelled must abort the query instead of returning a cursor.
+     */
+    public void testQueryCancellation() {
+        insertData();
+
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+
+        try {
+            mMockResolver.query(searchUri("note"), null, null, null, null, signal);
+            fail("Expected the cancelled query to throw");
+        } catch (OperationCanceledException e) {
+            // continue
+        }
+
+        // A fresh signal lets the query run normally.
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null,
+                new CancellationSignal());
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the conversion of user input into an FTS MATCH expression.
+     */
+    public void testBuildMatchQuery() {
+        assertNull(NotePadProvider.buildMatchQuery(null));
+        assertNull(NotePadProvider.buildMatchQuery("   "));
+        assertNull(NotePadProvider.buildMatchQuery("学习"));
+        assertEquals("\"meet*\"", NotePadProvider.buildMatchQuery("meet"));
+        assertEquals("\"meet*\" \"notes*\"", NotePadProvider.buildMatchQuery(" meet  notes "));
+        assertEquals("\"e mail*\"", NotePadProvider.buildMatchQuery("\"e-mail*"));
+    }
+
+    /*
+     * Tests that the list query for every sort mode offered by NotesList is answered from a
+     * covering index, using the SQL the provider builds for it: the projection-mapped columns,
+     * unpaged, as a first page, and as a following page both after a key value and after a NULL
+     * key. The build fails if a query falls back to a temporary B-tree or reads the notes table.
+     */
+    public void testListQueryPlans() {
+        final String[] SORT_ORDERS = {
+            NotePad.Notes.SORT_ORDER_CREATED,
+            NotePad.Notes.SORT_ORDER_MODIFIED,
+            NotePad.Notes.SORT_ORDER_COLOR,
+            NotePad.Notes.SORT_ORDER_CATEGORY
+        };
+        Uri firstPage = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "20").build();
+        Uri afterNull = firstPage.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, "5").build();
+        Uri afterValue = afterNull.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_VALUE, "3").build();
+        final Uri[] URIS = { NotePad.Notes.CONTENT_URI, firstPage, afterNull, afterValue };
+
+        insertData();
+
+        for (String sortOrder : SORT_ORDERS) {
+            for (Uri uri : URIS) {
+                NotePadProvider.NotesQuery query = getProvider().prepareQuery(mDb, uri,
+                        NotesList.PROJECTION, null, null, sortOrder);
+                String sql = query.toSql();
+                if (uri != NotePad.Notes.CONTENT_URI) {
+                    assertTrue(sql, sql.endsWith(" LIMIT 20"));
+                }
+
+                Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, query.selectionArgs);
+                int detailIndex = plan.getColumnIndexOrThrow("detail");
+                assertTrue(plan.getCount() > 0);
+                while (plan.moveToNext()) {
+                    String detail = plan.getString(detailIndex);
+                    String message = sortOrder + " " + uri + ": " + detail;
+                    assertFalse(message, detail.contains("TEMP B-TREE"));
+                    if (detail.contains("SCAN") || detail.contains("SEARCH")) {
+                        assertTrue(message, detail.contains("COVERING INDEX"));
+                    }
+                }
+                plan.close();
+            }
+        }
+    }
+
+    /*
+     * Tests bulk inserts. All rows are written in one transaction and receive the same defaults
+     * as rows added through insert().
+     */
+    public void testBulkInsert() {
+        ContentValues[] rows = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            rows[index] = new ContentValues();
+            rows[index].put(NotePad.Notes.COLUMN_NAME_NOTE, TEST_NOTES[index].note);
+        }
+
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_BACK_COLOR },
+                null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(NotePad.Notes.CATEGORY_TASK, cursor.getString(0));
+            assertEquals(NotePad.Notes.DEFAULT_COLOR, cursor.getInt(1));
+        }
+        cursor.close();
+
+        // A row that fails to insert rolls back the whole batch.
+        ContentValues duplicate = new ContentValues();
+        duplicate.put(NotePad.Notes._ID, 1);
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                    new ContentValues[] { new ContentValues(), duplicate });
+            fail("Expected the bulk insert to fail");
+        } catch (Exception e) {
+            // continue
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that applyBatch() runs its operations atomically.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batch")
+                .build());
+        operations.add(ContentProviderOperation
+                .newUpdate(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1))
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed")
+                .build());
+        operations.add(ContentProviderOperation
+                .newDelete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 2))
+                .build());
+
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+        assertEquals(operations.size(), results.length);
+        assertEquals(1, (int) results[1].count);
+        assertEquals(1, (int) results[2].count);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // An operation on an unknown URI fails the batch, and the earlier insert is rolled back.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newDelete(INVALID_URI).build());
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected the batch to fail");
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests keyset pagination. Paging through the notes URI in each list sort order must return
+     * every row exactly once, in the same order as the unpaged query, including rows that share
+     * a sort value and rows whose category is null.
+     */
+    public void testPagedQuery() {
+        final String[] SORT_ORDERS = {
+            NotePad.Notes.SORT_ORDER_CREATED,
+            NotePad.Notes.SORT_ORDER_MODIFIED,
+            NotePad.Notes.SORT_ORDER_COLOR,
+            NotePad.Notes.SORT_ORDER_CATEGORY
+        };
+        final String[] CATEGORIES = {
+            NotePad.Notes.CATEGORY_STUDY, NotePad.Notes.CATEGORY_LIFE, null
+        };
+        final int PAGE = 4;
+
+        ContentValues[] rows = new ContentValues[23];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Page " + i);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, i / 3);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, i % 5);
+            rows[i].put(NotePad.Notes.COLUMN_NAME_CATEGORY, CATEGORIES[i % CATEGORIES.length]);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+
+        for (String sortOrder : SORT_ORDERS) {
+            NotePadProvider.PageOrder order = NotePadProvider.pageOrder(sortOrder);
+            assertNotNull(sortOrder, order);
+
+            ArrayList<Long> expected = new ArrayList<Long>();
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, NotesList.PROJECTION,
+                    null, null, sortOrder);
+            while (cursor.moveToNext()) {
+                expected.add(cursor.getLong(0));
+            }
+            cursor.close();
+
+            ArrayList<Long> paged = new ArrayList<Long>();
+            String afterValue = null;
+            long afterId = -1;
+            while (true) {
+                Uri.Builder page = NotePad.Notes.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(PAGE));
+                if (afterId >= 0) {
+                    page.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, Long.toString(afterId));
+                    if (afterValue != null) {
+                        page.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_VALUE, afterValue);
+                    }
+                }
+                cursor = mMockResolver.query(page.build(), NotesList.PROJECTION, null, null, sortOrder);
+                assertTrue(cursor.getCount() <= PAGE);
+                int keyIndex = cursor.getColumnIndexOrThrow(order.keyColumn);
+                while (cursor.moveToNext()) {
+                    paged.add(cursor.getLong(0));
+                    afterId = cursor.getLong(0);
+                    afterValue = cursor.getString(keyIndex);
+                }
+                int count = cursor.getCount();
+                cursor.close();
+                if (count < PAGE) {
+                    break;
+                }
+            }
+
+            assertEquals(sortOrder, expected, paged);
+        }
+
+        // Sort orders without a supporting index cannot be paged.
+        Uri page = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "10").build();
+        try {
+            mMockResolver.query(page, NotesList.PROJECTION, null, null, NotePad.Notes.COLUMN_NAME_TITLE);
+            fail("Expected paging by title to be rejected");
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that the snippet column follows the note body: it is generated on insert, refreshed
+     * when the note changes, left alone by other updates and never taken from the caller.
+     */
+    public void testSnippet() {
+        final String[] PROJECTION = { NotePad.Notes.COLUMN_NAME_SNIPPET };
+
+        assertEquals("", NotePadProvider.buildSnippet(null));
+        assertEquals("a b c", NotePadProvider.buildSnippet("  a\n\n b\t c  "));
+        StringBuilder longNote = new StringBuilder();
+        for (int i = 0; i < NotePadProvider.SNIPPET_LENGTH; i++) {
+            longNote.append("word ");
+        }
+        String snippet = NotePadProvider.buildSnippet(longNote.toString());
+        assertTrue(snippet.length() <= NotePadProvider.SNIPPET_LENGTH);
+        assertTrue(longNote.toString().startsWith(snippet));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First line\nsecond line");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "ignored");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First line second line", cursor.getString(0));
+        cursor.close();
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "ignored");
+        mMockResolver.update(noteUri, values, null, null);
+
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First line second line", cursor.getString(0));
+        cursor.close();
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        mMockResolver.update(noteUri, values, null, null);
+
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Rewritten", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests exporting the whole collection. The notes span several export pages, and every note
+     * must appear exactly once, in id order, with its fields intact.
+     */
+    public void testExportNotes() throws Exception {
+        final int NOTE_COUNT = NoteExporter.PAGE_SIZE * 2 + 7;
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Title " + i);
+            // Quotes and line breaks must survive the JSON encoding.
+            notes[i].put(NotePad.Notes.COLUMN_NAME_NOTE, "Line \"" + i + "\"\nsecond line");
+        }
+        assertEquals(NOTE_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_TYPE_NDJSON, null);
+        assertNotNull(descriptor);
+        BufferedReader in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        try {
+            long lastId = 0;
+            String line;
+            int rows = 0;
+            while ((line = in.readLine()) != null) {
+                JSONObject note = new JSONObject(line);
+                assertTrue(note.getLong(NotePad.Notes._ID) > lastId);
+                lastId = note.getLong(NotePad.Notes._ID);
+                assertEquals("Title " + rows, note.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+                assertEquals("Line \"" + rows + "\"\nsecond line",
+                        note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                assertTrue(note.has(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+                rows++;
+            }
+            assertEquals(NOTE_COUNT, rows);
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+
+        // The plain text export ends each note with a terminator line.
+        descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT, null);
+        in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        try {
+            assertEquals("Title 0", in.readLine());
+            assertEquals("", in.readLine());
+            assertEquals("Line \"0\"", in.readLine());
+            assertEquals("second line", in.readLine());
+            assertEquals(NoteExporter.TEXT_NOTE_TERMINATOR, in.readLine());
+            assertEquals("Title 1", in.readLine());
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+    }
+
+    /*
+     * Tests that the plain text export imports back to the same notes, including bodies with
+     * blank lines, lines that look like the terminator and empty bodies.
+     */
+    public void testTextExportRoundTrip() throws Exception {
+        final String[][] NOTES = {
+                { "Plain", "one line" },
+                { "Paragraphs", "first\n\nsecond\n\n\nthird\n" },
+                { ".Dotted", ".\n..\n. x\nend" },
+                { "Empty", "" },
+                { "Blank start", "\n\nafter blank lines" },
+        };
+        for (String[] note : NOTES) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, note[0]);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note[1]);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        StringBuilder exported = new StringBuilder();
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT, null);
+        BufferedReader in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                exported.append(line).append('\n');
+            }
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        Bundle result = getProvider().importNotes(new StringReader(exported.toString()),
+                MIME_TYPE_TEXT, 10, null);
+        assertEquals(NOTES.length, result.getLong(NotePad.Notes.EXTRA_IMPORTED_ROWS));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                null, null, NotePad.Notes.SORT_ORDER_CREATED);
+        assertEquals(NOTES.length, cursor.getCount());
+        for (String[] note : NOTES) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(note[0], cursor.getString(0));
+            assertEquals(note[1], cursor.getString(1));
+        }
+        cursor.close();
+    }
+
+    /*
+     * Tests importing notes from a stream. Notes are inserted in batches, progress is reported
+     * after every batch, and a malformed line stops the import while keeping earlier batches.
+     */
+    public void testImportNotes() throws Exception {
+        final ArrayList<Long> progress = new ArrayList<Long>();
+        ResultReceiver receiver = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                progress.add(resultData.getLong(NotePad.Notes.EXTRA_IMPORTED_ROWS));
+            }
+        };
+
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 7; i++) {
+            ndjson.append("{\"_id\":1,\"title\":\"Imported ").append(i)
+                    .append("\",\"note\":\"Body\\n").append(i)
+                    .append("\",\"modified\":").append(START_DATE + i).append("}\n");
+        }
+        ndjson.append("\n");
+
+        Bundle result = getProvider().importNotes(new StringReader(ndjson.toString()),
+                NotePad.Notes.EXPORT_TYPE_NDJSON, 3, receiver);
+        assertEquals(7, result.getLong(NotePad.Notes.EXTRA_IMPORTED_ROWS));
+        assertTrue(result.containsKey(NotePad.Notes.EXTRA_IMPORT_ROWS_PER_SECOND));
+
+        // Batches of three, three and one.
+        assertEquals(3, progress.size());
+        assertEquals(Long.valueOf(3), progress.get(0));
+        assertEquals(Long.valueOf(6), progress.get(1));
+        assertEquals(Long.valueOf(7), progress.get(2));
+
+        // Ids are assigned by the provider, and missing columns get their defaults.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY },
+                null, null, NotePad.Notes.SORT_ORDER_CREATED);
+        assertEquals(7, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Imported 0", cursor.getString(0));
+        assertEquals("Body\n0", cursor.getString(1));
+        assertEquals(START_DATE, cursor.getLong(2));
+        assertEquals(NotePad.Notes.CATEGORY_TASK, cursor.getString(3));
+        cursor.close();
+
+        // Plain text in the export format: title, blank line, body, terminator line. Blank lines
+        // belong to the body, and a missing final terminator ends the last note.
+        result = getProvider().importNotes(
+                new StringReader("First\n\nbody\n\nmore\n.\nSecond\n\n..dotted\n"),
+                MIME_TYPE_TEXT, 10, null);
+        assertEquals(2, result.getLong(NotePad.Notes.EXTRA_IMPORTED_ROWS));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN ('First', 'Second')", null,
+                NotePad.Notes.SORT_ORDER_CREATED);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("body\n\nmore", cursor.getString(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals(".dotted", cursor.getString(1));
+        cursor.close();
+
+        // A malformed third line fails the second batch; the first batch stays.
+        try {
+            getProvider().importNotes(new StringReader("{\"title\":\"a\"}\n{\"title\":\"b\"}\n{oops\n"),
+                    NotePad.Notes.EXPORT_TYPE_NDJSON, 2, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(11, cursor.getCount());
+        cursor.close();
+
+        // Unsupported types are rejected.
+        try {
+            getProvider().importNotes(new StringReader(""), MIME_TYPES_NONE, 10, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that a large note body is stored out of row in chunks: the note row carries no
+     * body, the body streams back intact, search still finds it, an edit rewrites only the chunk
+     * it touches even when it inserts or deletes text, and the chunks go away when the note
+     * shrinks or is deleted.
+     */
+    public void testLargeNoteChunks() throws Exception {
+        final String[] PROJECTION = {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_CHUNK_COUNT };
+        final int CHUNKS = 5;
+
+        // Every chunk differs, so an unchanged chunk can't be mistaken for another.
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < NoteChunkStore.CHUNK_SIZE * (CHUNKS - 1) + 10; i++) {
+            body.append("line ").append(i).append('\n');
+        }
+        body.append("zebra");
+        assertTrue(NoteChunkStore.isLarge(body.toString()));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertEquals(CHUNKS, cursor.getInt(1));
+        cursor.close();
+        assertEquals(body.toString(), readBody(noteUri));
+
+        cursor = mMockResolver.query(searchUri("zebra"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Records which chunks the provider writes. Temp objects live on the primary
+        // connection, so they are read inside a transaction, which also runs there.
+        mDb.execSQL("CREATE TEMP TABLE chunk_writes (seq INTEGER)");
+        for (String event : new String[] { "INSERT", "UPDATE" }) {
+            mDb.execSQL("CREATE TEMP TRIGGER chunk_" + event + " AFTER " + event + " ON main."
+                    + NoteChunkStore.TABLE_NAME + " BEGIN INSERT INTO chunk_writes VALUES (new."
+                    + NoteChunkStore.COLUMN_NAME_SEQ + "); END");
+        }
+        mDb.execSQL("CREATE TEMP TRIGGER chunk_DELETE AFTER DELETE ON main."
+                + NoteChunkStore.TABLE_NAME + " BEGIN INSERT INTO chunk_writes VALUES (old."
+                + NoteChunkStore.COLUMN_NAME_SEQ + "); END");
+
+        // Replacing a character, inserting text and deleting text each rewrite one chunk.
+        int edit = NoteChunkStore.CHUNK_SIZE * 2 + 100;
+        body.setCharAt(edit, body.charAt(edit) == 'x' ? 'y' : 'x');
+        assertChunkWrites(noteUri, body.toString(), 2);
+        body.insert(edit, "inserted in the middle of the note\n");
+        assertChunkWrites(noteUri, body.toString(), 2);
+        body.delete(NoteChunkStore.CHUNK_SIZE, NoteChunkStore.CHUNK_SIZE + 10);
+        assertChunkWrites(noteUri, body.toString(), 1);
+        body.append("\nappended");
+        assertChunkWrites(noteUri, body.toString(), CHUNKS - 1);
+
+        for (String event : new String[] { "INSERT", "UPDATE", "DELETE" }) {
+            mDb.execSQL("DROP TRIGGER temp.chunk_" + event);
+        }
+
+        // Shrinking the note moves the body back into the row.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "small");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("small", cursor.getString(0));
+        assertEquals(0, cursor.getInt(1));
+        cursor.close();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunkStore.TABLE_NAME));
+
+        // Deleting a chunked note deletes its chunks.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(CHUNKS, DatabaseUtils.queryNumEntries(mDb, NoteChunkStore.TABLE_NAME));
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunkStore.TABLE_NAME));
+    }
+
+    // Saves a large body and checks that it reads back intact and that only the given chunk was written.
+    private void assertChunkWrites(Uri noteUri, String body, int seq) throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(body, readBody(noteUri));
+
+        mDb.beginTransaction();
+        try {
+            assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "temp.chunk_writes"));
+            assertEquals(seq, DatabaseUtils.longForQuery(mDb, "SELECT seq FROM temp.chunk_writes", null));
+            mDb.execSQL("DELETE FROM temp.chunk_writes");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+     * Tests the single-call save used by the editors: it inserts a note with all its columns
+     * when given the notes directory, updates body, title, category and color of an existing
+     * note together, and reports a note that no longer exists.
+     */
+    public void testSaveNote() {
+        final String[] PROJECTION = {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_BACK_COLOR,
+                NotePad.Notes.COLUMN_NAME_SNIPPET };
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_STUDY);
+        Uri noteUri = saveNote(NotePad.Notes.CONTENT_URI, values);
+        assertNotNull(noteUri);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Saved body");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Saved title");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_LIFE);
+        values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.BLUE_COLOR);
+        assertEquals(noteUri, saveNote(noteUri, values));
+
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Saved title", cursor.getString(0));
+        assertEquals("Saved body", cursor.getString(1));
+        assertEquals(NotePad.Notes.CATEGORY_LIFE, cursor.getString(2));
+        assertEquals(NotePad.Notes.BLUE_COLOR, cursor.getInt(3));
+        assertEquals("Saved body", cursor.getString(4));
+        cursor.close();
+
+        mMockResolver.delete(noteUri, null, null);
+        assertNull(saveNote(noteUri, values));
+
+        try {
+            saveNote(noteUri, new ContentValues());
+            fail("Expected an IllegalArgumentException for an empty save");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            saveNote(INVALID_URI, values);
+            fail("Expected an IllegalArgumentException for an invalid URI");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests the category dictionary: notes store an integer category id, names written by
+     * clients (including the display strings older versions wrote) resolve to the built-in
+     * ids, unknown names become user-defined categories, and sorting by category is by id.
+     */
+    public void testCategories() {
+        final String[] PROJECTION = {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY };
+
+        assertEquals(NotePad.Categories.CONTENT_TYPE, mMockResolver.getType(NotePad.Categories.CONTENT_URI));
+
+        // The built-in categories are in the dictionary from the start.
+        Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, null, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.ID_STUDY,
+                cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Categories._ID)));
+        assertEquals(NotePad.Notes.CATEGORY_STUDY,
+                cursor.getString(cursor.getColumnIndexOrThrow(NotePad.Categories.COLUMN_NAME_NAME)));
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "学习");
+        Uri legacy = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Reading");
+        Uri custom = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.ID_LIFE);
+        Uri life = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        cursor = mMockResolver.query(legacy, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Categories.ID_STUDY, cursor.getLong(1));
+        assertEquals(NotePad.Notes.CATEGORY_STUDY, cursor.getString(2));
+        cursor.close();
+
+        // The new name is added to the dictionary once, and inserting it again finds it.
+        cursor = mMockResolver.query(custom, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long readingId = cursor.getLong(1);
+        assertEquals("Reading", cursor.getString(2));
+        cursor.close();
+        assertTrue(readingId > NotePad.Categories.ID_TASK);
+        values.clear();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Reading");
+        assertEquals(ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, readingId),
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        assertEquals(4, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME));
+
+        // A name that isn't in the dictionary yet gets a new id; a built-in name finds its id.
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "Cooking");
+        long cookingId = ContentUris.parseId(mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        assertTrue(cookingId > readingId);
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, "学习");
+        assertEquals(ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, NotePad.Categories.ID_STUDY),
+                mMockResolver.insert(NotePad.Categories.CONTENT_URI, values));
+        assertEquals(5, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME));
+
+        // Moving a note between categories by name or by id.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Reading");
+        assertEquals(1, mMockResolver.update(life, values, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.ID_TASK);
+        assertEquals(1, mMockResolver.update(custom, values, null, null));
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, null, null,
+                NotePad.Notes.SORT_ORDER_CATEGORY);
+        assertEquals(3, cursor.getCount());
+        long[] expected = {
+                ContentUris.parseId(legacy), ContentUris.parseId(custom), ContentUris.parseId(life) };
+        long[] expectedCategories = { NotePad.Categories.ID_STUDY, NotePad.Categories.ID_TASK, readingId };
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(expected[i], cursor.getLong(0));
+            assertEquals(expectedCategories[i], cursor.getLong(1));
+        }
+        cursor.close();
+
+        // A category needs a name.
+        try {
+            mMockResolver.insert(NotePad.Categories.CONTENT_URI, new ContentValues());
+            fail("Expected an IllegalArgumentException for a category without a name");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Saves a note through the provider's call interface and returns the saved note's URI.
+    private Uri saveNote(Uri uri, ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.EXTRA_NOTE_VALUES, values);
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_SAVE_NOTE, uri.toString(), extras);
+        return result.getParcelable(NotePad.Notes.EXTRA_NOTE_URI);
+    }
+
+    /*
+     * Tests that a save which changes nothing is not written: the body is compared by its stored
+     * hash, the other columns by value, and the modification date the editors always send is
+     * ignored. A row written before hashes existed is written once and then compared.
+     */
+    public void testUnchangedSaveIsSkipped() {
+        final String[] PROJECTION = {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
+
+        // A row without a hash, as left by an older version of the database.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Old title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old body");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.ID_STUDY);
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, START_DATE);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        long id = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
+
+        // Counts writes to the notes table; read inside a transaction like testLargeNoteChunks.
+        mDb.execSQL("CREATE TEMP TABLE note_writes (id INTEGER)");
+        mDb.execSQL("CREATE TEMP TRIGGER count_note_writes AFTER UPDATE ON main."
+                + NotePad.Notes.TABLE_NAME + " BEGIN INSERT INTO note_writes VALUES (new."
+                + NotePad.Notes._ID + "); END");
+
+        ContentValues save = new ContentValues();
+        save.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old body");
+        save.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_STUDY);
+        save.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 1);
+        assertEquals(noteUri, saveNote(noteUri, save));
+        assertEquals(1, countNoteWrites());
+
+        // The same save again, with a newer modification date, is skipped.
+        save.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 2);
+        assertEquals(noteUri, saveNote(noteUri, save));
+        assertEquals(1, mMockResolver.update(noteUri, save, null, null));
+
+        ContentValues title = new ContentValues();
+        title.put(NotePad.Notes.COLUMN_NAME_TITLE, "Old title");
+        assertEquals(1, mMockResolver.update(noteUri, title, null, null));
+        assertEquals(1, countNoteWrites());
+
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Old body", cursor.getString(0));
+        assertEquals(START_DATE + 1, cursor.getLong(1));
+        cursor.close();
+
+        // Any changed column is written.
+        save.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_LIFE);
+        assertEquals(noteUri, saveNote(noteUri, save));
+        assertEquals(2, countNoteWrites());
+        save.put(NotePad.Notes.COLUMN_NAME_NOTE, "New body");
+        assertEquals(noteUri, saveNote(noteUri, save));
+        assertEquals(3, countNoteWrites());
+        title.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.BLUE_COLOR);
+        assertEquals(1, mMockResolver.update(noteUri, title, null, null));
+        assertEquals(4, countNoteWrites());
+
+        // A save that only touches the note is still written.
+        ContentValues touch = new ContentValues();
+        touch.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 3);
+        assertEquals(1, mMockResolver.update(noteUri, touch, null, null));
+        assertEquals(5, countNoteWrites());
+        mDb.execSQL("DROP TRIGGER temp.count_note_writes");
+    }
+
+    /*
+     * Tests that a save reports the row's stored modification date, which the editor compares
+     * on resume instead of reading the body back; a skipped save reports the date already stored.
+     */
+    public void testSaveReportsModificationDate() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Body");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        Uri noteUri = saveNote(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(START_DATE, saveModified(noteUri, values));
+
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 1);
+        assertEquals(START_DATE, saveModified(noteUri, values));
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "New body");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 2);
+        assertEquals(START_DATE + 2, saveModified(noteUri, values));
+    }
+
+    // Saves a note through the call interface and returns the modification date it reports.
+    private long saveModified(Uri uri, ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.EXTRA_NOTE_VALUES, values);
+        Bundle result = getProvider().call(NotePad.Notes.METHOD_SAVE_NOTE, uri.toString(), extras);
+        assertTrue(result.containsKey(NotePad.Notes.EXTRA_NOTE_MODIFIED));
+        return result.getLong(NotePad.Notes.EXTRA_NOTE_MODIFIED);
+    }
+
+    private long countNoteWrites() {
+        mDb.beginTransaction();
+        try {
+            return DatabaseUtils.queryNumEntries(mDb, "temp.note_writes");
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /*
+     * Tests the revision history: every body save adds a revision that stores only the edit,
+     * with a full snapshot every SNAPSHOT_INTERVAL revisions. The list holds only each
+     * revision's id, time and size, and every revision opened by its own URI reads back intact.
+     * Saves that don't change the body add nothing, and deleting the note deletes them.
+     */
+    public void testRevisionHistory() {
+        final int SAVES = 25;
+
+        ArrayList<String> expected = new ArrayList<String>();
+        StringBuilder body = new StringBuilder("Shopping list");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        expected.add(body.toString());
+        for (int i = 1; i < SAVES; i++) {
+            // Alternate appending with an edit in the middle.
+            if (i % 2 == 0) {
+                body.insert(8, i);
+            } else {
+                body.append("\nitem ").append(i);
+            }
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            expected.add(body.toString());
+        }
+
+        // Neither a title change nor a save of the same body adds a revision.
+        ContentValues title = new ContentValues();
+        title.put(NotePad.Notes.COLUMN_NAME_TITLE, "Groceries");
+        mMockResolver.update(noteUri, title, null, null);
+        mMockResolver.update(noteUri, values, null, null);
+
+        Uri revisionsUri = noteUri.buildUpon()
+                .appendPath(NotePad.Notes.PATH_SEGMENT_REVISIONS).build();
+        assertEquals(NotePad.Notes.REVISIONS_CONTENT_TYPE, mMockResolver.getType(revisionsUri));
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(SAVES, cursor.getCount());
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        int sizeIndex = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_REVISION_SIZE);
+        long previousId = Long.MAX_VALUE;
+        for (int i = SAVES - 1; i >= 0; i--) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(expected.get(i).length(), cursor.getInt(sizeIndex));
+            long id = cursor.getLong(cursor.getColumnIndexOrThrow(NotePad.Notes._ID));
+            assertTrue(id < previousId);
+            previousId = id;
+
+            Uri revisionUri = ContentUris.withAppendedId(revisionsUri, id);
+            assertEquals(NotePad.Notes.REVISION_CONTENT_ITEM_TYPE, mMockResolver.getType(revisionUri));
+            Cursor revision = mMockResolver.query(revisionUri, null, null, null, null);
+            assertTrue(revision.moveToFirst());
+            assertEquals(expected.get(i),
+                    revision.getString(revision.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_NOTE)));
+            revision.close();
+        }
+        cursor.close();
+
+        // A revision id that belongs to no revision of this note reads as empty.
+        Cursor missing = mMockResolver.query(ContentUris.withAppendedId(revisionsUri, previousId - 1),
+                null, null, null, null);
+        assertEquals(0, missing.getCount());
+        missing.close();
+
+        // The first revision and every SNAPSHOT_INTERVAL-th after it are snapshots; the rest
+        // hold just the edited text.
+        long noteId = ContentUris.parseId(noteUri);
+        String[] args = { Long.toString(noteId) };
+        assertEquals((SAVES - 1) / NoteRevisions.SNAPSHOT_INTERVAL + 1,
+                DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " + NoteRevisions.TABLE_NAME
+                        + " WHERE note_id = ? AND snapshot = 1", args));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT MAX(LENGTH(content)) FROM "
+                + NoteRevisions.TABLE_NAME + " WHERE note_id = ? AND snapshot = 0", args) <= 8);
+
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteRevisions.TABLE_NAME));
+    }
+
+    /*
+     * Tests that old revisions are compacted by count and by age: the oldest kept revision
+     * becomes a snapshot, so every kept revision still reads back intact.
+     */
+    public void testRevisionRetention() {
+        final long NOTE_ID = 1000;
+        final int KEEP = 5;
+
+        NoteRevisions revisions = new NoteRevisions(KEEP, 0);
+        ArrayList<String> texts = new ArrayList<String>();
+        String previous = null;
+        for (int i = 0; i < KEEP + NoteRevisions.SNAPSHOT_INTERVAL + 1; i++) {
+            texts.add("revision " + i);
+            revisions.record(mDb, NOTE_ID, previous, texts.get(i));
+            previous = texts.get(i);
+        }
+
+        Cursor cursor = NoteRevisions.list(mDb, NOTE_ID);
+        assertEquals(KEEP, cursor.getCount());
+        for (int i = texts.size() - 1; cursor.moveToNext(); i--) {
+            assertEquals(texts.get(i).length(), cursor.getInt(2));
+            assertEquals(texts.get(i), NoteRevisions.read(mDb, NOTE_ID, cursor.getLong(0)));
+        }
+        cursor.close();
+
+        // Revisions past the age limit go, except the latest.
+        mDb.execSQL("UPDATE " + NoteRevisions.TABLE_NAME + " SET created = 0");
+        new NoteRevisions(KEEP, ONE_DAY_MILLIS).record(mDb, NOTE_ID, previous, "latest");
+        cursor = NoteRevisions.list(mDb, NOTE_ID);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("latest", NoteRevisions.read(mDb, NOTE_ID, cursor.getLong(0)));
+        cursor.close();
+    }
+
+    /*
+     * Tests that note bodies are compressed transparently: the row stores only the compressed
+     * body, readers get the text back from queries, streams and search, and recompressing with
+     * a trained dictionary shrinks the stored bodies without changing them. Turning compression
+     * off and recompressing moves the bodies back into the row.
+     */
+    @SuppressWarnings("deprecation")
+    public void testNoteCompression() throws Exception {
+        final String[] PROJECTION = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE };
+        final int COUNT = 30;
+        final String COMPRESSED = NoteCompressor.COLUMN_NAME_NOTE_Z + " IS NOT NULL";
+
+        String[] bodies = new String[COUNT];
+        ContentValues[] rows = new ContentValues[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            bodies[i] = "Weekly sync 会议纪要\nAttendees: Alice, Bob, Carol\n"
+                    + "Agenda: status updates, blockers, action items\n"
+                    + "Action items: follow up on ticket NP-" + i + "\n"
+                    + "Status: on track, on track, on track\n";
+            rows[i] = new ContentValues();
+            rows[i].put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[i]);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+        assertEquals(COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME, COMPRESSED));
+        assertEquals(COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_NOTE + " IS NULL"));
+
+        // Queries return the text and do not expose the compressed column.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION, null, null,
+                NotePad.Notes.SORT_ORDER_CREATED);
+        assertEquals(PROJECTION.length, cursor.getColumnCount());
+        assertEquals(-1, cursor.getColumnIndex(NoteCompressor.COLUMN_NAME_NOTE_Z));
+        assertEquals(COUNT, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertFalse(cursor.isNull(1));
+            assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(1));
+            assertEquals(bodies[i], cursor.getString(1));
+        }
+        assertTrue(cursor.moveToFirst());
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, cursor.getLong(0));
+        assertEquals(bodies[0], cursor.getString(1));
+
+        // A requeried cursor decompresses the current body, not the one read before.
+        ContentValues body = new ContentValues();
+        body.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[2]);
+        mMockResolver.update(noteUri, body, null, null);
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(bodies[2], cursor.getString(1));
+        cursor.close();
+        body.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[0]);
+        mMockResolver.update(noteUri, body, null, null);
+        assertEquals(bodies[0], readBody(noteUri));
+
+        // Clients cannot ask for the compressed column.
+        try {
+            mMockResolver.query(noteUri, new String[] { NoteCompressor.COLUMN_NAME_NOTE_Z },
+                    null, null, null);
+            fail("Expected the compressed column to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Both search paths see the text, also after a rename that leaves the body alone.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(searchUri("NP 0"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(searchUri("会议纪要"), null, null, null, null);
+        assertEquals(COUNT, cursor.getCount());
+        cursor.close();
+
+        // Recompressing with a trained dictionary shrinks the bodies.
+        Bundle result = getProvider().recompressNotes(true);
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NoteCompressor.TABLE_NAME));
+        assertEquals(COUNT, result.getLong(NotePad.Notes.EXTRA_RECOMPRESSED_ROWS));
+        assertTrue(result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_AFTER)
+                < result.getLong(NotePad.Notes.EXTRA_STORED_BYTES_BEFORE));
+        assertEquals(bodies[0], readBody(noteUri));
+
+        // Notes written afterwards use the dictionary as well.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[1]);
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(bodies[1], readBody(noteUri));
+
+        getProvider().getCompressorForTest().setEnabled(false);
+        result = getProvider().recompressNotes(true);
+        assertEquals(COUNT, result.getLong(NotePad.Notes.EXTRA_RECOMPRESSED_ROWS));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME, COMPRESSED));
+        assertEquals(bodies[1], readBody(noteUri));
+        cursor = mMockResolver.query(searchUri("会议纪要"), null, null, null, null);
+        assertEquals(COUNT, cursor.getCount());
+        cursor.close();
+    }
+
+    // Reads a note's body through the body-only stream.
+    private String readBody(Uri noteUri) throws IOException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                noteUri, NotePad.Notes.STREAM_TYPE_NOTE_BODY, null);
+        BufferedReader in = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.append(buffer, 0, n);
+            }
+            return body.toString();
+        } finally {
+            in.close();
+            descriptor.close();
+        }
+    }
+
+    // Builds a search URI for the given query text.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY, query)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
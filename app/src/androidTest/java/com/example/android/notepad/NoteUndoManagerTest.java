@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the undo manager records edits as replaced ranges, merges typing into single
+ * edits, and keeps its history under the memory cap.
+ */
+public class NoteUndoManagerTest extends TestCase {
+
+    private static final long MAX_BYTES = 64 * 1024;
+
+    private NoteUndoManager mUndo;
+    private SpannableStringBuilder mText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUndo = new NoteUndoManager(MAX_BYTES);
+        mText = new SpannableStringBuilder("Hello world");
+        // The builder reports its edits to watcher spans, as an EditText does.
+        mText.setSpan(mUndo, 0, mText.length(), Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+    }
+
+    /*
+     * Tests that characters typed in a burst undo together, and that undo and redo restore
+     * the text and return the cursor position.
+     */
+    public void testUndoRedoTyping() {
+        int position = 5;
+        for (char c : " there".toCharArray()) {
+            mText.insert(position++, String.valueOf(c));
+        }
+        assertEquals("Hello there world", mText.toString());
+        mText.delete(0, 6);
+        assertEquals("there world", mText.toString());
+
+        assertEquals(6, mUndo.undo(mText));
+        assertEquals("Hello there world", mText.toString());
+        assertEquals(5, mUndo.undo(mText));
+        assertEquals("Hello world", mText.toString());
+        assertFalse(mUndo.canUndo());
+
+        assertEquals(11, mUndo.redo(mText));
+        assertEquals("Hello there world", mText.toString());
+        assertEquals(0, mUndo.redo(mText));
+        assertEquals("there world", mText.toString());
+        assertEquals(-1, mUndo.redo(mText));
+
+        // A new edit clears the redo history.
+        mUndo.undo(mText);
+        mText.append('!');
+        assertFalse(mUndo.canRedo());
+    }
+
+    /*
+     * Tests which edits merge: typing, backspacing and forward deleting within the window
+     * merge, while a newline, a pause or a jump elsewhere starts a new edit.
+     */
+    public void testCoalescing() {
+        long now = 0;
+        mUndo.record(11, "", "a", now);
+        mUndo.record(12, "", "b", now += 10);
+        mUndo.record(13, "", "\n", now += 10);
+        mUndo.record(14, "", "c", now += NoteUndoManager.COALESCE_MILLIS + 1);
+        mUndo.record(0, "", "d", now += 10);
+
+        // A backspace, another backspace and a forward delete make one deletion.
+        mUndo.record(5, "x", "", now += 10);
+        mUndo.record(4, "y", "", now += 10);
+        mUndo.record(4, "z", "", now += 10);
+
+        // Applied to scratch text, since only the number of edits matters here.
+        SpannableStringBuilder scratch = new SpannableStringBuilder(new String(new char[64]));
+        int edits = 0;
+        while (mUndo.undo(scratch) >= 0) {
+            edits++;
+        }
+        assertEquals(5, edits);
+    }
+
+    /*
+     * Tests that an input method composing a word, which rewrites the whole composing region
+     * on every key as setComposingText does, undoes as one edit together with the typing
+     * before it, including a composing region that runs into the existing text.
+     */
+    public void testComposingMerges() {
+        mText.insert(5, " ");
+        final String[] COMPOSING = { "t", "th", "thr", "th", "the", "ther", "there" };
+        int end = 6;
+        for (String word : COMPOSING) {
+            mText.replace(6, end, word);
+            end = 6 + word.length();
+        }
+        assertEquals("Hello there world", mText.toString());
+
+        // A correction whose region covers the composed word and the following space.
+        mText.replace(6, 12, "there, ");
+        assertEquals("Hello there, world", mText.toString());
+
+        assertEquals(6, mUndo.undo(mText));
+        assertEquals("Hello world", mText.toString());
+        assertFalse(mUndo.canUndo());
+        assertEquals(13, mUndo.redo(mText));
+        assertEquals("Hello there, world", mText.toString());
+
+        // Composing somewhere else starts a new edit.
+        mText.replace(0, 0, "O");
+        mText.replace(0, 1, "Oh");
+        mText.replace(0, 2, "Oh ");
+        assertEquals(0, mUndo.undo(mText));
+        assertEquals("Hello there, world", mText.toString());
+        assertTrue(mUndo.canUndo());
+    }
+
+    /*
+     * Tests that the oldest edits are dropped to stay under the cap, and that a single edit
+     * larger than the cap leaves nothing to undo.
+     */
+    public void testMemoryCap() {
+        char[] chunk = new char[(int) (MAX_BYTES / 8)];
+        String text = new String(chunk);
+        for (int i = 0; i < 8; i++) {
+            mText.insert(0, "\n");
+            mText.insert(0, text);
+        }
+        assertTrue(mUndo.getBytes() <= MAX_BYTES);
+        assertTrue(mUndo.canUndo());
+
+        mText.replace(0, mText.length(), new String(new char[(int) MAX_BYTES]));
+        assertFalse(mUndo.canUndo());
+        assertEquals(0, mUndo.getBytes());
+    }
+}
@@ -1,79 +1,271 @@
 package com.example.android.notepad;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.graphics.drawable.Drawable;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-
+/**
+ * 笔记列表的光标适配器。
+ *
+ * 绑定每一行时不分配对象：列的索引在每次更换光标时取得一次；行中的视图在创建时查找一次，保存在
+ * {@link RowHolder} 中；文本通过 {@link Cursor#copyStringToBuffer} 复制到行自己的缓冲区，
+ * 不为每行创建字符串；日期文本由 {@link NoteDateLabels} 按分钟缓存，同一分钟的行共用同一个字符串；
+ * 分类只读取整数 ID，图标按行缓存。与行上已显示的内容相同的文本、日期、颜色和图标不再设置，
+ * 因此把同一行重新绑定到显示它的视图上（例如数据集变化后刷新列表）不分配对象。
+ */
 public class MyCursorAdapter extends SimpleCursorAdapter {
 
+    // 内置分类的图标，与 NoteCategories.BUILTIN_IDS 一一对应；用户定义的分类使用最后一个图标
+    private static final int[] CATEGORY_ICONS = {
+            R.drawable.ic_category_study,
+            R.drawable.ic_category_life,
+            R.drawable.ic_category_task
+    };
+
+    // 行视图刚创建、尚未设置过图标
+    private static final int ICON_UNKNOWN = -2;
+
+    /**
+     * 一行中的视图，以及绑定时复用的缓冲区。
+     */
+    static final class RowHolder {
+        final TextView title;
+        final TextView snippet;
+        final TextView date;
+        final ImageView category;
+
+        // 读取行时写入的缓冲区，以及文本视图正在显示的缓冲区。文本变化时交换两者，
+        // 文本视图持有的数组因此不会在显示期间被改写
+        CharArrayBuffer titleBuffer = new CharArrayBuffer(64);
+        CharArrayBuffer snippetBuffer = new CharArrayBuffer(128);
+        CharArrayBuffer shownTitle = new CharArrayBuffer(64);
+        CharArrayBuffer shownSnippet = new CharArrayBuffer(128);
+
+        // 最近一次读取的行；没有分类时 icon 为 -1
+        long modified;
+        int color;
+        int icon;
+
+        // 已显示的日期文本、背景颜色和图标，没有变化时不再设置。
+        // 图标为 -1 表示没有图标，初始的 ICON_UNKNOWN 表示显示的是布局中的图标
+        String shownDate;
+        boolean colorShown;
+        int shownColor;
+        int shownIcon = ICON_UNKNOWN;
+
+        // 按需加载的分类图标，同一行反复使用
+        final Drawable[] icons = new Drawable[CATEGORY_ICONS.length];
+
+        RowHolder(View view) {
+            title = (TextView) view.findViewById(R.id.tv_title);
+            snippet = (TextView) view.findViewById(R.id.tv_snippet);
+            date = (TextView) view.findViewById(R.id.tv_date);
+            category = (ImageView) view.findViewById(R.id.iv_category);
+        }
+    }
+
+    // 列在当前光标中的索引，光标中没有的列为 -1
+    private int mTitleColumn = -1;
+    private int mSnippetColumn = -1;
+    private int mModifiedColumn = -1;
+    private int mColorColumn = -1;
+    private int mCategoryColumn = -1;
+
+    // 按分钟缓存的日期文本，所有行共用
+    private final NoteDateLabels mDateLabels;
+
     public MyCursorAdapter(Context context, int layout, Cursor c,
                            String[] from, int[] to) {
         super(context, layout, c, from, to);
+        mDateLabels = new NoteDateLabels(context, context.getResources().getBoolean(R.bool.relative_dates));
+        findColumns(c);
+    }
+
+    public MyCursorAdapter(Context context, int layout, Cursor c,
+                           String[] from, int[] to, int flags) {
+        super(context, layout, c, from, to, flags);
+        mDateLabels = new NoteDateLabels(context, context.getResources().getBoolean(R.bool.relative_dates));
+        findColumns(c);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor c) {
+        findColumns(c);
+        return super.swapCursor(c);
+    }
+
+    private void findColumns(Cursor c) {
+        if (c == null) {
+            return;
+        }
+        mTitleColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+        mSnippetColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        mModifiedColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        mColorColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACK_COLOR);
+        mCategoryColumn = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+    }
+
+    /**
+     * 时钟推进到 now。相对时间的文本因此改变时重新绑定列表，每分钟最多一次。
+     */
+    public void onClockTick(long now) {
+        if (mDateLabels.tick(now)) {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * 时区或系统时间改变后重新生成日期文本。
+     */
+    public void onTimeChanged(long now) {
+        mDateLabels.tick(now);
+        mDateLabels.reset();
+        notifyDataSetChanged();
+    }
+
+    NoteDateLabels getDateLabels() {
+        return mDateLabels;
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = super.newView(context, cursor, parent);
+        view.setTag(new RowHolder(view));
+        return view;
     }
 
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        super.bindView(view, context, cursor);
+        RowHolder holder = (RowHolder) view.getTag();
+        readRow(cursor, holder);
 
         // 设置背景颜色
-        int x = cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACK_COLOR));
-        switch (x) {
-            case NotePad.Notes.DEFAULT_COLOR:
-                view.setBackgroundColor(Color.rgb(255, 255, 255));
-                break;
+        if (!holder.colorShown || holder.color != holder.shownColor) {
+            view.setBackgroundColor(holder.color);
+            holder.shownColor = holder.color;
+            holder.colorShown = true;
+        }
+
+        // 设置标题和内容预览
+        if (holder.title != null && !sameText(holder.titleBuffer, holder.shownTitle)) {
+            holder.title.setText(holder.titleBuffer.data, 0, holder.titleBuffer.sizeCopied);
+            CharArrayBuffer shown = holder.titleBuffer;
+            holder.titleBuffer = holder.shownTitle;
+            holder.shownTitle = shown;
+        }
+        if (holder.snippet != null && !sameText(holder.snippetBuffer, holder.shownSnippet)) {
+            holder.snippet.setText(holder.snippetBuffer.data, 0, holder.snippetBuffer.sizeCopied);
+            CharArrayBuffer shown = holder.snippetBuffer;
+            holder.snippetBuffer = holder.shownSnippet;
+            holder.shownSnippet = shown;
+        }
+
+        // 设置日期
+        if (holder.date != null) {
+            // 同一分钟的行共用同一个实例，比较引用即可
+            String date = mDateLabels.label(holder.modified);
+            if (date != holder.shownDate) {
+                holder.date.setText(date);
+                holder.shownDate = date;
+            }
+        }
+
+        // 设置分类图标，没有分类的行不显示图标
+        if (holder.category != null && holder.icon != holder.shownIcon) {
+            Drawable icon = null;
+            if (holder.icon >= 0) {
+                icon = holder.icons[holder.icon];
+                if (icon == null) {
+                    icon = context.getResources().getDrawable(CATEGORY_ICONS[holder.icon]);
+                    holder.icons[holder.icon] = icon;
+                }
+            }
+            holder.category.setImageDrawable(icon);
+            holder.shownIcon = holder.icon;
+        }
+    }
+
+    /**
+     * 把行显示为空的占位行，用于内容尚未读取到的位置。
+     */
+    void bindPlaceholder(View view) {
+        RowHolder holder = (RowHolder) view.getTag();
+        view.setBackgroundColor(backgroundColor(NotePad.Notes.DEFAULT_COLOR));
+        holder.colorShown = false;
+        if (holder.title != null) {
+            holder.title.setText(null);
+            holder.shownTitle.sizeCopied = 0;
+        }
+        if (holder.snippet != null) {
+            holder.snippet.setText(null);
+            holder.shownSnippet.sizeCopied = 0;
+        }
+        if (holder.date != null) {
+            holder.date.setText(null);
+            holder.shownDate = null;
+        }
+        if (holder.category != null) {
+            holder.category.setImageDrawable(null);
+            holder.shownIcon = -1;
+        }
+    }
+
+    /**
+     * 把光标当前行的值读入 holder，不分配对象（缓冲区不够大时除外）。
+     */
+    void readRow(Cursor cursor, RowHolder holder) {
+        copyString(cursor, mTitleColumn, holder.titleBuffer);
+        copyString(cursor, mSnippetColumn, holder.snippetBuffer);
+        holder.modified = mModifiedColumn >= 0 ? cursor.getLong(mModifiedColumn) : 0;
+        holder.color = backgroundColor(mColorColumn >= 0 ? cursor.getInt(mColorColumn) : NotePad.Notes.DEFAULT_COLOR);
+
+        holder.icon = -1;
+        if (mCategoryColumn >= 0 && !cursor.isNull(mCategoryColumn)) {
+            int builtin = NoteCategories.builtinIndex(cursor.getLong(mCategoryColumn));
+            holder.icon = builtin >= 0 ? builtin : CATEGORY_ICONS.length - 1;
+        }
+    }
+
+    private static boolean sameText(CharArrayBuffer a, CharArrayBuffer b) {
+        if (a.sizeCopied != b.sizeCopied) {
+            return false;
+        }
+        for (int i = 0; i < a.sizeCopied; i++) {
+            if (a.data[i] != b.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyString(Cursor cursor, int column, CharArrayBuffer buffer) {
+        if (column >= 0) {
+            cursor.copyStringToBuffer(column, buffer);
+        } else {
+            buffer.sizeCopied = 0;
+        }
+    }
+
+    private static int backgroundColor(int color) {
+        switch (color) {
             case NotePad.Notes.YELLOW_COLOR:
-                view.setBackgroundColor(Color.rgb(247, 216, 133));
-                break;
+                return Color.rgb(247, 216, 133);
             case NotePad.Notes.BLUE_COLOR:
-                view.setBackgroundColor(Color.rgb(165, 202, 237));
-                break;
+                return Color.rgb(165, 202, 237);
             case NotePad.Notes.GREEN_COLOR:
-                view.setBackgroundColor(Color.rgb(161, 214, 174));
-                break;
+                return Color.rgb(161, 214, 174);
             case NotePad.Notes.RED_COLOR:
-                view.setBackgroundColor(Color.rgb(244, 149, 133));
-                break;
+                return Color.rgb(244, 149, 133);
+            case NotePad.Notes.DEFAULT_COLOR:
             default:
-                view.setBackgroundColor(Color.rgb(255, 255, 255));
-                break;
-        }
-
-        // 设置日期
-        TextView dateView = (TextView) view.findViewById(R.id.tv_date);
-        if (dateView != null) {
-            long timestamp = cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
-            String formattedDate = sdf.format(new Date(timestamp));
-            dateView.setText(formattedDate);
-        }
-
-        // 设置分类图标
-        String category = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY));
-        ImageView categoryIcon = (ImageView) view.findViewById(R.id.iv_category);
-
-        if (category != null) {
-            switch (category) {
-                case "学习":
-                    categoryIcon.setImageResource(R.drawable.ic_category_study);  // 替换成你自己的图标资源
-                    break;
-                case "生活":
-                    categoryIcon.setImageResource(R.drawable.ic_category_life);   // 替换成你自己的图标资源
-                    break;
-                case "任务":
-                    categoryIcon.setImageResource(R.drawable.ic_category_task);  // 替换成你自己的图标资源
-                    break;
-                default:
-                    categoryIcon.setImageResource(R.drawable.ic_category_task);  // 默认图标
-                    break;
-            }
+                return Color.rgb(255, 255, 255);
         }
     }
-}
\ No newline at end of file
+}
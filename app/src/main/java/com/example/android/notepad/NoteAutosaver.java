@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 一条笔记的自动保存：合并连续的编辑，在后台线程按顺序写入。
+ *
+ * 每次编辑调用 {@link #onEdit()}，防抖窗口内没有新的编辑时，在 UI 线程上从
+ * {@link Source#autosaveValues()} 取得当前的值并排队写入。写入在所有笔记共用的一个后台线程上
+ * 按提交顺序执行，因此同一条笔记的新值不会被旧值覆盖。排队中尚未开始的写入会与新提交的值合并，
+ * 后台线程落后时每条笔记最多只有一次等待中的写入。
+ * <p>
+ * 活动结束时调用 {@link #flush(ContentValues)}，在 UI 线程上等待全部写入完成；
+ * 其余情况下的保存都不阻塞 UI 线程。
+ * <p>
+ * 写入的结果通过 {@link Listener} 回到 UI 线程。带有内容修订号的写入只有成功之后，
+ * 编辑器才能把这个修订作为已保存的内容；写入失败时内容仍是未保存的，下一次保存会重新写入。
+ * <p>
+ * 除 {@link Store#save} 之外，所有方法都必须在 UI 线程上调用。
+ */
+final class NoteAutosaver {
+    // 用于日志记录和调试
+    private static final String TAG = "NoteAutosaver";
+
+    /**
+     * 提供要保存的值
+     */
+    interface Source {
+        /**
+         * 在 UI 线程上返回笔记当前要保存的值；没有可保存的内容时返回 null。
+         */
+        ContentValues autosaveValues();
+
+        /**
+         * 在 UI 线程上紧接着 {@link #autosaveValues()} 调用，返回这些值中内容的修订号；
+         * 值中没有内容时返回 {@link #NO_REVISION}。
+         */
+        long autosaveRevision();
+    }
+
+    /**
+     * 执行写入
+     */
+    interface Store {
+        /**
+         * 在后台线程上把值写入笔记。
+         *
+         * @return 写入之后笔记行的修改时间，用来识别这次写入的内容；无法得到时返回
+         *         {@link NoteDocument#NO_MODIFIED}。
+         */
+        long save(Uri uri, ContentValues values);
+    }
+
+    /**
+     * 在 UI 线程上接收写入的结果
+     */
+    interface Listener {
+        /**
+         * 值已经写入。revision 是其中内容的修订号，没有内容时为 {@link #NO_REVISION}；
+         * modified 是 {@link Store#save} 返回的修改时间。
+         */
+        void onSaved(ContentValues values, long revision, long modified);
+
+        /**
+         * 写入失败，数据库中仍是之前的值。
+         */
+        void onSaveFailed(ContentValues values, long revision, RuntimeException e);
+    }
+
+    /**
+     * 要写入的值中没有带修订号的内容
+     */
+    static final long NO_REVISION = -1;
+
+    // 所有笔记共用的写入线程。写入按提交顺序执行，后提交的值总是最后写入。
+    private static ExecutorService sWriter;
+
+    private final Uri mUri;
+    private final Source mSource;
+    private final Store mStore;
+    private final Listener mListener;
+    private final long mDebounceMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 已排队但写入线程尚未取走的值，由 this 保护
+    private ContentValues mPending;
+    // mPending 中内容的修订号，由 this 保护
+    private long mPendingRevision = NO_REVISION;
+
+    private final Runnable mAutosave = new Runnable() {
+        @Override
+        public void run() {
+            ContentValues values = mSource.autosaveValues();
+            if (values != null) {
+                enqueue(values, mSource.autosaveRevision());
+            }
+        }
+    };
+
+    /**
+     * @param uri            要保存的笔记
+     * @param source         提供当前值的回调
+     * @param store          执行写入的回调
+     * @param listener       接收写入结果的回调，可以为 null
+     * @param debounceMillis 防抖窗口，窗口内的连续编辑只会触发一次保存
+     */
+    NoteAutosaver(Uri uri, Source source, Store store, Listener listener, long debounceMillis) {
+        mUri = uri;
+        mSource = source;
+        mStore = store;
+        mListener = listener;
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * 记录一次编辑。防抖窗口结束后保存；窗口内的新编辑会推迟保存。
+     */
+    void onEdit() {
+        mHandler.removeCallbacks(mAutosave);
+        mHandler.postDelayed(mAutosave, mDebounceMillis);
+    }
+
+    /**
+     * 跳过防抖窗口，把值排队写入，不等待写入完成。
+     */
+    void save(ContentValues values) {
+        save(values, NO_REVISION);
+    }
+
+    /**
+     * 同 {@link #save(ContentValues)}，revision 是值中内容的修订号。
+     */
+    void save(ContentValues values, long revision) {
+        mHandler.removeCallbacks(mAutosave);
+        enqueue(values, revision);
+    }
+
+    /**
+     * 把值排队写入，并等待此前提交的全部写入完成。values 为 null 时只等待。
+     */
+    void flush(ContentValues values) {
+        flush(values, NO_REVISION);
+    }
+
+    /**
+     * 同 {@link #flush(ContentValues)}，revision 是值中内容的修订号。
+     * 写入结果在此方法返回之后才送到 {@link Listener}。
+     */
+    void flush(ContentValues values, long revision) {
+        mHandler.removeCallbacks(mAutosave);
+        if (values != null) {
+            enqueue(values, revision);
+        }
+        await();
+    }
+
+    /**
+     * 丢弃等待中的编辑和尚未开始的写入，并等待正在执行的写入完成。删除笔记之前调用。
+     */
+    void discard() {
+        mHandler.removeCallbacks(mAutosave);
+        synchronized (this) {
+            mPending = null;
+            mPendingRevision = NO_REVISION;
+        }
+        await();
+    }
+
+    private void enqueue(ContentValues values, long revision) {
+        synchronized (this) {
+            // 修订号跟随排队的内容：没有内容的值合并进来时保留之前的修订号
+            if (revision != NO_REVISION || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                mPendingRevision = revision;
+            }
+            if (mPending != null) {
+                // 上一次提交还在排队，合并后由它一起写入
+                mPending.putAll(values);
+                return;
+            }
+            mPending = new ContentValues(values);
+        }
+        writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues values;
+                final long revision;
+                synchronized (NoteAutosaver.this) {
+                    values = mPending;
+                    revision = mPendingRevision;
+                    mPending = null;
+                    mPendingRevision = NO_REVISION;
+                }
+                if (values == null) {
+                    // 已被丢弃
+                    return;
+                }
+                RuntimeException failure = null;
+                long modified = NoteDocument.NO_MODIFIED;
+                try {
+                    modified = mStore.save(mUri, values);
+                } catch (RuntimeException e) {
+                    // 写入线程是共用的，一次失败不能影响其他笔记的保存
+                    Log.e(TAG, "无法保存笔记 " + mUri, e);
+                    failure = e;
+                }
+                report(values, revision, modified, failure);
+            }
+        });
+    }
+
+    private void report(final ContentValues values, final long revision, final long modified,
+            final RuntimeException failure) {
+        if (mListener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (failure == null) {
+                    mListener.onSaved(values, revision, modified);
+                } else {
+                    mListener.onSaveFailed(values, revision, failure);
+                }
+            }
+        });
+    }
+
+    // 写入线程按顺序执行，空任务完成时之前提交的写入都已完成
+    private static void await() {
+        Future<?> barrier = writer().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService writer() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("NoteAutosaver") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+        }
+        return sWriter;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+/**
+ * 分类字典表 {@link NotePad.Categories}。
+ *
+ * 笔记只保存分类的整数 ID（{@link NotePad.Notes#COLUMN_NAME_CATEGORY_ID}），按分类排序和筛选都是
+ * 整数索引上的扫描，列表绑定行时也只比较整数。内置的三个分类有固定的 ID 和名称，显示时使用本地化的文本；
+ * 其余分类由用户定义，名称即显示的文本。
+ * <p>
+ * 客户端仍然可以按名称写入 {@link NotePad.Notes#COLUMN_NAME_CATEGORY}，提供者在写入前把它转换为 ID，
+ * 字典中没有的名称会被加入字典。早期版本的编辑器写入的是内置分类的中文显示文本，这些文本同样被识别为内置分类。
+ */
+final class NoteCategories {
+
+    /**
+     * 内置分类的 ID、名称和显示文本，按 ID 顺序排列
+     */
+    static final long[] BUILTIN_IDS = {
+            NotePad.Categories.ID_STUDY, NotePad.Categories.ID_LIFE, NotePad.Categories.ID_TASK
+    };
+    private static final String[] BUILTIN_NAMES = {
+            NotePad.Notes.CATEGORY_STUDY, NotePad.Notes.CATEGORY_LIFE, NotePad.Notes.CATEGORY_TASK
+    };
+    private static final int[] BUILTIN_LABELS = {
+            R.string.menu_category_study, R.string.menu_category_life, R.string.menu_category_task
+    };
+
+    // 早期版本的编辑器和列表写入的显示文本，与 BUILTIN_NAMES 一一对应
+    private static final String[] LEGACY_LABELS = { "学习", "生活", "任务" };
+
+    // 此类不能被实例化
+    private NoteCategories() {
+    }
+
+    /**
+     * 创建分类字典表并写入内置分类。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + NotePad.Categories.TABLE_NAME + " ("
+                + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Categories.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE"
+                + ");");
+        for (int i = 0; i < BUILTIN_IDS.length; i++) {
+            db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                    + NotePad.Categories._ID + ", " + NotePad.Categories.COLUMN_NAME_NAME
+                    + ") VALUES (?, ?)", new Object[] { BUILTIN_IDS[i], BUILTIN_NAMES[i] });
+        }
+    }
+
+    /**
+     * 把 _id 在 (afterId, throughId] 范围内、以文本保存分类的笔记转换为字典中的 ID，并清空文本列。
+     * 字典中没有的名称先加入字典。升级之后已经按 ID 写入分类的笔记保留其 ID。
+     * 供分类 ID 的回填任务分块调用，可以重复执行。
+     */
+    static void fillIds(SQLiteDatabase db, long afterId, long throughId) {
+        String name = canonicalNameSql(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        String range = NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ? AND "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " IS NOT NULL";
+        Object[] args = new Object[] { afterId, throughId };
+        db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                + NotePad.Categories.COLUMN_NAME_NAME + ") SELECT DISTINCT " + name
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + range, args);
+        db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = COALESCE("
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", (SELECT " + NotePad.Categories._ID
+                + " FROM " + NotePad.Categories.TABLE_NAME + " WHERE "
+                + NotePad.Categories.COLUMN_NAME_NAME + " = " + name + ")), "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " = NULL"
+                + " WHERE " + range, args);
+    }
+
+    /**
+     * 回填完成之前读取笔记分类 ID 的 SQL 表达式：尚未转换的笔记按旧的文本分类列在字典中解析。
+     * 名称还没有被回填加入字典的用户分类解析为 NULL，其名称由 {@link #legacyNameSql()} 给出。
+     */
+    static String legacyIdSql() {
+        String notes = NotePad.Notes.TABLE_NAME + ".";
+        return "COALESCE(" + notes + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", (SELECT "
+                + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME + " WHERE "
+                + NotePad.Categories.COLUMN_NAME_NAME + " = "
+                + canonicalNameSql(notes + NotePad.Notes.COLUMN_NAME_CATEGORY) + "))";
+    }
+
+    /**
+     * 回填完成之前读取笔记分类名称的 SQL 表达式：尚未转换的笔记使用旧的文本分类列。
+     */
+    static String legacyNameSql() {
+        String notes = NotePad.Notes.TABLE_NAME + ".";
+        return "COALESCE((SELECT " + NotePad.Categories.COLUMN_NAME_NAME + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.TABLE_NAME + "."
+                + NotePad.Categories._ID + " = " + notes + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + "), "
+                + canonicalNameSql(notes + NotePad.Notes.COLUMN_NAME_CATEGORY) + ")";
+    }
+
+    // 把旧的显示文本映射为内置分类名称的 SQL 表达式
+    private static String canonicalNameSql(String column) {
+        StringBuilder sql = new StringBuilder("CASE ").append(column);
+        for (int i = 0; i < LEGACY_LABELS.length; i++) {
+            sql.append(" WHEN ");
+            DatabaseUtils.appendEscapedSQLString(sql, LEGACY_LABELS[i]);
+            sql.append(" THEN ");
+            DatabaseUtils.appendEscapedSQLString(sql, BUILTIN_NAMES[i]);
+        }
+        return sql.append(" ELSE ").append(column).append(" END").toString();
+    }
+
+    /**
+     * 如果 values 中按名称写入了分类，把它替换为分类 ID。名称为 null 或空白时分类 ID 为 NULL。
+     */
+    static void resolveName(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return;
+        }
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (name == null || TextUtils.getTrimmedLength(name) == 0) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        } else {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, idForName(db, name));
+        }
+    }
+
+    /**
+     * 返回名称对应的分类 ID，字典中没有时加入字典。
+     */
+    static long idForName(SQLiteDatabase db, String name) {
+        name = canonicalName(name.trim());
+        for (int i = 0; i < BUILTIN_NAMES.length; i++) {
+            if (BUILTIN_NAMES[i].equals(name)) {
+                return BUILTIN_IDS[i];
+            }
+        }
+
+        String[] args = new String[] { name };
+        db.execSQL("INSERT OR IGNORE INTO " + NotePad.Categories.TABLE_NAME + " ("
+                + NotePad.Categories.COLUMN_NAME_NAME + ") VALUES (?)", args);
+        return DatabaseUtils.longForQuery(db, "SELECT " + NotePad.Categories._ID + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME
+                + " = ?", args);
+    }
+
+    /**
+     * 把用户定义的分类加入字典，返回新分类的 ID。名称是内置分类或已在字典中时返回 -1。
+     */
+    static long addName(SQLiteDatabase db, String name) {
+        name = canonicalName(name.trim());
+        for (int i = 0; i < BUILTIN_NAMES.length; i++) {
+            if (BUILTIN_NAMES[i].equals(name)) {
+                return -1;
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+        return db.insertWithOnConflict(NotePad.Categories.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private static String canonicalName(String name) {
+        for (int i = 0; i < LEGACY_LABELS.length; i++) {
+            if (LEGACY_LABELS[i].equals(name)) {
+                return BUILTIN_NAMES[i];
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 内置分类在 {@link #BUILTIN_IDS} 中的位置；不是内置分类时返回 -1。
+     */
+    static int builtinIndex(long id) {
+        for (int i = 0; i < BUILTIN_IDS.length; i++) {
+            if (BUILTIN_IDS[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 分类的显示文本：内置分类使用本地化的文本，用户定义的分类使用其名称。
+     */
+    static CharSequence label(Context context, long id, String name) {
+        int builtin = builtinIndex(id);
+        return builtin >= 0 ? context.getText(BUILTIN_LABELS[builtin]) : name;
+    }
+}
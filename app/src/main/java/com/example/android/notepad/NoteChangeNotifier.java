@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * 合并笔记变更通知。
+ *
+ * 一个短时间窗口内的写入（例如编辑器暂停时先后保存内容和分类）只发送一次通知；
+ * 批处理中的写入在事务提交后发送一次通知，回滚时丢弃。通知 URI 携带受影响的笔记 ID
+ * （{@link NotePad.Notes#CHANGE_PARAMETER_IDS}）以及被修改的列
+ * （{@link NotePad.Notes#CHANGE_PARAMETER_COLUMNS}），观察者可以据此只刷新变化的行。
+ * 只涉及一条笔记时，通知发送到该笔记的 URI，只有观察该笔记或整个笔记目录的观察者会收到。
+ */
+final class NoteChangeNotifier {
+
+    /**
+     * 通知中最多列出的笔记 ID 数。超过时省略 ID，观察者应当整体刷新。
+     */
+    static final int MAX_NOTIFIED_IDS = 100;
+
+    /**
+     * 一组尚未发送的变更。
+     */
+    static final class Changes {
+        // 受影响的笔记 ID
+        final TreeSet<Long> ids = new TreeSet<Long>();
+
+        // 被修改的列
+        final TreeSet<String> columns = new TreeSet<String>();
+
+        // 是否有无法逐一列出的行发生了变化（按条件批量更新或删除）
+        boolean unknownRows;
+
+        // 是否有行被插入或删除。此时列的集合没有意义，列表需要重新查询。
+        boolean structural;
+
+        boolean isEmpty() {
+            return ids.isEmpty() && !unknownRows && !structural;
+        }
+
+        void addAll(Changes other) {
+            ids.addAll(other.ids);
+            columns.addAll(other.columns);
+            unknownRows |= other.unknownRows;
+            structural |= other.structural;
+        }
+
+        /**
+         * 构造携带这组变更的通知 URI。
+         */
+        Uri toUri() {
+            boolean listIds = !unknownRows && ids.size() <= MAX_NOTIFIED_IDS;
+            Uri.Builder builder = listIds && ids.size() == 1
+                    ? ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids.first()).buildUpon()
+                    : NotePad.Notes.CONTENT_URI.buildUpon();
+            if (listIds) {
+                builder.appendQueryParameter(NotePad.Notes.CHANGE_PARAMETER_IDS, TextUtils.join(",", ids));
+            }
+            if (!structural) {
+                builder.appendQueryParameter(NotePad.Notes.CHANGE_PARAMETER_COLUMNS,
+                        TextUtils.join(",", columns));
+            }
+            return builder.build();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mWindowMillis;
+
+    // 当前线程正在执行的批处理中累积的变更；没有批处理时为 null
+    private final ThreadLocal<Changes> mBatch = new ThreadLocal<Changes>();
+
+    // 等待窗口结束后发送的变更，由 this 保护
+    private Changes mPending;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NoteChangeNotifier(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * 插入了一条笔记。
+     */
+    void rowInserted(long id) {
+        Changes changes = new Changes();
+        changes.ids.add(id);
+        changes.structural = true;
+        record(changes);
+    }
+
+    /**
+     * 删除了一条笔记。
+     */
+    void rowDeleted(long id) {
+        rowInserted(id);
+    }
+
+    /**
+     * 更新了一条笔记的指定列。
+     */
+    void rowUpdated(long id, Collection<String> columns) {
+        Changes changes = new Changes();
+        changes.ids.add(id);
+        changes.columns.addAll(columns);
+        record(changes);
+    }
+
+    /**
+     * 按条件更新了若干笔记的指定列。
+     */
+    void rowsUpdated(Collection<String> columns) {
+        Changes changes = new Changes();
+        changes.unknownRows = true;
+        changes.columns.addAll(columns);
+        record(changes);
+    }
+
+    /**
+     * 按条件删除了若干笔记。
+     */
+    void rowsDeleted() {
+        Changes changes = new Changes();
+        changes.unknownRows = true;
+        changes.structural = true;
+        record(changes);
+    }
+
+    /**
+     * 开始在当前线程上累积一个批处理的变更。
+     */
+    void beginBatch() {
+        mBatch.set(new Changes());
+    }
+
+    /**
+     * 结束当前线程的批处理。提交成功时立即发送批处理及之前等待中的变更，否则丢弃批处理的变更。
+     */
+    void endBatch(boolean committed) {
+        Changes batch = mBatch.get();
+        mBatch.set(null);
+        if (committed && batch != null && !batch.isEmpty()) {
+            synchronized (this) {
+                pendingLocked().addAll(batch);
+            }
+            flush();
+        }
+    }
+
+    private void record(Changes changes) {
+        Changes batch = mBatch.get();
+        if (batch != null) {
+            batch.addAll(changes);
+            return;
+        }
+
+        synchronized (this) {
+            boolean scheduled = mPending != null;
+            pendingLocked().addAll(changes);
+            if (!scheduled) {
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+    }
+
+    private Changes pendingLocked() {
+        if (mPending == null) {
+            mPending = new Changes();
+        }
+        return mPending;
+    }
+
+    /**
+     * 立即发送等待中的变更。
+     */
+    void flush() {
+        Changes changes;
+        synchronized (this) {
+            changes = mPending;
+            mPending = null;
+            mHandler.removeCallbacks(mFlush);
+        }
+        if (changes != null && !changes.isEmpty()) {
+            mResolver.notifyChange(changes.toUri(), null);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * 大笔记内容的分块存储。
+ *
+ * 超过 {@link #THRESHOLD} 个字符的笔记内容不保存在笔记表的内容列中，而是切分为块，
+ * 按 (笔记 ID, 序号) 保存在 {@link #TABLE_NAME} 表中，每块记录自己的长度；
+ * 笔记表的内容列为 NULL，{@link NotePad.Notes#COLUMN_NAME_CHUNK_COUNT} 记录块数。
+ * 这样查询笔记行时不会把几 MB 的内容装入 CursorWindow，读取方通过流逐块读取内容。
+ * <p>
+ * 块的长度不是固定的。写入时按已记录的长度从两端比较，跳过开头和结尾内容未变的块，
+ * 只改写它们之间的块；被改写的块保持原有的边界，长度的变化由其中第一块吸收。
+ * 因此在中间插入或删除文本只改写被编辑的那一块，其后的块不会移位。块超过
+ * {@link #MAX_CHUNK_SIZE} 个字符时，被改写的区域重新按 {@link #CHUNK_SIZE} 切分，
+ * 块数改变时其后的块需要改写序号。一次写入中相隔较远的多处修改会改写它们之间的全部块。
+ * 调用者仍然传入完整的内容；节省的是数据库的写入，不是比较时的读取。
+ * <p>
+ * 在记录长度之前写入的块没有长度，这样的笔记下次写入时整体重写一次。
+ * <p>
+ * 笔记被删除，或内容改写为不需要分块的长度时，触发器会删除它的块。
+ * 逐块读取不在同一个事务中进行，读取期间笔记被改写时，读取方可能得到新旧块的混合。
+ */
+final class NoteChunkStore {
+
+    /**
+     * 保存内容块的表名
+     */
+    static final String TABLE_NAME = "note_chunks";
+
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+    static final String COLUMN_NAME_SEQ = "seq";
+    static final String COLUMN_NAME_CONTENT = "content";
+
+    /**
+     * 块的字符数（UTF-16 代码单元）
+     */
+    static final String COLUMN_NAME_LENGTH = "length";
+
+    /**
+     * 切分内容时每块的最大字符数。单块远小于 CursorWindow，读取时一次只需要一块在内存中。
+     */
+    static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * 编辑使块变长时，块在重新切分之前的最大字符数
+     */
+    static final int MAX_CHUNK_SIZE = 2 * CHUNK_SIZE;
+
+    /**
+     * 内容超过该字符数的笔记按块存储
+     */
+    static final int THRESHOLD = 128 * 1024;
+
+    private static final String INSERT_SQL = "INSERT INTO " + TABLE_NAME + " ("
+            + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SEQ + ", " + COLUMN_NAME_CONTENT + ", "
+            + COLUMN_NAME_LENGTH + ") VALUES (?, ?, ?, ?)";
+
+    // 内容相同时 WHERE 条件不成立，块不会被改写
+    private static final String UPDATE_SQL = "UPDATE " + TABLE_NAME + " SET "
+            + COLUMN_NAME_CONTENT + " = ?, " + COLUMN_NAME_LENGTH + " = ? WHERE "
+            + COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SEQ + " = ? AND "
+            + COLUMN_NAME_CONTENT + " IS NOT ?";
+
+    // 此类不能被实例化
+    private NoteChunkStore() {
+    }
+
+    /**
+     * 判断笔记内容是否需要按块存储。
+     */
+    static boolean isLarge(String note) {
+        return note != null && note.length() > THRESHOLD;
+    }
+
+    /**
+     * 创建内容块表，以及在笔记被删除或内容不再分块时清理内容块的触发器。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SEQ + " INTEGER NOT NULL,"
+                + COLUMN_NAME_CONTENT + " TEXT NOT NULL,"
+                + COLUMN_NAME_LENGTH + " INTEGER,"
+                + "PRIMARY KEY (" + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SEQ + ")"
+                + ");");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_chunks_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME
+                + " BEGIN DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + "; END;");
+
+        // 内容不再分块时（保存在内容列中或被压缩），提供者把块数置为 0
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_chunks_inline AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " ON " + NotePad.Notes.TABLE_NAME
+                + " WHEN new." + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " = 0"
+                + " BEGIN DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = new." + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * 把笔记内容写为内容块，只改写发生变化的块，并删除多余的块。调用者负责事务。
+     *
+     * @return 块数。
+     */
+    static int write(SQLiteDatabase db, long noteId, String text) {
+        int[] lengths = readLengths(db, noteId);
+        if (lengths == null) {
+            // 没有记录长度的块，整体重写
+            db.delete(TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", new String[] { Long.toString(noteId) });
+            lengths = new int[0];
+        }
+
+        // 开头和结尾内容未变的块
+        int first = 0;
+        int start = 0;
+        while (first < lengths.length && start + lengths[first] <= text.length()
+                && chunkEquals(db, noteId, first, text, start, lengths[first])) {
+            start += lengths[first++];
+        }
+        int last = lengths.length;
+        int end = text.length();
+        while (last > first && end - lengths[last - 1] >= start
+                && chunkEquals(db, noteId, last - 1, text, end - lengths[last - 1], lengths[last - 1])) {
+            end -= lengths[--last];
+        }
+
+        // 块 [first, last) 改写为 text[start, end)
+        int[] pieces = keepBoundaries(lengths, first, last, text, start, end);
+        if (pieces == null) {
+            pieces = split(text, start, end);
+        }
+
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        SQLiteStatement update = db.compileStatement(UPDATE_SQL);
+        try {
+            String id = Long.toString(noteId);
+            int shift = pieces.length - (last - first);
+            if (shift != 0) {
+                db.delete(TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SEQ + " >= ? AND "
+                        + COLUMN_NAME_SEQ + " < ?", new String[] { id, Integer.toString(first),
+                        Integer.toString(last) });
+                // 其后的块先移到负的序号再移回，避免与尚未移动的块的主键冲突
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_SEQ + " = -1 - ("
+                        + COLUMN_NAME_SEQ + " + ?) WHERE " + COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + COLUMN_NAME_SEQ + " >= ?", new Object[] { shift, noteId, last });
+                db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_SEQ + " = -1 - "
+                        + COLUMN_NAME_SEQ + " WHERE " + COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + COLUMN_NAME_SEQ + " < 0", new Object[] { noteId });
+            }
+
+            int offset = start;
+            for (int i = 0; i < pieces.length; i++) {
+                String chunk = text.substring(offset, offset + pieces[i]);
+                if (shift != 0) {
+                    insert.bindLong(1, noteId);
+                    insert.bindLong(2, first + i);
+                    insert.bindString(3, chunk);
+                    insert.bindLong(4, chunk.length());
+                    insert.executeInsert();
+                } else {
+                    update.bindString(1, chunk);
+                    update.bindLong(2, chunk.length());
+                    update.bindLong(3, noteId);
+                    update.bindLong(4, first + i);
+                    update.bindString(5, chunk);
+                    update.executeUpdateDelete();
+                }
+                offset += pieces[i];
+            }
+            return lengths.length + shift;
+        } finally {
+            insert.close();
+            update.close();
+        }
+    }
+
+    /**
+     * 按序号顺序读取笔记各块的长度。
+     *
+     * @return 各块的长度；有块没有记录长度时返回 null。
+     */
+    private static int[] readLengths(SQLiteDatabase db, long noteId) {
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_LENGTH },
+                COLUMN_NAME_NOTE_ID + " = ?", new String[] { Long.toString(noteId) },
+                null, null, COLUMN_NAME_SEQ);
+        try {
+            int[] lengths = new int[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                if (c.isNull(0)) {
+                    return null;
+                }
+                lengths[i] = c.getInt(0);
+            }
+            return lengths;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static boolean chunkEquals(SQLiteDatabase db, long noteId, int seq, String text,
+                                       int start, int length) {
+        String chunk = readChunk(db, noteId, seq);
+        return chunk != null && chunk.length() == length && text.regionMatches(start, chunk, 0, length);
+    }
+
+    /**
+     * 保持块 [first, last) 原有的边界，长度的变化由第一块吸收。
+     *
+     * @return 各块的新长度；第一块因此超出范围，或边界落在代理对中间时返回 null。
+     */
+    private static int[] keepBoundaries(int[] lengths, int first, int last, String text,
+                                        int start, int end) {
+        if (first == last) {
+            return null;
+        }
+        int[] pieces = Arrays.copyOfRange(lengths, first, last);
+        int oldLength = 0;
+        for (int length : pieces) {
+            oldLength += length;
+        }
+        pieces[0] += (end - start) - oldLength;
+        if (pieces[0] < 1 || pieces[0] > MAX_CHUNK_SIZE) {
+            return null;
+        }
+        int offset = start;
+        for (int i = 0; i < pieces.length - 1; i++) {
+            offset += pieces[i];
+            if (Character.isHighSurrogate(text.charAt(offset - 1))) {
+                return null;
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * 把 text[start, end) 平均切分为不超过 {@link #CHUNK_SIZE} 个字符的块。
+     * 不在代理对中间切分，否则两半都无法编码为 UTF-8。
+     *
+     * @return 各块的长度。
+     */
+    private static int[] split(String text, int start, int end) {
+        int count = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int[] pieces = new int[count];
+        int offset = start;
+        for (int i = 0; i < count; i++) {
+            int next = i == count - 1 ? end : start + (int) ((long) (end - start) * (i + 1) / count);
+            if (next < end && Character.isHighSurrogate(text.charAt(next - 1))) {
+                next--;
+            }
+            pieces[i] = next - offset;
+            offset = next;
+        }
+        return pieces;
+    }
+
+    /**
+     * 读取一个内容块。
+     *
+     * @return 块的内容；块不存在时返回 null。
+     */
+    static String readChunk(SQLiteDatabase db, long noteId, int seq) {
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_CONTENT },
+                COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SEQ + " = ?",
+                new String[] { Long.toString(noteId), Integer.toString(seq) },
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 按顺序把笔记的全部内容块写入 out，任何时刻只有一块在内存中。
+     */
+    static void copyTo(SQLiteDatabase db, long noteId, int chunks, Writer out) throws IOException {
+        for (int seq = 0; seq < chunks; seq++) {
+            String chunk = readChunk(db, noteId, seq);
+            if (chunk == null) {
+                // 读取期间笔记被改写得更短了
+                break;
+            }
+            out.write(chunk);
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class NoteColor extends Activity {
             // 保存更新的背景颜色
             ContentValues values = new ContentValues();
             values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, color);
-            getContentResolver().update(mUri, values, null, null);
+            NoteEditor.saveNote(getContentResolver(), mUri, values);
             mCursor.close(); // 关闭 Cursor，释放资源
         }
     }
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObserver;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 笔记内容的透明压缩。
+ *
+ * 内容以 zlib 格式压缩，保存在笔记表的内部列 {@link #COLUMN_NAME_NOTE_Z} 中，内容列为 NULL。
+ * 压缩时使用共享的预置字典：字典由已有笔记中反复出现的行和词组成（例如会议记录的模板行、
+ * 日志的固定前缀），这些片段在每条笔记中都可以直接引用字典，而不必在笔记内部第一次出现时原样保存，
+ * 因此较短的笔记也能得到可观的压缩率。
+ * <p>
+ * 字典保存在 {@link #TABLE_NAME} 表中，以字典内容的 Adler-32 校验和为 ID，zlib 流头部记录了
+ * 压缩时使用的字典 ID，解压时据此找到字典。重新训练字典后，新写入的内容使用最新的字典，
+ * 旧内容仍然可以用旧字典解压；旧字典不会被删除，直到重新压缩之后也不会，因为并发的写入可能仍在使用它。
+ * <p>
+ * 不压缩的内容：长度小于 {@link #MIN_LENGTH} 的短内容、压缩后没有变小的内容，
+ * 以及由 {@link NoteChunkStore} 按块存储的大笔记。
+ */
+final class NoteCompressor {
+
+    /**
+     * 保存压缩后内容的列名，只在提供者内部使用
+     * <P>类型: BLOB</P>
+     */
+    static final String COLUMN_NAME_NOTE_Z = "note_z";
+
+    /**
+     * 保存压缩字典的表名
+     */
+    static final String TABLE_NAME = "compression_dictionaries";
+
+    static final String COLUMN_NAME_DICTIONARY = "dictionary";
+    static final String COLUMN_NAME_CREATED = "created";
+
+    /**
+     * 短于该字符数的内容不压缩
+     */
+    static final int MIN_LENGTH = 64;
+
+    /**
+     * 字典的最大字节数。deflate 的窗口为 32KB，更长的字典只有末尾部分可以被引用。
+     */
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * 训练字典时采样的最近修改的笔记数
+     */
+    static final int SAMPLE_NOTES = 500;
+
+    // 每条样本笔记参与训练的最大字符数
+    private static final int SAMPLE_LENGTH = 16 * 1024;
+
+    // 参与训练的行和词的最小长度，更短的片段 deflate 自己就能高效编码
+    private static final int MIN_FRAGMENT_LENGTH = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // 是否压缩新写入的内容。关闭后仍然可以读取已压缩的内容。
+    private volatile boolean mEnabled;
+
+    // 已加载的字典，键为字典 ID
+    private final HashMap<Long, byte[]> mDictionaries = new HashMap<Long, byte[]>();
+
+    // 压缩新内容使用的字典 ID；null 表示尚未从数据库加载，0 表示没有字典
+    private Long mCurrentId;
+
+    NoteCompressor(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 创建字典表。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY,"
+                + COLUMN_NAME_DICTIONARY + " BLOB NOT NULL,"
+                + COLUMN_NAME_CREATED + " INTEGER NOT NULL"
+                + ");");
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * 打开或关闭压缩。仅供测试和基准测试使用，正常情况下由配置决定。
+     */
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * 使用当前字典压缩笔记内容。
+     *
+     * @return 压缩后的内容；如果压缩已关闭、内容太短或压缩后没有变小，返回 null，内容应原样保存。
+     */
+    byte[] compress(SQLiteDatabase db, String text) {
+        if (!mEnabled || text == null || text.length() < MIN_LENGTH) {
+            return null;
+        }
+        byte[] input = text.getBytes(UTF_8);
+        byte[] output = deflate(input, currentDictionary(db));
+        return output.length < input.length ? output : null;
+    }
+
+    /**
+     * 解压由 {@link #compress} 生成的内容。
+     *
+     * @throws IllegalStateException 如果内容损坏或找不到压缩时使用的字典。
+     */
+    String decompress(SQLiteDatabase db, byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n > 0) {
+                    out.write(buffer, 0, n);
+                } else if (inflater.needsDictionary()) {
+                    // 需要字典时 getAdler() 返回 zlib 头部中的字典 ID
+                    byte[] dictionary = dictionary(db, inflater.getAdler());
+                    if (dictionary == null) {
+                        throw new IllegalStateException("找不到压缩字典 " + inflater.getAdler());
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new IllegalStateException("压缩的笔记内容不完整");
+                }
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("压缩的笔记内容损坏", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 保存笔记内容所占的字节数：压缩后的长度，或未压缩内容的 UTF-8 长度。
+     */
+    static long storedSize(String text, byte[] compressed) {
+        if (compressed != null) {
+            return compressed.length;
+        }
+        return text != null ? text.getBytes(UTF_8).length : 0;
+    }
+
+    private static byte[] deflate(byte[] input, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // 当前字典；没有字典时返回 null
+    private synchronized byte[] currentDictionary(SQLiteDatabase db) {
+        if (mCurrentId == null) {
+            Cursor c = db.query(TABLE_NAME, new String[] { "_id", COLUMN_NAME_DICTIONARY },
+                    null, null, null, null, COLUMN_NAME_CREATED + " DESC, _id DESC", "1");
+            try {
+                if (c.moveToFirst()) {
+                    mCurrentId = c.getLong(0);
+                    mDictionaries.put(mCurrentId, c.getBlob(1));
+                } else {
+                    mCurrentId = 0L;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return mDictionaries.get(mCurrentId);
+    }
+
+    private synchronized byte[] dictionary(SQLiteDatabase db, long id) {
+        byte[] dictionary = mDictionaries.get(id);
+        if (dictionary == null) {
+            Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_DICTIONARY },
+                    "_id = ?", new String[] { Long.toString(id) }, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    dictionary = c.getBlob(0);
+                    mDictionaries.put(id, dictionary);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * 保存新字典并把它设为压缩新内容使用的字典。
+     *
+     * @return 字典 ID；如果已有另一个内容不同、ID 相同的字典，不做修改并返回 -1。
+     */
+    synchronized long install(SQLiteDatabase db, byte[] dictionary) {
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        long id = adler.getValue();
+
+        byte[] existing = dictionary(db, id);
+        if (existing != null && !Arrays.equals(existing, dictionary)) {
+            // 校验和冲突，已压缩的内容仍然依赖原来的字典
+            return -1;
+        }
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_NAME + " (_id, " + COLUMN_NAME_DICTIONARY
+                + ", " + COLUMN_NAME_CREATED + ") VALUES (?, ?, ?)",
+                new Object[] { id, dictionary, System.currentTimeMillis() });
+        mDictionaries.put(id, dictionary);
+        mCurrentId = id;
+        return id;
+    }
+
+    /**
+     * 从最近修改的 {@link #SAMPLE_NOTES} 条笔记中训练字典。
+     * <p>
+     * 候选片段是笔记中的行和词。只有出现在至少两条笔记中的片段才有用，片段的得分为
+     * (出现的笔记数 - 1) × 字节数，即每条笔记引用字典而节省的原文字节数的估计。
+     * 得分最高的片段装入字典，直到达到 {@link #MAX_DICTIONARY_SIZE}；deflate 引用距离越近的数据
+     * 编码越短，因此得分最高的片段放在字典末尾。
+     *
+     * @return 字典内容；如果样本中没有重复的片段，返回 null。
+     */
+    byte[] train(SQLiteDatabase db) {
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE, COLUMN_NAME_NOTE_Z },
+                NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " = 0", null, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER, Integer.toString(SAMPLE_NOTES));
+        try {
+            HashSet<String> seen = new HashSet<String>();
+            while (c.moveToNext()) {
+                String text = c.isNull(1) ? c.getString(0) : decompress(db, c.getBlob(1));
+                if (text == null) {
+                    continue;
+                }
+                if (text.length() > SAMPLE_LENGTH) {
+                    text = text.substring(0, SAMPLE_LENGTH);
+                }
+
+                // 每条笔记中的片段只计一次
+                seen.clear();
+                for (String line : text.split("\n")) {
+                    addFragment(seen, line.trim());
+                    for (String word : line.split("\\s+")) {
+                        addFragment(seen, word);
+                    }
+                }
+                for (String fragment : seen) {
+                    Integer count = counts.get(fragment);
+                    counts.put(fragment, count == null ? 1 : count + 1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<Map.Entry<String, Integer>>();
+        final HashMap<String, Long> scores = new HashMap<String, Long>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() >= 2) {
+                candidates.add(entry);
+                scores.put(entry.getKey(),
+                        (long) (entry.getValue() - 1) * entry.getKey().getBytes(UTF_8).length);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        // 按得分降序，得分相同时按内容排序，使同样的样本训练出同样的字典
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                int order = scores.get(b.getKey()).compareTo(scores.get(a.getKey()));
+                return order != 0 ? order : a.getKey().compareTo(b.getKey());
+            }
+        });
+
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            byte[] bytes = (candidate.getKey() + "\n").getBytes(UTF_8);
+            if (size + bytes.length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            chosen.add(bytes);
+            size += bytes.length;
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.write(chosen.get(i), 0, chosen.get(i).length);
+        }
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * 包装查询结果，使压缩的内容对客户端透明。查询的投影末尾必须额外包含 {@link #COLUMN_NAME_NOTE_Z}，
+     * 包装后该列被隐藏；读取 noteIndex 列时，如果内容是压缩的，返回解压后的文本。
+     * 解压在读取时按行进行，不读取内容列的查询不需要解压。
+     */
+    Cursor wrap(Cursor c, int noteIndex, SQLiteDatabase db) {
+        return new DecompressingCursor(c, noteIndex, db);
+    }
+
+    private final class DecompressingCursor extends CursorWrapper {
+        private final int mNoteIndex;
+        private final int mCompressedIndex;
+        private final SQLiteDatabase mDb;
+
+        // 最近一次解压的行及其内容，同一行的多次读取只解压一次。被包装的光标重新查询或失效后，
+        // 同一位置的行可能已经不同，因此清除。
+        private int mCachedPosition = -1;
+        private String mCachedNote;
+
+        DecompressingCursor(Cursor c, int noteIndex, SQLiteDatabase db) {
+            super(c);
+            mNoteIndex = noteIndex;
+            mCompressedIndex = c.getColumnCount() - 1;
+            mDb = db;
+            c.registerDataSetObserver(new DataSetObserver() {
+                @Override
+                public void onChanged() {
+                    clearCachedNote();
+                }
+
+                @Override
+                public void onInvalidated() {
+                    clearCachedNote();
+                }
+            });
+        }
+
+        private void clearCachedNote() {
+            mCachedPosition = -1;
+            mCachedNote = null;
+        }
+
+        // 当前行的内容是否是压缩的
+        private boolean isCompressed(int columnIndex) {
+            return columnIndex == mNoteIndex && super.isNull(mNoteIndex)
+                    && !super.isNull(mCompressedIndex);
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mCompressedIndex;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return Arrays.copyOf(super.getColumnNames(), mCompressedIndex);
+        }
+
+        @Override
+        public int getColumnIndex(String columnName) {
+            int index = super.getColumnIndex(columnName);
+            return index == mCompressedIndex ? -1 : index;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(String columnName) {
+            int index = getColumnIndex(columnName);
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return index;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (!isCompressed(columnIndex)) {
+                return super.getString(columnIndex);
+            }
+            if (mCachedPosition != getPosition()) {
+                mCachedNote = decompress(mDb, super.getBlob(mCompressedIndex));
+                mCachedPosition = getPosition();
+            }
+            return mCachedNote;
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (!isCompressed(columnIndex)) {
+                super.copyStringToBuffer(columnIndex, buffer);
+                return;
+            }
+            String note = getString(columnIndex);
+            if (buffer.data == null || buffer.data.length < note.length()) {
+                buffer.data = note.toCharArray();
+            } else {
+                note.getChars(0, note.length(), buffer.data, 0);
+            }
+            buffer.sizeCopied = note.length();
+        }
+
+        @Override
+        public boolean isNull(int columnIndex) {
+            return super.isNull(columnIndex) && !isCompressed(columnIndex);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            return isCompressed(columnIndex) ? FIELD_TYPE_STRING : super.getType(columnIndex);
+        }
+    }
+
+    private static void addFragment(HashSet<String> seen, String fragment) {
+        if (fragment.length() >= MIN_FRAGMENT_LENGTH) {
+            seen.add(fragment);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.LongSparseArray;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 笔记列表中修改时间的显示文本，按分钟缓存。
+ *
+ * 同一分钟内修改的笔记共用同一个字符串实例，因此列表绑定行时只需查找缓存，不再为每行格式化日期。
+ * 绝对模式显示 yyyy-MM-dd HH:mm；相对模式显示“刚刚”“5 分钟前”“昨天”之类相对于当前时间的文本，
+ * 当前时间由时钟每分钟推进一次（{@link #tick(long)}），而不是在每行绑定时读取。
+ * <p>
+ * 所有方法都必须在 UI 线程上调用。
+ */
+final class NoteDateLabels {
+
+    // 缓存的分钟数上限，超出时清空重建
+    private static final int MAX_ENTRIES = 512;
+
+    private final Context mContext;
+    private final boolean mRelative;
+
+    // 分钟序号到显示文本
+    private final LongSparseArray<String> mLabels = new LongSparseArray<String>();
+
+    private SimpleDateFormat mFormat;
+    private final Date mDate = new Date();
+
+    // 当前时间所在的分钟，只由 tick 推进
+    private long mNowMinute;
+
+    /**
+     * @param relative 是否显示相对于当前时间的文本
+     */
+    NoteDateLabels(Context context, boolean relative) {
+        mContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        mRelative = relative;
+        mNowMinute = minuteOf(System.currentTimeMillis());
+        reset();
+    }
+
+    boolean isRelative() {
+        return mRelative;
+    }
+
+    /**
+     * 返回 millis 所在分钟的显示文本。同一分钟内的时间返回同一个实例。
+     */
+    String label(long millis) {
+        long minute = minuteOf(millis);
+        String label = mLabels.get(minute);
+        if (label == null) {
+            if (mLabels.size() >= MAX_ENTRIES) {
+                mLabels.clear();
+            }
+            label = format(minute);
+            mLabels.put(minute, label);
+        }
+        return label;
+    }
+
+    /**
+     * 时钟推进到 now。
+     *
+     * @return 显示文本是否因此改变（只有相对模式在进入新的一分钟时才会改变），此时需要重新绑定列表。
+     */
+    boolean tick(long now) {
+        long minute = minuteOf(now);
+        if (minute == mNowMinute) {
+            return false;
+        }
+        mNowMinute = minute;
+        if (!mRelative) {
+            return false;
+        }
+        mLabels.clear();
+        return true;
+    }
+
+    /**
+     * 时区、语言或系统时间改变后丢弃所有缓存的文本。
+     */
+    void reset() {
+        mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+        mLabels.clear();
+    }
+
+    private String format(long minute) {
+        long millis = minute * DateUtils.MINUTE_IN_MILLIS;
+        if (mRelative) {
+            if (minute == mNowMinute) {
+                return mContext.getString(R.string.date_just_now);
+            }
+            if (minute < mNowMinute && minute > mNowMinute - DateUtils.WEEK_IN_MILLIS / DateUtils.MINUTE_IN_MILLIS) {
+                return DateUtils.getRelativeTimeSpanString(millis, mNowMinute * DateUtils.MINUTE_IN_MILLIS,
+                        DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE).toString();
+            }
+        }
+        mDate.setTime(millis);
+        return mFormat.format(mDate);
+    }
+
+    // 时间所在的分钟序号，1970 年之前的时间向下取整
+    private static long minuteOf(long millis) {
+        long minute = millis / DateUtils.MINUTE_IN_MILLIS;
+        return millis < 0 && minute * DateUtils.MINUTE_IN_MILLIS != millis ? minute - 1 : minute;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+
+/**
+ * 编辑器中笔记内容的保存状态。
+ *
+ * 作为编辑器文本的 {@link TextWatcher}，每次编辑使修订号加一，因此不必复制或比较内容就能判断
+ * 是否有未保存的修改（{@link #isModified()}）。内容本身只保存在编辑器中，这里不保留副本。
+ * <p>
+ * 保存时先以 {@link #markSubmitted(long, long)} 记录已提交写入的修订，写入成功后才以
+ * {@link #markSaved(long, long)} 把它作为已保存的内容；写入失败时调用 {@link #markSaveFailed(long)}，
+ * 内容仍是未保存的，下一次保存会重新提交。
+ * <p>
+ * 同时记录数据库中本文档内容对应的修改时间：载入时读到的值、提交写入时写入的值，以及提供者保存后返回的值。
+ * 重新显示编辑器时只需比较笔记行的修改时间（{@link #isOwnContent(long)}），就能知道内容是否被
+ * 其他地方改写，不需要读取内容。
+ * <p>
+ * 所有方法都必须在 UI 线程上调用。
+ */
+final class NoteDocument implements TextWatcher {
+
+    /**
+     * 没有对应的修改时间
+     */
+    static final long NO_MODIFIED = Long.MIN_VALUE;
+
+    // 暂停时编辑器的文本变化不记录，例如载入内容时
+    private boolean mPaused;
+
+    // 当前内容的修订号，每次编辑加一；已提交写入的修订号和已确认写入的修订号
+    private long mRevision;
+    private long mSubmittedRevision;
+    private long mSavedRevision;
+
+    // 已提交写入和已确认写入的内容在笔记行中的修改时间
+    private long mSubmittedModified = NO_MODIFIED;
+    private long mSavedModified = NO_MODIFIED;
+
+    /**
+     * 编辑器的内容已从数据库重新载入，修改时间为 modified。
+     */
+    void load(long modified) {
+        mRevision++;
+        mSubmittedRevision = mRevision;
+        mSavedRevision = mRevision;
+        mSubmittedModified = modified;
+        mSavedModified = modified;
+    }
+
+    /**
+     * 当前内容的修订号。
+     */
+    long getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * 记录修订 revision 的内容已经提交写入，写入的修改时间为 modified。
+     * 此后 {@link #hasUnsubmittedChanges()} 只反映新的编辑。
+     */
+    void markSubmitted(long revision, long modified) {
+        mSubmittedRevision = revision;
+        mSubmittedModified = modified;
+    }
+
+    /**
+     * 一次写入已经完成，modified 是提供者返回的笔记行的修改时间。revision 是写入的内容的修订号，
+     * 早于已保存修订的修订号（例如 {@link NoteAutosaver#NO_REVISION}）只更新修改时间；
+     * 之后又有编辑时内容仍视为有修改。
+     */
+    void markSaved(long revision, long modified) {
+        if (modified != NO_MODIFIED) {
+            mSavedModified = modified;
+        }
+        if (revision > mSavedRevision) {
+            mSavedRevision = revision;
+        }
+    }
+
+    /**
+     * 修订 revision 的写入失败。尚未保存的编辑重新视为未提交，下一次保存会写入完整的内容。
+     */
+    void markSaveFailed(long revision) {
+        if (revision > mSavedRevision) {
+            mSubmittedRevision = mSavedRevision;
+            mSubmittedModified = mSavedModified;
+        }
+    }
+
+    /**
+     * 修改时间为 modified 的笔记行是否保存着本文档载入或写入的内容；是时编辑器中的文本不需要重新载入。
+     */
+    boolean isOwnContent(long modified) {
+        return modified != NO_MODIFIED
+                && (modified == mSavedModified || modified == mSubmittedModified);
+    }
+
+    /**
+     * 暂停或恢复跟随编辑器的文本变化。
+     */
+    void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    /**
+     * 当前内容是否还没有确认写入。任何编辑都使内容变为已修改，删除后又原样输入的文本也被视为修改。
+     */
+    boolean isModified() {
+        return mRevision != mSavedRevision;
+    }
+
+    /**
+     * 是否有尚未提交写入的编辑。
+     */
+    boolean hasUnsubmittedChanges() {
+        return mRevision != mSubmittedRevision;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (!mPaused) {
+            mRevision++;
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+}
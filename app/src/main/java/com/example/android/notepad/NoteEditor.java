@@ -17,6 +17,7 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.content.AsyncQueryHandler;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
@@ -24,14 +25,22 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.Shader;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -40,6 +49,11 @@ import android.view.MenuItem;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.Spinner;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 
 /**
  * 这个活动处理“编辑”笔记，其中编辑是响应
@@ -47,7 +61,9 @@ import android.widget.Spinner;
  * {@link Intent#ACTION_EDIT}、创建笔记 {@link Intent#ACTION_INSERT} 或
  * 从剪贴板当前内容创建新笔记 {@link Intent#ACTION_PASTE}。
  *
- * 注意：注意这个活动中的提供者操作是在UI线程上进行的。
+ * 编辑的内容由 {@link NoteAutosaver} 在输入停顿后于后台线程自动保存，只有活动结束时
+ * 才在UI线程上等待保存完成。分类列表由 {@link AsyncQueryHandler} 在后台读取。
+ * 注意读取笔记等其他提供者操作仍然是在UI线程上进行的。
  * 这不是一个好的实践。这里只是为了使代码更易读而这样做。一个真正的
  * 应用应该使用 {@link android.content.AsyncQueryHandler}
  * 或 {@link android.os.AsyncTask} 对象在单独的线程上异步执行操作。
@@ -65,7 +81,9 @@ public class NoteEditor extends Activity {
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_NOTE,
             NotePad.Notes.COLUMN_NAME_BACK_COLOR,
-            NotePad.Notes.COLUMN_NAME_CATEGORY // 添加分类字段
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID, // 分类 ID
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT, // 大笔记的内容不在光标中
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE // 判断内容是否被其他地方改写
     };
 
 
@@ -84,14 +102,42 @@ public class NoteEditor extends Activity {
     private Cursor mCursor;
     private EditText mText;
     private String mOriginalContent;
+    private NoteAutosaver mAutosaver;
+    private NoteUndoManager mUndo;
+
+    // 跟随文本框的编辑，记录与上次保存的内容相比的修改，不必复制整个内容来比较
+    private final NoteDocument mDocument = new NoteDocument();
+
+    // 正在把笔记内容载入文本框，此时的文本变化不是用户的编辑
+    private boolean mLoading;
+
+    // 分类选择框中每一项对应的分类 ID，分类列表读取完成之前为空
+    private long[] mCategoryIds = new long[0];
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
+     *
+     * Only the lines inside the canvas clip are ruled, so the cost of a redraw (a cursor blink or
+     * a keystroke) doesn't grow with the length of the note. When the visible lines all have the
+     * same height, the ruling is drawn as one rectangle filled with a cached one-line pattern.
      */
     public static class LinedEditText extends EditText {
         private Rect mRect;
         private Paint mPaint;
 
+        // The visible part of the view, in the view's scrolled coordinates
+        private final Rect mClip = new Rect();
+
+        // Paint that repeats the cached ruling pattern vertically
+        private final Paint mPatternPaint = new Paint();
+        private final Matrix mPatternMatrix = new Matrix();
+
+        // Line spacing the cached pattern was built for, or 0 if there is no pattern yet
+        private int mPatternHeight;
+
+        // Number of ruled lines drawn by the last onDraw, for the rendering benchmark
+        int mLinesDrawn;
+
         // This constructor is used by LayoutInflater
         public LinedEditText(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -109,33 +155,62 @@ public class NoteEditor extends Activity {
          */
         @Override
         protected void onDraw(Canvas canvas) {
-
-            // Gets the number of lines of text in the View.
+            mLinesDrawn = 0;
+            Layout layout = getLayout();
             int count = getLineCount();
-
-            // Gets the global Rect and Paint objects
-            Rect r = mRect;
-            Paint paint = mPaint;
-
-            /*
-             * Draws one line in the rectangle for every line of text in the EditText
-             */
-            for (int i = 0; i < count; i++) {
-
-                // Gets the baseline coordinates for the current line of text
-                int baseline = getLineBounds(i, r);
-
-                /*
-                 * Draws a line in the background from the left of the rectangle to the right,
-                 * at a vertical position one dip below the baseline, using the "paint" object
-                 * for details.
-                 */
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+            if (layout != null && count > 0 && canvas.getClipBounds(mClip)) {
+
+                // Finds the lines inside the clip with two binary searches over the layout
+                int top = getExtendedPaddingTop();
+                int first = layout.getLineForVertical(Math.max(mClip.top - top, 0));
+                int last = layout.getLineForVertical(Math.max(mClip.bottom - top, 0));
+
+                // Gets the global Rect and Paint objects
+                Rect r = mRect;
+                int firstBaseline = getLineBounds(first, r);
+                int spacing = first < count - 1
+                        ? layout.getLineTop(first + 1) - layout.getLineTop(first) : 0;
+                boolean uniform = spacing > 0 && last > first
+                        && layout.getLineTop(last + 1) - layout.getLineTop(first) == spacing * (last - first + 1)
+                        && layout.getLineBaseline(last) - layout.getLineBaseline(first) == spacing * (last - first);
+
+                if (uniform) {
+                    // One rectangle covering every visible line, filled with the repeated pattern
+                    Paint paint = patternPaint(spacing, firstBaseline + 1);
+                    canvas.drawRect(r.left, firstBaseline + 1, r.right,
+                            firstBaseline + 1 + spacing * (last - first) + 1, paint);
+                } else {
+                    /*
+                     * Draws one line in the rectangle for every visible line of text, at a vertical
+                     * position one dip below the baseline, using the "paint" object for details.
+                     */
+                    Paint paint = mPaint;
+                    for (int i = first; i <= last; i++) {
+                        int baseline = getLineBounds(i, r);
+                        canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                    }
+                }
+                mLinesDrawn = last - first + 1;
             }
 
             // Finishes up by calling the parent method
             super.onDraw(canvas);
         }
+
+        // Returns the paint for the ruling pattern with the first line at y, rebuilding the
+        // one-pixel-wide pattern bitmap only when the line spacing changes
+        private Paint patternPaint(int spacing, int y) {
+            if (spacing != mPatternHeight) {
+                Bitmap pattern = Bitmap.createBitmap(1, spacing, Bitmap.Config.ARGB_8888);
+                pattern.setPixel(0, 0, mPaint.getColor());
+                mPatternPaint.setShader(new BitmapShader(pattern,
+                        Shader.TileMode.CLAMP, Shader.TileMode.REPEAT));
+                mPatternHeight = spacing;
+            }
+            mPatternMatrix.setTranslate(0, y);
+            mPatternPaint.getShader().setLocalMatrix(mPatternMatrix);
+            return mPatternPaint;
+        }
     }
 
     /**
@@ -155,22 +230,8 @@ public class NoteEditor extends Activity {
         // 设置布局文件
         setContentView(R.layout.note_editor);
 
-// 获取 Spinner 视图
-        Spinner categorySpinner = (Spinner) findViewById(R.id.spinner_category);
-
-// 创建 ArrayAdapter，加载字符串数组
-        ArrayAdapter<CharSequence> adapter = ArrayAdapter.createFromResource(
-                this,                  // 当前上下文
-                R.array.categories_array, // 引用 string-array 中的数组
-                android.R.layout.simple_spinner_item // 使用简单的布局显示每个项
-        );
-
-// 设置下拉列表的样式
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-
-// 设置适配器给 Spinner
-        categorySpinner.setAdapter(adapter);
-
+        // 分类选择框列出字典中的全部分类，包括用户定义的分类，在后台读取
+        loadCategories();
 
         // 获取笔记内容
         mText = (EditText) findViewById(R.id.note);
@@ -181,7 +242,11 @@ public class NoteEditor extends Activity {
             mUri = intent.getData();
         } else if (Intent.ACTION_INSERT.equals(action) || Intent.ACTION_PASTE.equals(action)) {
             mState = STATE_INSERT;
-            mUri = getContentResolver().insert(intent.getData(), null);
+
+            // 插入新笔记，默认分类为 "task"，与插入在同一次调用中写入
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.ID_TASK);  // 默认分类为任务
+            mUri = saveNote(getContentResolver(), intent.getData(), values);
 
             // 插入失败时关闭 Activity
             if (mUri == null) {
@@ -190,14 +255,71 @@ public class NoteEditor extends Activity {
                 return;
             }
 
-            // 设置默认分类为 "task"
-            ContentValues values = new ContentValues();
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_TASK);  // 默认分类为任务
-            getContentResolver().update(mUri, values, null, null);
-
             setResult(RESULT_OK, (new Intent()).setAction(mUri.toString()));
         }
 
+        // 输入停顿后自动保存，写入在后台线程进行
+        mAutosaver = new NoteAutosaver(mUri, new NoteAutosaver.Source() {
+            @Override
+            public ContentValues autosaveValues() {
+                return mCursor != null && mDocument.hasUnsubmittedChanges() ? editorValues() : null;
+            }
+
+            @Override
+            public long autosaveRevision() {
+                return mDocument.getRevision();
+            }
+        }, new NoteAutosaver.Store() {
+            @Override
+            public long save(Uri uri, ContentValues values) {
+                Bundle result = callSaveNote(getContentResolver(), uri, values);
+                return result != null
+                        ? result.getLong(NotePad.Notes.EXTRA_NOTE_MODIFIED, NoteDocument.NO_MODIFIED)
+                        : NoteDocument.NO_MODIFIED;
+            }
+        }, new NoteAutosaver.Listener() {
+            @Override
+            public void onSaved(ContentValues values, long revision, long modified) {
+                if (revision == NoteAutosaver.NO_REVISION
+                        && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    // 写入的不是编辑器中的内容（例如粘贴的笔记），下次显示时重新载入
+                    return;
+                }
+                // 写入成功之后才作为已保存的内容
+                mDocument.markSaved(revision, modified);
+            }
+
+            @Override
+            public void onSaveFailed(ContentValues values, long revision, RuntimeException e) {
+                if (revision != NoteAutosaver.NO_REVISION) {
+                    // 内容仍是未保存的，下一次自动保存或离开编辑器时重新写入
+                    mDocument.markSaveFailed(revision);
+                }
+                // 编辑器可能已经关闭，使用应用的 Context 提示
+                Toast.makeText(getApplicationContext(), R.string.save_failed, Toast.LENGTH_LONG).show();
+            }
+        }, getResources().getInteger(R.integer.autosave_debounce_millis));
+        // 撤销历史只记录编辑的片段，占用的内存有上限
+        mUndo = new NoteUndoManager(getResources().getInteger(R.integer.undo_memory_limit_kb) * 1024L);
+        mText.addTextChangedListener(mUndo);
+        mText.addTextChangedListener(mDocument);
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (!mLoading) {
+                    mAutosaver.onEdit();
+                }
+            }
+        });
+
         // 加载笔记内容
         mCursor = managedQuery(
                 mUri,
@@ -217,31 +339,69 @@ public class NoteEditor extends Activity {
         if (savedInstanceState != null) {
             mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
         }
+    }
 
-        // 绑定分类选择，恢复用户的选择
-        if (mState == STATE_EDIT) {
-            int position = getCategoryPositionFromDatabase(mUri);
-            categorySpinner.setSelection(position);
+    /**
+     * 在后台线程从分类字典读取选择框的各项。读取完成后在UI线程上填充选择框，记录每一项的
+     * 分类 ID，并选中笔记当前的分类。读取完成之前选择框为空，保存时不会改写笔记的分类。
+     */
+    private void loadCategories() {
+        final ArrayAdapter<CharSequence> adapter = new ArrayAdapter<CharSequence>(
+                this, android.R.layout.simple_spinner_item);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        ((Spinner) findViewById(R.id.spinner_category)).setAdapter(adapter);
+
+        AsyncQueryHandler loader = new AsyncQueryHandler(getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor c) {
+                if (c == null) {
+                    return;
+                }
+                try {
+                    if (isFinishing()) {
+                        return;
+                    }
+                    long[] ids = new long[c.getCount()];
+                    while (c.moveToNext()) {
+                        ids[c.getPosition()] = c.getLong(0);
+                        adapter.add(NoteCategories.label(NoteEditor.this, c.getLong(0),
+                                c.getString(1)));
+                    }
+                    mCategoryIds = ids;
+                } finally {
+                    c.close();
+                }
+                selectCategory();
+            }
+        };
+        loader.startQuery(0, null, NotePad.Categories.CONTENT_URI,
+                new String[] { NotePad.Categories._ID, NotePad.Categories.COLUMN_NAME_NAME },
+                null, null, NotePad.Categories.DEFAULT_SORT_ORDER);
+    }
+
+    // 按笔记的分类 ID 选中选择框中的分类，分类列表或笔记尚未读取时什么也不做
+    private void selectCategory() {
+        if (mCursor == null || !mCursor.moveToFirst()) {
+            return;
+        }
+        int categoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        if (categoryIndex != -1 && !mCursor.isNull(categoryIndex)) {
+            int position = categoryPosition(mCursor.getLong(categoryIndex));
+            if (position >= 0) {
+                Spinner categorySpinner = (Spinner) findViewById(R.id.spinner_category);
+                categorySpinner.setSelection(position);
+            }
         }
     }
 
-    // 根据数据库中的分类获取对应的位置
-    private int getCategoryPositionFromDatabase(Uri noteUri) {
-        Cursor cursor = getContentResolver().query(noteUri,
-                new String[]{NotePad.Notes.COLUMN_NAME_CATEGORY}, null, null, null);
-        if (cursor != null && cursor.moveToFirst()) {
-            String category = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY));
-            cursor.close();
-
-            if ("学习".equals(category)) {
-                return 0;
-            } else if ("生活".equals(category)) {
-                return 1;
-            } else {
-                return 2;
+    // 分类 ID 在选择框中的位置，找不到时返回 -1
+    private int categoryPosition(long categoryId) {
+        for (int i = 0; i < mCategoryIds.length; i++) {
+            if (mCategoryIds[i] == categoryId) {
+                return i;
             }
         }
-        return 2;
+        return -1;
     }
 
     /**
@@ -274,15 +434,31 @@ public class NoteEditor extends Activity {
                 }
 
                 // 获取笔记内容并显示
-                int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                if (colNoteIndex != -1) {
-                    String note = mCursor.getString(colNoteIndex);
+                // 笔记行的修改时间是编辑器自己载入或写入的值时（例如从颜色界面返回，或者写入还在进行），
+                // 保留文本、撤销历史和尚未保存的编辑，不读取内容
+                int modifiedIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                long modified = mCursor.isNull(modifiedIndex)
+                        ? NoteDocument.NO_MODIFIED : mCursor.getLong(modifiedIndex);
+                String note = null;
+                if (!mDocument.isOwnContent(modified)) {
+                    note = readNote(mCursor, mUri);
+                }
+                if (note != null) {
+                    mLoading = true;
+                    mUndo.setPaused(true);
+                    mDocument.setPaused(true);
                     mText.setTextKeepState(note); // 保持文本框状态
+                    mDocument.setPaused(false);
+                    mUndo.setPaused(false);
+                    mUndo.clear();
+                    mLoading = false;
+                    // 数据库中的内容就是编辑器中的内容，作为判断修改的基准
+                    mDocument.load(modified);
                 }
 
                 // 存储原始内容
                 if (mOriginalContent == null) {
-                    mOriginalContent = mText.getText().toString();
+                    mOriginalContent = note != null ? note : mText.getText().toString();
                 }
 
                 // 读取背景颜色并设置背景
@@ -313,17 +489,8 @@ public class NoteEditor extends Activity {
                     }
                 }
 
-                // 加载分类信息并设置到 Spinner
-                int categoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-                if (categoryIndex != -1) {
-                    String category = mCursor.getString(categoryIndex);
-                    Spinner categorySpinner = (Spinner) findViewById(R.id.spinner_category);
-
-                    // 查找分类的索引并设置 Spinner
-                    ArrayAdapter<CharSequence> adapter = (ArrayAdapter<CharSequence>) categorySpinner.getAdapter();
-                    int position = adapter.getPosition(category);
-                    categorySpinner.setSelection(position);
-                }
+                // 按分类 ID 选中 Spinner 中的分类
+                selectCategory();
 
             } else {
                 // 如果没有数据，则设置错误信息
@@ -356,6 +523,9 @@ public class NoteEditor extends Activity {
     /**
      * This method is called when the Activity loses focus.
      *
+     * The note is saved through the autosaver. Only a finishing Activity waits for the write;
+     * otherwise it runs in the background, behind any autosave still in the queue.
+     *
      * For Activity objects that edit information, onPause() may be the one place where changes are
      * saved. The Android application model is predicated on the idea that "save" and "exit" aren't
      * required actions. When users navigate away from an Activity, they shouldn't have to go back
@@ -372,9 +542,8 @@ public class NoteEditor extends Activity {
         // 检查 Cursor 是否为空
         if (mCursor != null) {
 
-            // 获取当前笔记文本
-            String text = mText.getText().toString();
-            int length = text.length();
+            // 获取当前笔记的长度，不复制内容
+            int length = mText.length();
 
             /*
              * 如果 Activity 正在关闭并且当前笔记没有任何内容，则返回取消结果并删除笔记。
@@ -383,29 +552,47 @@ public class NoteEditor extends Activity {
                 setResult(RESULT_CANCELED);  // 返回取消结果
                 deleteNote();  // 删除笔记
             } else {
-                /*
-                 * 如果当前是编辑状态，更新笔记。
-                 * 如果是插入新笔记的状态，创建新的笔记。
-                 */
-                if (mState == STATE_EDIT) {
-                    updateNote(text, null);  // 更新现有笔记
-                } else if (mState == STATE_INSERT) {
-                    updateNote(text, text);  // 插入新笔记
+                ContentValues values = editorValues();
+                if (mState == STATE_INSERT) {
                     mState = STATE_EDIT;  // 切换为编辑状态
                 }
 
-                // 保存用户选择的分类
-                Spinner categorySpinner = (Spinner) findViewById(R.id.spinner_category);
-                String selectedCategory = categorySpinner.getSelectedItem().toString();
+                // 活动结束时等待写入完成，否则在后台写入
+                long revision = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                        ? mDocument.getRevision() : NoteAutosaver.NO_REVISION;
+                if (isFinishing()) {
+                    mAutosaver.flush(values, revision);
+                } else {
+                    mAutosaver.save(values, revision);
+                }
+            }
+        }
+    }
 
-                // 更新数据库中的分类
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, selectedCategory);  // 设置用户选择的分类
+    /**
+     * 返回保存编辑器当前内容的值：用户选择的分类，以及内容有修改时的内容和修改时间。
+     * 如果是插入新笔记的状态，同时写入标题。提供者以完整的内容保存笔记，因此只有有未提交的编辑时
+     * 才从编辑器复制内容，复制后记录为已提交写入；写入成功之后才作为已保存的内容。
+     */
+    private ContentValues editorValues() {
+        ContentValues values;
+        if (mDocument.hasUnsubmittedChanges() || mState == STATE_INSERT) {
+            String text = mText.getText().toString();
+            values = noteValues(text, mState == STATE_INSERT ? text : null);
+            mDocument.markSubmitted(mDocument.getRevision(),
+                    values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+        } else {
+            // 内容没有修改，不写入内容，也不更新修改时间
+            values = new ContentValues();
+        }
 
-                // 更新笔记的分类
-                getContentResolver().update(mUri, values, null, null);
-            }
+        // 用户选择的分类与内容、标题一起保存
+        Spinner categorySpinner = (Spinner) findViewById(R.id.spinner_category);
+        int position = categorySpinner.getSelectedItemPosition();
+        if (position >= 0 && position < mCategoryIds.length) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, mCategoryIds[position]);  // 设置用户选择的分类
         }
+        return values;
     }
 
 
@@ -443,15 +630,10 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        // Check if note has changed since it was last saved and enable/disable the revert option
+        menu.findItem(R.id.menu_revert).setVisible(mDocument.isModified());
+        menu.findItem(R.id.menu_undo).setEnabled(mUndo.canUndo());
+        menu.findItem(R.id.menu_redo).setEnabled(mUndo.canRedo());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -469,8 +651,14 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         switch (item.getItemId()) {
         case R.id.menu_save:
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            if (mDocument.hasUnsubmittedChanges()) {
+                // 写入结果在 onPause 之前送到 mDocument，写入失败时 onPause 会重新写入
+                long revision = mDocument.getRevision();
+                ContentValues values = noteValues(mText.getText().toString(), null);
+                mDocument.markSubmitted(revision,
+                        values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+                mAutosaver.flush(values, revision);
+            }
             finish();
             break;
         case R.id.menu_delete:
@@ -480,6 +668,12 @@ public class NoteEditor extends Activity {
         case R.id.menu_revert:
             cancelNote();
             break;
+        case R.id.menu_undo:
+            moveCursor(mUndo.undo(mText.getText()));
+            break;
+        case R.id.menu_redo:
+            moveCursor(mUndo.redo(mText.getText()));
+            break;
 
             case R.id.menu_color:
                 changeColor();
@@ -487,6 +681,13 @@ public class NoteEditor extends Activity {
         }
         return super.onOptionsItemSelected(item);
     }
+    // 把光标移到撤销或重做的位置；位置为 -1 表示没有可撤销或重做的编辑
+    private void moveCursor(int position) {
+        if (position >= 0) {
+            mText.setSelection(position);
+        }
+    }
+
     //跳转改变颜色的activity，将uri信息传到新的activity
     private final void changeColor() {
         Intent intent = new Intent(null,mUri);
@@ -537,9 +738,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
                         int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
+                        text = readNote(orig, uri);
                         title = orig.getString(colTitleIndex);
                     }
 
@@ -560,12 +760,63 @@ public class NoteEditor extends Activity {
     }
 //END_INCLUDE(paste)
 
+    /**
+     * 返回光标当前行的笔记内容。按块存储的大笔记内容不在光标中，通过提供者的内容流读取，
+     * 避免整个内容经过 CursorWindow。
+     *
+     * @return 笔记内容；读取失败时返回 null。
+     */
+    private String readNote(Cursor cursor, Uri noteUri) {
+        int colChunksIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
+        if (colChunksIndex == -1 || cursor.getInt(colChunksIndex) == 0) {
+            return cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        }
+
+        try {
+            AssetFileDescriptor descriptor = getContentResolver().openTypedAssetFileDescriptor(
+                    noteUri, NotePad.Notes.STREAM_TYPE_NOTE_BODY, null);
+            Reader in = new InputStreamReader(descriptor.createInputStream(), "UTF-8");
+            try {
+                StringBuilder note = new StringBuilder();
+                char[] buffer = new char[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    note.append(buffer, 0, n);
+                }
+                return note.toString();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "无法读取笔记内容 " + noteUri, e);
+            return null;
+        }
+    }
+
     /**
      * Replaces the current note contents with the text and title provided as arguments.
      * @param text The new note contents to use.
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
+        /*
+         * Updates the provider with the new values in the map. The ListView is updated
+         * automatically. The provider sets this up by setting the notification URI for
+         * query Cursor objects to the incoming URI. The content resolver is thus
+         * automatically notified when the Cursor for the URI changes, and the UI is
+         * updated.
+         * Note: This waits on the UI thread for the update, and for any autosave queued
+         * before it, so that an older autosave can't overwrite it.
+         */
+        mAutosaver.flush(noteValues(text, title));
+    }
+
+    /**
+     * Builds the values that save the given text and title, stamped with the current time.
+     * @param text The new note contents to use.
+     * @param title The new note title to use, or null to keep the current one
+     */
+    private ContentValues noteValues(String text, String title) {
 
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
@@ -602,26 +853,29 @@ public class NoteEditor extends Activity {
 
         // This puts the desired notes text into the map.
         values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        return values;
+    }
 
-        /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
-         * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
-
+    /**
+     * 通过提供者的 {@link NotePad.Notes#METHOD_SAVE_NOTE} 保存笔记：values 中的全部列在一个事务中写入，
+     * 只产生一次变更通知。uri 为笔记目录时插入新笔记。各个编辑界面都通过此方法写入笔记。
+     *
+     * @return 保存的笔记的 URI；笔记已不存在时返回 null。
+     */
+    static Uri saveNote(ContentResolver resolver, Uri uri, ContentValues values) {
+        Bundle result = callSaveNote(resolver, uri, values);
+        return result != null ? (Uri) result.getParcelable(NotePad.Notes.EXTRA_NOTE_URI) : null;
+    }
 
+    /**
+     * 同 {@link #saveNote}，返回提供者的完整结果，其中包含保存之后的
+     * {@link NotePad.Notes#EXTRA_NOTE_MODIFIED}。
+     */
+    static Bundle callSaveNote(ContentResolver resolver, Uri uri, ContentValues values) {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.EXTRA_NOTE_VALUES, values);
+        return resolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_SAVE_NOTE,
+                uri.toString(), extras);
     }
 
     /**
@@ -636,7 +890,7 @@ public class NoteEditor extends Activity {
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                mAutosaver.flush(values);
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -651,6 +905,8 @@ public class NoteEditor extends Activity {
      */
     private final void deleteNote() {
         if (mCursor != null) {
+            // 等待中的自动保存不能在删除之后写入
+            mAutosaver.discard();
             mCursor.close();
             mCursor = null;
             getContentResolver().delete(mUri, null, null);
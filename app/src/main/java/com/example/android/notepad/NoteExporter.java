@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * 将全部笔记以流的形式写入管道，由 {@link NotePadProvider#openTypedAssetFile} 在笔记目录 URI 上使用。
+ *
+ * 笔记按 ID 顺序分页读取，每页 {@link #PAGE_SIZE} 行，读完一页即关闭该页的光标再读取下一页，
+ * 输出经过固定大小的缓冲区写入管道。因此内存占用只与页大小有关，与笔记总数无关；
+ * 各页是独立的短查询，导出期间也不会长时间持有读事务而阻止 WAL 检查点。
+ * 导出过程中新增的笔记如果 ID 大于已写出的行，也会出现在导出结果中。
+ */
+final class NoteExporter implements ContentProvider.PipeDataWriter<Void> {
+
+    private static final String TAG = "NoteExporter";
+
+    /**
+     * 笔记目录支持的导出类型
+     */
+    static final ClipDescription STREAM_TYPES = new ClipDescription(null,
+            new String[]{NotePad.Notes.EXPORT_TYPE_NDJSON, ClipDescription.MIMETYPE_TEXT_PLAIN});
+
+    /**
+     * 每次查询读取的行数
+     */
+    static final int PAGE_SIZE = 200;
+
+    /**
+     * 写入管道的缓冲区大小（字符数）
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 纯文本导出中每条笔记结束的行。标题和内容中以 "." 开头的行在行首多写一个 "."，
+     * 导入时去掉（与 SMTP 相同），因此这一行不会出现在笔记的内容中。
+     */
+    static final String TEXT_NOTE_TERMINATOR = ".";
+
+    /**
+     * 导出的列。除最后的块数之外，都是 NDJSON 对象中的字段名。
+     */
+    private static final String[] EXPORT_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_BACK_COLOR,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT
+    };
+
+    private static final int EXPORT_ID_INDEX = 0;
+    private static final int EXPORT_TITLE_INDEX = 1;
+    private static final int EXPORT_NOTE_INDEX = 2;
+    private static final int EXPORT_CHUNK_COUNT_INDEX = 7;
+
+    private final NotePadProvider mProvider;
+
+    NoteExporter(NotePadProvider provider) {
+        mProvider = provider;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, Void args) {
+        boolean json = NotePad.Notes.EXPORT_TYPE_NDJSON.equals(mimeType);
+        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        Writer out = null;
+        Long afterId = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"), BUFFER_SIZE);
+            int rows;
+            do {
+                rows = 0;
+                Cursor c = mProvider.query(pageUri(afterId), EXPORT_PROJECTION, null, null,
+                        NotePad.Notes.SORT_ORDER_CREATED);
+                try {
+                    while (c.moveToNext()) {
+                        if (json) {
+                            writeJson(out, c);
+                        } else {
+                            writeText(out, c);
+                        }
+                        afterId = c.getLong(EXPORT_ID_INDEX);
+                        rows++;
+                    }
+                } finally {
+                    c.close();
+                }
+            } while (rows == PAGE_SIZE);
+            out.flush();
+        } catch (IOException e) {
+            // 写入管道失败（例如读取方提前关闭了管道），不再读取后续的页
+            Log.w(TAG, "导出中断，最后写出的笔记 ID 为 " + afterId, e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                } else {
+                    fout.close();
+                }
+            } catch (IOException e) {
+                // 关闭时写出缓冲区中剩余的内容失败，导出的内容不完整
+                Log.w(TAG, "关闭导出管道失败，导出可能不完整", e);
+            }
+        }
+    }
+
+    private static Uri pageUri(Long afterId) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(PAGE_SIZE));
+        if (afterId != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, afterId.toString());
+        }
+        return builder.build();
+    }
+
+    // 写出一行 JSON 对象。字符串列按 JSON 规则转义，NULL 写为 null。
+    private void writeJson(Writer out, Cursor c) throws IOException {
+        out.write('{');
+        for (int i = 0; i < EXPORT_CHUNK_COUNT_INDEX; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(JSONObject.quote(EXPORT_PROJECTION[i]));
+            out.write(':');
+            if (i == EXPORT_NOTE_INDEX && isChunked(c)) {
+                // 逐块转义，去掉每块两端的引号后拼接为一个字符串
+                out.write('"');
+                for (int seq = 0; ; seq++) {
+                    String chunk = readChunk(c, seq);
+                    if (chunk == null) {
+                        break;
+                    }
+                    String quoted = JSONObject.quote(chunk);
+                    out.write(quoted, 1, quoted.length() - 2);
+                }
+                out.write('"');
+                continue;
+            }
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    out.write("null");
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    out.write(Long.toString(c.getLong(i)));
+                    break;
+                default:
+                    out.write(JSONObject.quote(c.getString(i)));
+                    break;
+            }
+        }
+        out.write("}\n");
+    }
+
+    // 与单条笔记的文本流格式相同：标题、空行、内容，之后是 TEXT_NOTE_TERMINATOR 行。
+    // 内容中的空行原样写出，由 NoteImporter 按同样的格式读回。
+    private void writeText(Writer out, Cursor c) throws IOException {
+        String title = c.getString(EXPORT_TITLE_INDEX);
+        writeEscaped(out, title != null ? title.replace('\n', ' ') : "", true);
+        out.write("\n\n");
+        if (isChunked(c)) {
+            boolean lineStart = true;
+            String chunk;
+            for (int seq = 0; (chunk = readChunk(c, seq)) != null; seq++) {
+                lineStart = writeEscaped(out, chunk, lineStart);
+            }
+        } else {
+            String note = c.getString(EXPORT_NOTE_INDEX);
+            if (note != null) {
+                writeEscaped(out, note, true);
+            }
+        }
+        out.write('\n');
+        out.write(TEXT_NOTE_TERMINATOR);
+        out.write('\n');
+    }
+
+    /**
+     * 写出文本，在以 "." 开头的每一行前多写一个 "."。
+     *
+     * @param lineStart text 是否从一行的开头开始
+     * @return 写完之后是否位于一行的开头，供写出同一内容的下一块时使用
+     */
+    private static boolean writeEscaped(Writer out, String text, boolean lineStart) throws IOException {
+        int start = 0;
+        while (start < text.length()) {
+            if (lineStart && text.charAt(start) == '.') {
+                out.write('.');
+            }
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                out.write(text, start, text.length() - start);
+                return false;
+            }
+            out.write(text, start, end + 1 - start);
+            start = end + 1;
+            lineStart = true;
+        }
+        return lineStart;
+    }
+
+    // 内容是否按块存储，此时内容列为 NULL，需要逐块读取
+    private static boolean isChunked(Cursor c) {
+        return c.getInt(EXPORT_CHUNK_COUNT_INDEX) > 0;
+    }
+
+    // 读取当前笔记的一块内容；超出块数时返回 null
+    private String readChunk(Cursor c, int seq) {
+        if (seq >= c.getInt(EXPORT_CHUNK_COUNT_INDEX)) {
+            return null;
+        }
+        return mProvider.readNoteChunk(c.getLong(EXPORT_ID_INDEX), seq);
+    }
+}
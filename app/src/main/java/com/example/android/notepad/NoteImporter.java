@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentValues;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * 从字符流中逐条解析待导入的笔记。
+ *
+ * 每次调用 {@link #next()} 只读取一条笔记所需的输入，因此内存占用与单条笔记的大小有关，
+ * 与整个输入的大小无关。支持两种格式：
+ * <ul>
+ * <li>{@link NotePad.Notes#EXPORT_TYPE_NDJSON}：每行一个 JSON 对象，字段与导出的列相同。
+ * {@code _id} 和预览等由提供者维护的字段被忽略，缺少的字段由提供者填入默认值。</li>
+ * <li>{@code text/plain}：{@link NoteExporter} 导出的纯文本。每条笔记依次是标题行、空行和内容，
+ * 以只有 {@link NoteExporter#TEXT_NOTE_TERMINATOR} 的行结束；以 "." 开头的行去掉开头的一个 "."。
+ * 内容中的空行属于内容本身，因此导出的笔记可以原样导入。</li>
+ * </ul>
+ */
+abstract class NoteImporter {
+
+    // NDJSON 中可以导入的列
+    private static final String[] STRING_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY
+    };
+    private static final String[] LONG_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    protected final BufferedReader mReader;
+
+    // 已读取的输入行数，用于报告格式错误的位置
+    protected int mLine;
+
+    private NoteImporter(Reader reader) {
+        mReader = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * 为指定的 MIME 类型创建解析器。
+     *
+     * @throws IllegalArgumentException 如果不支持该类型。
+     */
+    static NoteImporter forType(String mimeType, Reader reader) {
+        if (mimeType == null || NotePad.Notes.EXPORT_TYPE_NDJSON.equals(mimeType)) {
+            return new JsonImporter(reader);
+        }
+        if (ClipDescription.MIMETYPE_TEXT_PLAIN.equals(mimeType)) {
+            return new TextImporter(reader);
+        }
+        throw new IllegalArgumentException("不支持导入的类型 " + mimeType);
+    }
+
+    /**
+     * 读取下一条笔记。
+     *
+     * @return 笔记的列值；输入结束时返回 null。
+     * @throws IllegalArgumentException 如果输入格式错误。
+     */
+    abstract ContentValues next() throws IOException;
+
+    private static final class JsonImporter extends NoteImporter {
+        JsonImporter(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        ContentValues next() throws IOException {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                mLine++;
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    return toValues(new JSONObject(line));
+                } catch (JSONException e) {
+                    throw new IllegalArgumentException("第 " + mLine + " 行格式错误: " + e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        private static ContentValues toValues(JSONObject note) throws JSONException {
+            ContentValues values = new ContentValues();
+            for (String column : STRING_COLUMNS) {
+                if (!note.isNull(column)) {
+                    values.put(column, note.getString(column));
+                }
+            }
+            for (String column : LONG_COLUMNS) {
+                if (!note.isNull(column)) {
+                    values.put(column, note.getLong(column));
+                }
+            }
+            if (!note.isNull(NotePad.Notes.COLUMN_NAME_BACK_COLOR)) {
+                values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR,
+                        note.getInt(NotePad.Notes.COLUMN_NAME_BACK_COLOR));
+            }
+            return values;
+        }
+    }
+
+    private static final class TextImporter extends NoteImporter {
+        TextImporter(Reader reader) {
+            super(reader);
+        }
+
+        @Override
+        ContentValues next() throws IOException {
+            String title = readLine();
+            if (title == null) {
+                return null;
+            }
+
+            // 标题之后的空行
+            String line = readLine();
+            if (line != null && line.length() == 0) {
+                line = readLine();
+            }
+
+            StringBuilder note = new StringBuilder();
+            boolean first = true;
+            while (line != null && !line.equals(NoteExporter.TEXT_NOTE_TERMINATOR)) {
+                if (!first) {
+                    note.append('\n');
+                }
+                note.append(unescape(line));
+                first = false;
+                line = readLine();
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, unescape(title));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.toString());
+            return values;
+        }
+
+        private String readLine() throws IOException {
+            String line = mReader.readLine();
+            if (line != null) {
+                mLine++;
+            }
+            return line;
+        }
+
+        // 去掉导出时在以 "." 开头的行前加上的 "."
+        private static String unescape(String line) {
+            return line.startsWith(".") ? line.substring(1) : line;
+        }
+    }
+}
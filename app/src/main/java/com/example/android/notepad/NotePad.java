@@ -84,6 +84,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * 全文搜索 URI 的路径部分
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * 此表的 content:// 样式 URL
          */
@@ -103,12 +108,63 @@ public final class NotePad {
         public static final Uri CONTENT_ID_URI_PATTERN
                 = Uri.parse(SCHEME + AUTHORITY + PATH_NOTE_ID + "/#");
 
+        /**
+         * 单条笔记 URI 之后的路径段，得到该笔记的修订历史，例如 {@code notes/5/revisions}。
+         * 查询返回 {@link #_ID}（修订 ID）、{@link #COLUMN_NAME_CREATE_DATE}（修订时间）和
+         * {@link #COLUMN_NAME_REVISION_SIZE}（该修订内容的长度），从新到旧排列，不包含内容。
+         * 在其后追加修订 ID（例如 {@code notes/5/revisions/12}）查询单个修订，
+         * 结果另外包含 {@link #COLUMN_NAME_NOTE}（该修订的内容）。
+         */
+        public static final String PATH_SEGMENT_REVISIONS = "revisions";
+
         /**
          * 实时文件夹的笔记列表的内容 Uri 模式
          */
         public static final Uri LIVE_FOLDER_URI
                 = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * 全文搜索的内容 URI。搜索词通过 {@link #QUERY_PARAMETER_QUERY} 参数传入，
+         * 返回的行按相关度（{@link #COLUMN_NAME_RANK}）降序排列。
+         */
+        public static final Uri CONTENT_SEARCH_URI
+                = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * 搜索 URI 中携带搜索词的查询参数名
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+
+        /**
+         * 分页查询 {@link #CONTENT_URI} 时每页的最大行数。带有此参数的查询按键集分页：
+         * 下一页从上一页最后一行的排序值和 ID 之后开始，而不是用 OFFSET 跳过前面的行，
+         * 因此无论翻到第几页，查询代价都只与页大小有关。
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * 分页查询中上一页最后一行排序列的值。按创建顺序排序时不需要此参数；
+         * 对于可为空的排序列，省略此参数表示上一页最后一行的值为 NULL。
+         */
+        public static final String QUERY_PARAMETER_AFTER_VALUE = "after_value";
+
+        /**
+         * 分页查询中上一页最后一行的 {@link #_ID}。省略时返回第一页。
+         */
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * 变更通知 URI 中列出受影响笔记 ID 的参数，值为逗号分隔的 ID。
+         * 缺少此参数时，无法确定哪些笔记发生了变化，观察者应当整体刷新。
+         */
+        public static final String CHANGE_PARAMETER_IDS = "changed_ids";
+
+        /**
+         * 变更通知 URI 中列出被修改列的参数，值为逗号分隔的列名。
+         * 缺少此参数表示有笔记被插入或删除，观察者应当整体刷新。
+         */
+        public static final String CHANGE_PARAMETER_COLUMNS = "changed_columns";
+
         /*
          * MIME 类型定义
          */
@@ -124,11 +180,138 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * 一条笔记的修订历史（{@link #PATH_SEGMENT_REVISIONS}）的 MIME 类型。
+         */
+        public static final String REVISIONS_CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-revision";
+
+        /**
+         * 笔记的单个修订的 MIME 类型。
+         */
+        public static final String REVISION_CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note-revision";
+
+        /**
+         * 导出全部笔记时使用的流类型：每行一个 JSON 对象（NDJSON），字段为笔记的各列。
+         * 以 {@link #CONTENT_URI} 调用 {@link android.content.ContentResolver#openTypedAssetFileDescriptor}
+         * 即可获得导出流；{@code text/plain} 导出为可阅读的纯文本：每条笔记依次是标题、空行和内容，
+         * 以只有一个 "." 的行结束，以 "." 开头的行在行首多写一个 "."。
+         */
+        public static final String EXPORT_TYPE_NDJSON = "application/x-ndjson";
+
+        /**
+         * 单条笔记内容的流类型：只包含笔记内容本身，没有标题。按块存储的大笔记
+         * （{@link #COLUMN_NAME_CHUNK_COUNT} 大于 0）的内容只能通过此流读取。
+         */
+        public static final String STREAM_TYPE_NOTE_BODY = "text/vnd.google.note-body";
+
+        /**
+         * 导入笔记的 {@link android.content.ContentProvider#call} 方法名。参数为导入源的 URI
+         * （{@code content:} 或 {@code file:}），内容为 {@link #EXPORT_TYPE_NDJSON} 格式时可以无损导入导出的笔记；
+         * 为纯文本时应当是以 {@code text/plain} 导出的格式，同样可以导入导出的笔记。附加参数见 {@code EXTRA_IMPORT_*}。
+         * 返回的 Bundle 包含 {@link #EXTRA_IMPORTED_ROWS}、{@link #EXTRA_IMPORT_ELAPSED_MILLIS}
+         * 和 {@link #EXTRA_IMPORT_ROWS_PER_SECOND}。
+         */
+        public static final String METHOD_IMPORT = "importNotes";
+
+        /**
+         * 导入源的 MIME 类型，{@link #EXPORT_TYPE_NDJSON}（默认）或 {@code text/plain}
+         */
+        public static final String EXTRA_IMPORT_TYPE = "import_type";
+
+        /**
+         * 每个事务插入的笔记数。省略时使用默认值。
+         */
+        public static final String EXTRA_IMPORT_BATCH_ROWS = "import_batch_rows";
+
+        /**
+         * 接收导入进度的 {@link android.os.ResultReceiver}。每个事务提交后收到一次，
+         * 数据与返回结果的键相同。
+         */
+        public static final String EXTRA_IMPORT_PROGRESS = "import_progress";
+
+        /**
+         * 已导入的笔记数（long）
+         */
+        public static final String EXTRA_IMPORTED_ROWS = "imported_rows";
+
+        /**
+         * 导入已用的时间（毫秒，long）
+         */
+        public static final String EXTRA_IMPORT_ELAPSED_MILLIS = "import_elapsed_millis";
+
+        /**
+         * 导入的平均速度（每秒笔记数，double）
+         */
+        public static final String EXTRA_IMPORT_ROWS_PER_SECOND = "import_rows_per_second";
+
+        /**
+         * 保存一条笔记的 {@link android.content.ContentProvider#call} 方法名。参数为笔记的 URI，
+         * 或者为 {@link #CONTENT_URI} 以插入新笔记；{@link #EXTRA_NOTE_VALUES} 中的各列
+         * （内容、标题、分类、颜色等）在一个事务中写入，并且只产生一次变更通知。
+         * 返回的 Bundle 包含 {@link #EXTRA_NOTE_URI}，笔记存在时还包含 {@link #EXTRA_NOTE_MODIFIED}。
+         */
+        public static final String METHOD_SAVE_NOTE = "saveNote";
+
+        /**
+         * 要保存的列值（{@link android.content.ContentValues}）。插入时未提供的列使用默认值。
+         */
+        public static final String EXTRA_NOTE_VALUES = "note_values";
+
+        /**
+         * 保存的笔记的 URI（{@link Uri}）；要更新的笔记不存在时为 null。
+         */
+        public static final String EXTRA_NOTE_URI = "note_uri";
+
+        /**
+         * 保存之后笔记行的 {@link #COLUMN_NAME_MODIFICATION_DATE}（long）。与已保存的值相同而没有写入时，
+         * 是原有的修改时间。编辑器以此识别数据库中的内容是否是自己写入的。
+         */
+        public static final String EXTRA_NOTE_MODIFIED = "note_modified";
+
+        /**
+         * 重新压缩笔记内容的 {@link android.content.ContentProvider#call} 方法名，用于维护。
+         * 提供者可以透明地压缩笔记内容，压缩使用从已有笔记训练出的共享字典；此方法先重新训练字典
+         * （见 {@link #EXTRA_TRAIN_DICTIONARY}），再用新字典重新压缩全部笔记。笔记内容和修改时间不变。
+         * 返回的 Bundle 包含 {@link #EXTRA_RECOMPRESSED_ROWS}、{@link #EXTRA_STORED_BYTES_BEFORE}
+         * 和 {@link #EXTRA_STORED_BYTES_AFTER}。
+         */
+        public static final String METHOD_RECOMPRESS = "recompressNotes";
+
+        /**
+         * 重新压缩之前是否从现有笔记训练新字典（boolean，默认为 true）
+         */
+        public static final String EXTRA_TRAIN_DICTIONARY = "train_dictionary";
+
+        /**
+         * 被改写的笔记数（long）
+         */
+        public static final String EXTRA_RECOMPRESSED_ROWS = "recompressed_rows";
+
+        /**
+         * 重新压缩前笔记内容所占的字节数（long）
+         */
+        public static final String EXTRA_STORED_BYTES_BEFORE = "stored_bytes_before";
+
+        /**
+         * 重新压缩后笔记内容所占的字节数（long）
+         */
+        public static final String EXTRA_STORED_BYTES_AFTER = "stored_bytes_after";
+
         /**
          * 此表的默认排序顺序
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * 列表支持的排序方式：按创建顺序、修改时间、颜色和分类。
+         * 每种排序都有对应的覆盖索引，列表查询不需要临时排序。排序值相同的行按 {@link #_ID}
+         * 排列，使顺序完全确定，这也是分页查询（{@link #QUERY_PARAMETER_LIMIT}）所要求的。
+         */
+        public static final String SORT_ORDER_CREATED = _ID;
+        public static final String SORT_ORDER_MODIFIED = "modified DESC, _id DESC";
+        public static final String SORT_ORDER_COLOR = "color, _id";
+        public static final String SORT_ORDER_CATEGORY = "category_id, _id";
+
         /*
          * 列定义
          */
@@ -171,7 +354,45 @@ public final class NotePad {
         public static final int GREEN_COLOR = 3;
         public static final int RED_COLOR = 4;
 
-        // 分类字段
+        /**
+         * 搜索结果的相关度列名，仅在 {@link #CONTENT_SEARCH_URI} 的查询结果中可用
+         * <P>类型: INTEGER（命中次数）</P>
+         */
+        public static final String COLUMN_NAME_RANK = "rank";
+
+        /**
+         * 修订内容的长度（字符数），仅在修订历史（{@link #PATH_SEGMENT_REVISIONS}）的查询结果中可用。
+         * 升级之前记录的修订在后台补齐之前为 NULL。
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_REVISION_SIZE = "size";
+
+        /**
+         * 笔记内容预览的列名：内容开头的若干字符，连续空白合并为一个空格。
+         * 由提供者在写入笔记内容时维护，客户端写入的值会被忽略。
+         * <P>类型: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * 笔记内容的块数。大于 0 时内容按块存储在提供者内部，查询返回的 {@link #COLUMN_NAME_NOTE}
+         * 为 NULL，内容需要以 {@link #STREAM_TYPE_NOTE_BODY} 打开笔记 URI 的流来读取。
+         * 由提供者维护，客户端写入的值会被忽略。
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CHUNK_COUNT = "chunks";
+
+        /**
+         * 笔记分类的 ID，引用 {@link Categories} 表。列表按分类排序和筛选时使用此列。
+         * <P>类型: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * 笔记分类的名称，由提供者从 {@link Categories} 表查出。写入名称时，提供者把它转换为
+         * {@link #COLUMN_NAME_CATEGORY_ID}，字典中没有的名称会被加入字典。
+         * <P>类型: TEXT</P>
+         */
         public static final String COLUMN_NAME_CATEGORY = "category";
 
         public static final String CATEGORY_STUDY = "study";   // 学习
@@ -180,5 +401,47 @@ public final class NotePad {
 
     }
 
+    /**
+     * 分类字典表契约
+     */
+    public static final class Categories implements BaseColumns {
+
+        // 此类不能被实例化
+        private Categories() {}
+
+        /**
+         * 分类字典的表名
+         */
+        public static final String TABLE_NAME = "categories";
+
+        /**
+         * 分类字典的内容 URI。支持查询，以及按名称插入用户定义的分类（名称已存在时返回已有的分类）。
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/categories");
+
+        /**
+         * {@link #CONTENT_URI} 提供的分类目录的 MIME 类型。
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.note-category";
+
+        /**
+         * 分类字典的默认排序顺序：内置分类在前，用户定义的分类按创建顺序排列
+         */
+        public static final String DEFAULT_SORT_ORDER = _ID;
+
+        /**
+         * 分类名称的列名，在字典中唯一。内置分类的名称为 {@link Notes#CATEGORY_STUDY} 等。
+         * <P>类型: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * 内置分类的 ID
+         */
+        public static final long ID_STUDY = 1;
+        public static final long ID_LIFE = 2;
+        public static final long ID_TASK = 3;
+    }
+
 
 }
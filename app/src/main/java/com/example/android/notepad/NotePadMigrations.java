@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 笔记数据库的版本迁移链。
+ *
+ * 每个 {@link Migration} 只负责把数据库从一个版本升级到下一个版本，并且不会删除用户数据，
+ * 因此可以单独测试。需要逐行计算的耗时工作不在升级事务中完成，而是登记为 {@link Backfill}，
+ * 在数据库打开之后由后台线程分块执行。回填进度保存在数据库中，进程被杀死后下次打开会继续。
+ */
+final class NotePadMigrations {
+    // 用于调试和日志记录
+    private static final String TAG = "NotePadMigrations";
+
+    /**
+     * 记录尚未完成的回填任务及其进度的表
+     */
+    static final String BACKFILL_TABLE_NAME = "pending_backfills";
+
+    private static final String BACKFILL_COLUMN_NAME = "name";
+    private static final String BACKFILL_COLUMN_LAST_ID = "last_id";
+
+    /**
+     * 每个回填事务处理的最大行数。较小的块让前台读写可以在块之间插入。
+     */
+    static final int BACKFILL_CHUNK_SIZE = 500;
+
+    // 此类不能被实例化
+    private NotePadMigrations() {
+    }
+
+    /**
+     * 把数据库从 {@link #startVersion} 升级到下一个版本的一步迁移。
+     */
+    abstract static class Migration {
+        final int startVersion;
+
+        Migration(int startVersion) {
+            this.startVersion = startVersion;
+        }
+
+        /**
+         * 在升级事务中执行本步迁移。实现必须保留已有数据，耗时的逐行计算应通过
+         * {@link #scheduleBackfill(SQLiteDatabase, String)} 交给后台回填。
+         */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * 按笔记 _id 分块执行的回填任务。
+     */
+    interface Backfill {
+        /**
+         * 处理 _id 在 (afterId, throughId] 范围内的笔记。该方法在事务中调用，必须是幂等的。
+         */
+        void fill(SQLiteDatabase db, long afterId, long throughId);
+    }
+
+    /**
+     * 2 -> 3：补齐早期版本缺少的颜色和分类列，并建立全文搜索索引。
+     * 已有笔记的索引由 {@link #BACKFILL_FTS} 在后台补齐。
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_BACK_COLOR,
+                    "INTEGER DEFAULT " + NotePad.Notes.DEFAULT_COLOR);
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_CATEGORY,
+                    "TEXT");
+
+            // 旧的升级逻辑可能留下了没有触发器的索引表，重建之
+            db.execSQL("DROP TABLE IF EXISTS " + NotePadProvider.FTS_TABLE_NAME);
+            NotePadProvider.DatabaseHelper.createFullTextIndex(db);
+            scheduleBackfill(db, BACKFILL_FTS);
+        }
+    };
+
+    /**
+     * 3 -> 4：创建回填进度表。
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            createBackfillTable(db);
+        }
+    };
+
+    /**
+     * 4 -> 5：为列表的每种排序方式创建覆盖索引。
+     * 索引的定义总是当前版本的，因此由 {@link #migrate} 在升级到当前版本后统一创建。
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NotePadProvider.DatabaseHelper.dropListIndexes(db);
+        }
+    };
+
+    /**
+     * 5 -> 6：列表覆盖索引在排序列之后加入 _id，支持按 (排序值, _id) 的键集分页。
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NotePadProvider.DatabaseHelper.dropListIndexes(db);
+        }
+    };
+
+    /**
+     * 6 -> 7：增加笔记内容预览列，并重建列表覆盖索引以包含该列。
+     * 已有笔记的预览由 {@link #BACKFILL_SNIPPET} 在后台生成。
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_SNIPPET, "TEXT");
+            NotePadProvider.DatabaseHelper.dropListIndexes(db);
+            scheduleBackfill(db, BACKFILL_SNIPPET);
+        }
+    };
+
+    /**
+     * 7 -> 8：增加大笔记内容的分块存储。已有笔记保持原样，下次写入内容时按长度决定是否分块。
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_CHUNK_COUNT,
+                    "INTEGER NOT NULL DEFAULT 0");
+            NoteChunkStore.createTable(db);
+        }
+    };
+
+    /**
+     * 8 -> 9：增加笔记内容的压缩列和压缩字典表。压缩的内容同样不在内容列中，因此清理内容块的触发器
+     * 改为在块数置为 0 时触发，全文索引的更新触发器在内容列为 NULL 时保留索引中的内容。
+     * 已有笔记保持原样，下次写入内容或重新压缩时压缩。
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NoteCompressor.COLUMN_NAME_NOTE_Z, "BLOB");
+            NoteCompressor.createTable(db);
+            db.execSQL("DROP TRIGGER IF EXISTS note_chunks_inline");
+            NoteChunkStore.createTable(db);
+            db.execSQL("DROP TRIGGER IF EXISTS notes_fts_update");
+            NotePadProvider.DatabaseHelper.createFullTextUpdateTrigger(db);
+        }
+    };
+
+    /**
+     * 9 -> 10：增加笔记内容的摘要列。已有笔记的摘要为 NULL，下次写入内容时补齐，
+     * 在此之前对它们的写入总是被视为有变化。
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePadProvider.COLUMN_NAME_CONTENT_HASH,
+                    "BLOB");
+        }
+    };
+
+    /**
+     * 10 -> 11：增加笔记内容的修订历史。已有笔记下次写入内容时记录第一个修订（快照）。
+     */
+    static final Migration MIGRATION_10_11 = new Migration(10) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NoteRevisions.createTable(db);
+        }
+    };
+
+    /**
+     * 11 -> 12：分类移入字典表，笔记改为保存分类 ID，列表索引改为以分类 ID 为键。
+     * 已有笔记的分类由 {@link #BACKFILL_CATEGORY_ID} 在后台转换，在此之前提供者从旧的文本分类列
+     * 解析分类。旧的文本分类列在转换后置为 NULL 保留（SQLite 不支持删除列），此后不再写入。
+     */
+    static final Migration MIGRATION_11_12 = new Migration(11) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            NoteCategories.createTable(db);
+            addColumnIfMissing(db, NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                    "INTEGER REFERENCES " + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + ")");
+            NotePadProvider.DatabaseHelper.dropListIndexes(db);
+            scheduleBackfill(db, BACKFILL_CATEGORY_ID);
+        }
+    };
+
+    /**
+     * 12 -> 13：修订记录内容的长度，列出修订时不再还原内容。
+     * 已有修订的长度由 {@link #BACKFILL_REVISION_LENGTH} 在后台补齐。
+     */
+    static final Migration MIGRATION_12_13 = new Migration(12) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NoteRevisions.TABLE_NAME, NoteRevisions.COLUMN_NAME_LENGTH, "INTEGER");
+            scheduleBackfill(db, BACKFILL_REVISION_LENGTH);
+        }
+    };
+
+    /**
+     * 13 -> 14：内容块记录各自的长度，写入时按长度比较、只改写被编辑的块。
+     * 已有的块没有长度，其笔记下次写入内容时整体重写一次。
+     */
+    static final Migration MIGRATION_13_14 = new Migration(13) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            addColumnIfMissing(db, NoteChunkStore.TABLE_NAME, NoteChunkStore.COLUMN_NAME_LENGTH, "INTEGER");
+        }
+    };
+
+    /**
+     * 按版本顺序排列的全部迁移步骤
+     */
+    private static final Migration[] MIGRATIONS = {
+            MIGRATION_2_3,
+            MIGRATION_3_4,
+            MIGRATION_4_5,
+            MIGRATION_5_6,
+            MIGRATION_6_7,
+            MIGRATION_7_8,
+            MIGRATION_8_9,
+            MIGRATION_9_10,
+            MIGRATION_10_11,
+            MIGRATION_11_12,
+            MIGRATION_12_13,
+            MIGRATION_13_14,
+    };
+
+    /**
+     * 为已有笔记建立全文索引。新写入的笔记已由触发器索引，因此跳过已存在的 docid。
+     */
+    static final String BACKFILL_FTS = "fts";
+
+    /**
+     * 为已有笔记生成内容预览。
+     */
+    static final String BACKFILL_SNIPPET = "snippet";
+
+    /**
+     * 把已有笔记的文本分类转换为分类 ID。
+     */
+    static final String BACKFILL_CATEGORY_ID = "category_id";
+
+    /**
+     * 为已有修订补齐内容长度。
+     */
+    static final String BACKFILL_REVISION_LENGTH = "revision_length";
+
+    /**
+     * 按名称注册的回填任务
+     */
+    private static final HashMap<String, Backfill> sBackfills = new HashMap<String, Backfill>();
+
+    static {
+        sBackfills.put(BACKFILL_FTS, new Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, long afterId, long throughId) {
+                db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                        + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE " + NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ?"
+                        + " AND NOT EXISTS (SELECT 1 FROM " + NotePadProvider.FTS_TABLE_NAME
+                        + " WHERE docid = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ")",
+                        new Object[] { afterId, throughId });
+            }
+        });
+
+        sBackfills.put(BACKFILL_SNIPPET, new Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, long afterId, long throughId) {
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                        new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                        // 内容不在内容列中的笔记是在升级之后写入的，预览已经生成
+                        NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ? AND "
+                                + NotePad.Notes.COLUMN_NAME_NOTE + " IS NOT NULL",
+                        new String[] { Long.toString(afterId), Long.toString(throughId) },
+                        null, null, null);
+                try {
+                    ContentValues values = new ContentValues(1);
+                    String[] id = new String[1];
+                    while (c.moveToNext()) {
+                        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                                NotePadProvider.buildSnippet(c.getString(1)));
+                        id[0] = Long.toString(c.getLong(0));
+                        db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = ?", id);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        });
+
+        sBackfills.put(BACKFILL_CATEGORY_ID, new Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, long afterId, long throughId) {
+                NoteCategories.fillIds(db, afterId, throughId);
+            }
+        });
+
+        sBackfills.put(BACKFILL_REVISION_LENGTH, new Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, long afterId, long throughId) {
+                NoteRevisions.fillLengths(db, afterId, throughId);
+            }
+        });
+    }
+
+    /**
+     * 依次执行从 oldVersion 到 newVersion 的迁移步骤。改变列表索引结构的步骤只删除旧索引，
+     * 升级到当前版本后再按当前的定义创建一次，因为索引引用的列在中间版本中可能还不存在。
+     *
+     * @return 如果存在完整的迁移路径则返回 true；否则不做任何修改并返回 false。
+     */
+    static boolean migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        List<Migration> path = new ArrayList<Migration>();
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration step = findMigration(version);
+            if (step == null) {
+                return false;
+            }
+            path.add(step);
+        }
+
+        for (Migration step : path) {
+            Log.i(TAG, "Migrating notes database from version " + step.startVersion
+                    + " to " + (step.startVersion + 1));
+            step.migrate(db);
+        }
+        if (newVersion == NotePadProvider.DATABASE_VERSION) {
+            NotePadProvider.DatabaseHelper.createListIndexes(db);
+        }
+        return true;
+    }
+
+    private static Migration findMigration(int startVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.startVersion == startVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 创建回填进度表。
+     */
+    static void createBackfillTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKFILL_TABLE_NAME + " ("
+                + BACKFILL_COLUMN_NAME + " TEXT PRIMARY KEY,"
+                + BACKFILL_COLUMN_LAST_ID + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+    }
+
+    /**
+     * 登记一个回填任务，从第一条笔记开始执行。可以在迁移步骤中调用。
+     */
+    static void scheduleBackfill(SQLiteDatabase db, String name) {
+        if (!sBackfills.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown backfill " + name);
+        }
+        createBackfillTable(db);
+        db.execSQL("INSERT OR REPLACE INTO " + BACKFILL_TABLE_NAME + " ("
+                + BACKFILL_COLUMN_NAME + ", " + BACKFILL_COLUMN_LAST_ID + ") VALUES (?, 0)",
+                new Object[] { name });
+    }
+
+    /**
+     * 如果有尚未完成的回填任务，启动一个后台线程逐块执行。该方法立即返回，
+     * 不会阻塞打开数据库的调用者。
+     */
+    static void startPendingBackfills(final SQLiteDatabase db) {
+        if (!hasPendingBackfills(db)) {
+            return;
+        }
+
+        Thread worker = new Thread("NotePadBackfill") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    runPendingBackfills(db, BACKFILL_CHUNK_SIZE);
+                } catch (RuntimeException e) {
+                    // 数据库可能已被关闭。进度已保存，下次打开时继续。
+                    Log.w(TAG, "Backfill interrupted", e);
+                }
+            }
+        };
+        worker.start();
+    }
+
+    /**
+     * 在当前线程上执行全部回填任务，直到完成。
+     */
+    static void runPendingBackfills(SQLiteDatabase db, int chunkSize) {
+        for (String name : pendingBackfills(db)) {
+            while (runBackfillChunk(db, name, chunkSize)) {
+                // 继续下一块
+            }
+            Log.i(TAG, "Backfill " + name + " finished");
+        }
+    }
+
+    /**
+     * 在一个事务中执行指定回填任务的下一块，并保存进度。
+     *
+     * @return 如果还有剩余的行需要处理则返回 true。
+     */
+    static boolean runBackfillChunk(SQLiteDatabase db, String name, int chunkSize) {
+        Backfill backfill = sBackfills.get(name);
+
+        db.beginTransaction();
+        try {
+            if (backfill == null) {
+                // 由其他版本的应用登记、本版本不认识的任务
+                Log.w(TAG, "Dropping unknown backfill " + name);
+                db.delete(BACKFILL_TABLE_NAME, BACKFILL_COLUMN_NAME + " = ?", new String[] { name });
+                db.setTransactionSuccessful();
+                return false;
+            }
+
+            long afterId = readProgress(db, name);
+            if (afterId < 0) {
+                // 已经完成或未登记
+                return false;
+            }
+
+            long throughId = nextChunkEnd(db, afterId, chunkSize);
+            if (throughId < 0) {
+                db.delete(BACKFILL_TABLE_NAME, BACKFILL_COLUMN_NAME + " = ?", new String[] { name });
+                db.setTransactionSuccessful();
+                return false;
+            }
+
+            backfill.fill(db, afterId, throughId);
+            db.execSQL("UPDATE " + BACKFILL_TABLE_NAME + " SET " + BACKFILL_COLUMN_LAST_ID
+                    + " = ? WHERE " + BACKFILL_COLUMN_NAME + " = ?",
+                    new Object[] { throughId, name });
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 指定的回填任务是否已登记且尚未完成。
+     */
+    static boolean isBackfillPending(SQLiteDatabase db, String name) {
+        return readProgress(db, name) >= 0;
+    }
+
+    private static boolean hasPendingBackfills(SQLiteDatabase db) {
+        return !pendingBackfills(db).isEmpty();
+    }
+
+    private static List<String> pendingBackfills(SQLiteDatabase db) {
+        List<String> names = new ArrayList<String>();
+        Cursor c = db.query(BACKFILL_TABLE_NAME, new String[] { BACKFILL_COLUMN_NAME },
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                names.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return names;
+    }
+
+    private static long readProgress(SQLiteDatabase db, String name) {
+        Cursor c = db.query(BACKFILL_TABLE_NAME, new String[] { BACKFILL_COLUMN_LAST_ID },
+                BACKFILL_COLUMN_NAME + " = ?", new String[] { name }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 按主键顺序找到下一块的最后一个 _id。
+     *
+     * @return 下一块的结束 _id；如果 afterId 之后没有笔记则返回 -1。
+     */
+    private static long nextChunkEnd(SQLiteDatabase db, long afterId, int chunkSize) {
+        Cursor c = db.rawQuery("SELECT max(" + NotePad.Notes._ID + ") FROM (SELECT "
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + NotePad.Notes._ID + " > ? ORDER BY " + NotePad.Notes._ID
+                + " LIMIT " + chunkSize + ")",
+                new String[] { Long.toString(afterId) });
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 如果表中没有指定的列，则添加该列。
+     */
+    static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        if (!hasColumn(db, table, column)) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                if (column.equals(c.getString(nameIndex))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -20,9 +20,12 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
@@ -34,18 +37,32 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -67,7 +84,49 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * 数据库版本
      */
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 14;
+
+    /**
+     * 全文搜索影子索引表。docid 与 notes 表的 _id 一一对应，由触发器保持同步。
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * 笔记内容摘要的列名，只在提供者内部使用。每次写入内容时更新，用于识别内容没有变化的写入，
+     * 而不必读取（可能是压缩或分块存储的）内容本身进行比较。旧版本写入的笔记为 NULL，下次写入时补齐。
+     * <P>类型: BLOB（内容 UTF-8 编码的 SHA-1）</P>
+     */
+    static final String COLUMN_NAME_CONTENT_HASH = "content_hash";
+
+    /**
+     * 判断写入是否改变了笔记时不参与比较的列：修改时间由编辑器在每次保存时更新，
+     * 其余是由提供者维护的列。
+     */
+    private static final HashSet<String> UNCOMPARED_COLUMNS = new HashSet<String>(Arrays.asList(
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT,
+            NoteCompressor.COLUMN_NAME_NOTE_Z,
+            COLUMN_NAME_CONTENT_HASH));
+
+    /**
+     * 按命中次数计算相关度。offsets() 为每次命中返回 4 个整数，因此用空格数推算命中次数。
+     */
+    private static final String FTS_RANK_EXPRESSION =
+            "(length(offsets(" + FTS_TABLE_NAME + ")) - length(replace(offsets("
+                    + FTS_TABLE_NAME + "), ' ', '')) + 1) / 4";
+
+    /**
+     * 预览列保存的最大字符数
+     */
+    static final int SNIPPET_LENGTH = 100;
+
+    /**
+     * 搜索 URI 的默认排序：相关度优先，其次按修改时间
+     */
+    private static final String SEARCH_SORT_ORDER =
+            NotePad.Notes.COLUMN_NAME_RANK + " DESC, " + NotePad.Notes.DEFAULT_SORT_ORDER;
 
     /**
      * 用于从数据库选择列的投影映射
@@ -79,6 +138,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * 读取内容列时使用的投影映射：在客户端可用的映射之外包含压缩的内容列。
+     * 该列只由 query() 附加在投影末尾，客户端不能直接查询它。
+     */
+    private static HashMap<String, String> sNotesReadMap;
+    private static HashMap<String, String> sSearchReadMap;
+    private static HashMap<String, String> sLikeSearchReadMap;
+
+    /**
+     * 搜索使用的投影映射，在笔记列之外提供相关度列。全文检索和模糊匹配都由子查询计算相关度
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * 搜索词为空时使用的投影映射，相关度恒为 0
+     */
+    private static HashMap<String, String> sLikeSearchProjectionMap;
+
+    /**
+     * 支持分页查询的排序方式，键为调用者传入的排序字符串
+     */
+    private static HashMap<String, PageOrder> sPageOrders;
+
+    /**
+     * 笔记投影映射对应的回填期映射：分类 ID 的回填完成之前，分类 ID 和名称从旧的文本分类列解析
+     */
+    private static IdentityHashMap<HashMap<String, String>, HashMap<String, String>> sLegacyCategoryMaps;
+
     /**
      * 标准投影，用于选择普通笔记的有趣列。
      */
@@ -86,12 +173,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             NotePad.Notes._ID,               // 投影位置 0，笔记的 ID
             NotePad.Notes.COLUMN_NAME_NOTE,  // 投影位置 1，笔记的内容
             NotePad.Notes.COLUMN_NAME_TITLE, // 投影位置 2，笔记的标题
-            NotePad.Notes.COLUMN_NAME_CATEGORY // 新增 category 列
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 新增 category 列
+            NotePad.Notes.COLUMN_NAME_CHUNK_COUNT // 内容的块数
     };
 
+    private static final int READ_NOTE_ID_INDEX = 0;
     private static final int READ_NOTE_NOTE_INDEX = 1;
     private static final int READ_NOTE_TITLE_INDEX = 2;
     private static final int READ_NOTE_CATEGORY_INDEX = 3; // 对应 category 的索引
+    private static final int READ_NOTE_CHUNK_COUNT_INDEX = 4;
 
     /*
      * 根据传入 URI 的模式通过 Uri 匹配器选择操作的常量
@@ -105,6 +195,18 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 传入的 URI 与实时文件夹 URI 模式匹配
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // 传入的 URI 与全文搜索 URI 模式匹配
+    private static final int SEARCH = 4;
+
+    // 传入的 URI 与笔记修订历史 URI 模式匹配
+    private static final int NOTE_REVISIONS = 5;
+
+    // 传入的 URI 与分类字典 URI 模式匹配
+    private static final int CATEGORIES = 6;
+
+    // 传入的 URI 与笔记的单个修订 URI 模式匹配
+    private static final int NOTE_REVISION_ID = 7;
+
     /**
      * 一个 UriMatcher 实例
      */
@@ -113,6 +215,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // 数据库助手的句柄。
     private DatabaseHelper mOpenHelper;
 
+    // 单条笔记更新和删除的预编译语句
+    private final NoteStatementCache mStatementCache =
+            new NoteStatementCache(NoteStatementCache.DEFAULT_CAPACITY);
+
+    // 合并变更通知，通知中携带受影响的笔记 ID 和被修改的列
+    private NoteChangeNotifier mNotifier;
+
+    // 导入笔记时每个事务插入的默认行数
+    private int mImportBatchRows;
+
+    // 将全部笔记导出为流
+    private final NoteExporter mExporter = new NoteExporter(this);
+
+    // 笔记内容的透明压缩
+    private NoteCompressor mCompressor;
+
+    // 笔记内容的修订历史
+    private NoteRevisions mRevisions;
+
+    /**
+     * 重新压缩笔记时每个事务处理的行数
+     */
+    static final int RECOMPRESS_BATCH_ROWS = 200;
+
     /**
      * A block that instantiates and sets static objects
      */
@@ -121,8 +247,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         // 添加匹配模式
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes", NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_REVISIONS,
+                NOTE_REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_REVISIONS + "/#",
+                NOTE_REVISION_ID);
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
 
         /*
          * 初始化 sNotesProjectionMap，映射数据库列与URI字段
@@ -134,7 +266,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, NotePad.Notes.COLUMN_NAME_CREATE_DATE);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.COLUMN_NAME_BACK_COLOR);
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);  // 添加 category 映射
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        // 分类名称从字典表查出，笔记表中只保存分类 ID
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "(SELECT "
+                + NotePad.Categories.COLUMN_NAME_NAME + " FROM " + NotePad.Categories.TABLE_NAME
+                + " WHERE " + NotePad.Categories.TABLE_NAME + "." + NotePad.Categories._ID + " = "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ") AS "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_SNIPPET);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT, NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
 
         /*
          * 初始化 sLiveFolderProjectionMap，映射实时文件夹所需的列
@@ -142,6 +282,92 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sLiveFolderProjectionMap = new HashMap<String, String>();
         sLiveFolderProjectionMap.put(LiveFolders._ID, NotePad.Notes._ID + " AS " + LiveFolders._ID);
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " + LiveFolders.NAME);
+        sLiveFolderProjectionMap.put(LiveFolders.DESCRIPTION, NotePad.Notes.COLUMN_NAME_SNIPPET + " AS " + LiveFolders.DESCRIPTION);
+
+        /*
+         * 初始化搜索使用的投影映射。全文索引查询中 rank 由子查询计算。
+         */
+        sSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_RANK, NotePad.Notes.COLUMN_NAME_RANK);
+
+        sLikeSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sLikeSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_RANK, "0 AS " + NotePad.Notes.COLUMN_NAME_RANK);
+
+        // 压缩的内容只在查询内部使用，返回给客户端之前由光标包装解压并隐藏
+        sNotesReadMap = withCompressedColumn(sNotesProjectionMap);
+        sSearchReadMap = withCompressedColumn(sSearchProjectionMap);
+        sLikeSearchReadMap = withCompressedColumn(sLikeSearchProjectionMap);
+
+        sLegacyCategoryMaps = new IdentityHashMap<HashMap<String, String>, HashMap<String, String>>();
+        for (HashMap<String, String> map : Arrays.asList(sNotesProjectionMap, sSearchProjectionMap,
+                sLikeSearchProjectionMap, sNotesReadMap, sSearchReadMap, sLikeSearchReadMap)) {
+            sLegacyCategoryMaps.put(map, withLegacyCategories(map));
+        }
+
+        /*
+         * 初始化可分页的排序方式。每种排序都由列表覆盖索引按 (排序列, _id) 的顺序支持。
+         */
+        sPageOrders = new HashMap<String, PageOrder>();
+        sPageOrders.put(NotePad.Notes.SORT_ORDER_CREATED, new PageOrder(NotePad.Notes._ID, false));
+        sPageOrders.put(NotePad.Notes.SORT_ORDER_MODIFIED,
+                new PageOrder(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, true));
+        sPageOrders.put(NotePad.Notes.DEFAULT_SORT_ORDER,
+                new PageOrder(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, true));
+        sPageOrders.put(NotePad.Notes.SORT_ORDER_COLOR,
+                new PageOrder(NotePad.Notes.COLUMN_NAME_BACK_COLOR, false));
+        sPageOrders.put(NotePad.Notes.SORT_ORDER_CATEGORY,
+                new PageOrder(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, false));
+        // 早期版本按分类名称排序，保存的排序方式仍然可以使用，按分类 ID 分页
+        sPageOrders.put("category, _id", new PageOrder(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, false));
+    }
+
+    /**
+     * 一种可以按键集分页的排序：先按排序列，再按 _id 决定排序值相同的行的顺序。
+     */
+    static final class PageOrder {
+        // 排序列。按创建顺序排序时就是 _id 本身。
+        final String keyColumn;
+
+        // 是否降序。_id 与排序列同向排列，使索引可以整体正向或反向扫描。
+        final boolean descending;
+
+        PageOrder(String keyColumn, boolean descending) {
+            this.keyColumn = keyColumn;
+            this.descending = descending;
+        }
+
+        boolean isIdOrder() {
+            return NotePad.Notes._ID.equals(keyColumn);
+        }
+
+        /**
+         * 分类 ID 的回填完成之前用于分页的排序表达式：按分类排序时使用从旧的文本分类列解析的分类 ID，
+         * 与查询返回的分类 ID 一致。
+         */
+        String legacyKey() {
+            return NotePad.Notes.COLUMN_NAME_CATEGORY_ID.equals(keyColumn)
+                    ? NoteCategories.legacyIdSql() : keyColumn;
+        }
+
+        /**
+         * @param key 排序列，或 {@link #legacyKey()}
+         */
+        String orderBy(String key) {
+            String direction = descending ? " DESC" : "";
+            if (isIdOrder()) {
+                return NotePad.Notes._ID + direction;
+            }
+            return key + direction + ", " + NotePad.Notes._ID + direction;
+        }
+    }
+
+    /**
+     * 返回排序字符串对应的分页排序；空字符串表示默认排序。
+     *
+     * @return 分页排序；如果该排序不支持分页，返回 null。
+     */
+    static PageOrder pageOrder(String sortOrder) {
+        return sPageOrders.get(TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder);
     }
 
     /**
@@ -149,10 +375,61 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // 每个帮助对象只启动一次后台回填
+        private boolean mBackfillStarted;
+
+        // 分类 ID 的回填尚未完成时为 true，此时查询从旧的文本分类列解析分类
+        private volatile boolean mLegacyCategories;
+
+        // WAL 文件自动检查点的页数阈值
+        private final int mAutoCheckpointPages;
+
+        // 单次批量写入达到该行数后，提交时立即执行一次检查点
+        private final int mCheckpointBatchRows;
+
         DatabaseHelper(Context context) {
 
             // 调用父类构造函数，请求默认的光标工厂。
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            /*
+             * 使用预写日志（WAL）。写事务只追加到 WAL 文件，不再阻塞读取，
+             * 框架会为数据库维护一个读连接池，列表查询可以与导出、批量更新并发执行。
+             */
+            setWriteAheadLoggingEnabled(true);
+
+            Resources res = context.getResources();
+            mAutoCheckpointPages = res.getInteger(R.integer.wal_autocheckpoint_pages);
+            mCheckpointBatchRows = res.getInteger(R.integer.wal_checkpoint_batch_rows);
+        }
+
+        /**
+         * 在数据库连接配置阶段设置检查点策略。
+         */
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            super.onConfigure(db);
+            runPragma(db, "wal_autocheckpoint=" + mAutoCheckpointPages);
+        }
+
+        /**
+         * 按检查点策略，在一次写入了 rows 行的批处理提交之后执行被动检查点，
+         * 避免 WAL 文件在大批量导入后持续增长、拖慢后续读取。被动检查点不会等待读者。
+         */
+        void checkpointAfterBatch(SQLiteDatabase db, int rows) {
+            if (mCheckpointBatchRows > 0 && rows >= mCheckpointBatchRows) {
+                runPragma(db, "wal_checkpoint(PASSIVE)");
+            }
+        }
+
+        // 执行一条可能返回结果行的 PRAGMA
+        private static void runPragma(SQLiteDatabase db, String pragma) {
+            Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
+            }
         }
 
         /**
@@ -167,26 +444,167 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
                     + NotePad.Notes.COLUMN_NAME_BACK_COLOR + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT" // 新增分类字段
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER REFERENCES "
+                    + NotePad.Categories.TABLE_NAME + "(" + NotePad.Categories._ID + "),"
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " INTEGER NOT NULL DEFAULT 0,"
+                    + NoteCompressor.COLUMN_NAME_NOTE_Z + " BLOB,"
+                    + COLUMN_NAME_CONTENT_HASH + " BLOB"
+                    + ");");
+
+            NoteCategories.createTable(db);
+            createFullTextIndex(db);
+            NoteChunkStore.createTable(db);
+            NoteCompressor.createTable(db);
+            NoteRevisions.createTable(db);
+            NotePadMigrations.createBackfillTable(db);
+            createListIndexes(db);
+        }
+
+        /**
+         * 为列表的每种排序方式创建覆盖索引。索引以排序列和 _id 开头，并包含列表投影中的其余列
+         * （包括预览列），因此列表查询及其分页查询按索引顺序扫描即可返回结果，既不需要回表读取笔记内容，
+         * 也不需要临时排序。
+         */
+        static void createListIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_list_by_created ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_BACK_COLOR + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + ");");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_list_by_modified ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_BACK_COLOR + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + ");");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_list_by_color ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_BACK_COLOR + ", "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + ");");
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS notes_list_by_category ON "
+                    + NotePad.Notes.TABLE_NAME + " ("
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ", "
+                    + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_BACK_COLOR + ", "
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + ");");
+        }
+
+        /**
+         * 删除列表覆盖索引，供需要改变索引结构的迁移使用。
+         */
+        static void dropListIndexes(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS notes_list_by_created");
+            db.execSQL("DROP INDEX IF EXISTS notes_list_by_modified");
+            db.execSQL("DROP INDEX IF EXISTS notes_list_by_color");
+            db.execSQL("DROP INDEX IF EXISTS notes_list_by_category");
+        }
+
+        /**
+         * 创建全文搜索影子索引及保持其同步的触发器。插入、更新标题或内容、删除笔记时，
+         * 触发器会在同一事务中更新索引。
+         */
+        static void createFullTextIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE
                     + ");");
+
+            db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (new." + NotePad.Notes._ID + ", new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + ", new." + NotePad.Notes.COLUMN_NAME_NOTE + "); END;");
+
+            createFullTextUpdateTrigger(db);
+
+            db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN DELETE FROM " + FTS_TABLE_NAME
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
+        }
+
+        /**
+         * 创建更新标题或内容时同步全文索引的触发器。内容按块存储或被压缩时内容列为 NULL，
+         * 索引中的完整文本由提供者写入，触发器保留它，因此只修改标题不会清空索引中的内容。
+         */
+        static void createFullTextUpdateTrigger(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = CASE WHEN new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " IS NOT NULL OR (new." + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " = 0 AND new."
+                    + NoteCompressor.COLUMN_NAME_NOTE_Z + " IS NULL) THEN new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " ELSE " + NotePad.Notes.COLUMN_NAME_NOTE + " END"
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END;");
         }
 
         /**
-         * 演示了当底层数据存储发生变化时，提供者应该如何处理。在此示例中，数据库通过销毁现有数据来进行升级。
-         * 一个真正的应用程序应该在原地升级数据库。
+         * 通过 {@link NotePadMigrations} 中的迁移链原地升级数据库，保留已有数据。
+         * 只有没有迁移路径的早期版本才会重建数据库。
          */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (NotePadMigrations.migrate(db, oldVersion, newVersion)) {
+                return;
+            }
 
             // 记录数据库正在升级的日志
-            Log.w(TAG, "正在将数据库从版本 " + oldVersion + " 升级到 " + newVersion + "，这将销毁所有旧数据");
+            Log.w(TAG, "没有从版本 " + oldVersion + " 到 " + newVersion + " 的迁移路径，这将销毁所有旧数据");
 
             // 删除表和现有数据
             db.execSQL("DROP TABLE IF EXISTS notes");
+            db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NotePadMigrations.BACKFILL_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NoteChunkStore.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NoteCompressor.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NoteRevisions.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + NotePad.Categories.TABLE_NAME);
 
             // 使用新版本重新创建数据库
             onCreate(db);
         }
+
+        /**
+         * 数据库打开后，在后台线程上分块执行升级时登记的回填任务，不阻塞打开数据库的调用者。
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            mLegacyCategories = NotePadMigrations.isBackfillPending(db,
+                    NotePadMigrations.BACKFILL_CATEGORY_ID);
+            if (!mBackfillStarted && !db.isReadOnly()) {
+                mBackfillStarted = true;
+                NotePadMigrations.startPendingBackfills(db);
+            }
+        }
+
+        /**
+         * 查询是否需要从旧的文本分类列解析分类。只在回填进行期间检查进度表，回填完成后不再检查。
+         */
+        boolean readsLegacyCategories(SQLiteDatabase db) {
+            if (mLegacyCategories && !NotePadMigrations.isBackfillPending(db,
+                    NotePadMigrations.BACKFILL_CATEGORY_ID)) {
+                mLegacyCategories = false;
+            }
+            return mLegacyCategories;
+        }
     }
 
     /**
@@ -198,6 +616,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 创建一个新的帮助对象。注意，数据库本身直到有人尝试访问它时才会打开，且只有在数据库不存在时才会创建。
         mOpenHelper = new DatabaseHelper(getContext());
 
+        mNotifier = new NoteChangeNotifier(getContext().getContentResolver(),
+                getContext().getResources().getInteger(R.integer.notify_coalesce_millis));
+        mImportBatchRows = getContext().getResources().getInteger(R.integer.import_batch_rows);
+        mCompressor = new NoteCompressor(getContext().getResources().getBoolean(R.bool.compress_notes));
+        mRevisions = new NoteRevisions(
+                getContext().getResources().getInteger(R.integer.revision_keep_count),
+                getContext().getResources().getInteger(R.integer.revision_keep_days)
+                        * DateUtils.DAY_IN_MILLIS);
+
         // 假设任何失败都将通过抛出异常报告。
         return true;
     }
@@ -212,10 +639,98 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * 可取消的查询。当客户端调用
+     * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String, CancellationSignal)}
+     * 时调用此方法。取消信号会传给 SQLite，被取消的查询会抛出
+     * {@link android.os.OperationCanceledException}。
+     *
+     * @param cancellationSignal 用于取消查询的信号，可以为 null。
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        // 分类字典和修订不经过笔记的查询构建器
+        switch (sUriMatcher.match(uri)) {
+            case CATEGORIES:
+                return queryCategories(uri, projection, selection, selectionArgs, sortOrder);
+
+            case NOTE_REVISIONS:
+                // 投影、选择和排序参数被忽略。列表只有元数据，不还原内容
+                Cursor revisions = NoteRevisions.list(db,
+                        Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)));
+                revisions.setNotificationUri(getContext().getContentResolver(), uri);
+                return revisions;
+
+            case NOTE_REVISION_ID:
+                // 只还原所请求的一个修订
+                Cursor revision = NoteRevisions.query(db,
+                        Long.parseLong(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION)),
+                        ContentUris.parseId(uri));
+                revision.setNotificationUri(getContext().getContentResolver(), uri);
+                return revision;
+        }
+
+        // 执行查询
+        NotesQuery query = prepareQuery(db, uri, projection, selection, selectionArgs, sortOrder);
+        Cursor c = query.builder.query(db, query.projection, query.selection, query.selectionArgs,
+                null, null, query.orderBy, query.limit, cancellationSignal);
+        if (query.noteIndex >= 0) {
+            c = mCompressor.wrap(c, query.noteIndex, db);
+        }
+
+        // 设置通知 URI
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * 一条配置好的笔记查询：查询构建器和执行它所需的参数。
+     */
+    static final class NotesQuery {
+        final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        String[] projection;
+        String selection;
+        String[] selectionArgs;
+        String orderBy;
+
+        // 分页查询的最大行数，null 表示不限制
+        String limit;
+
+        // 内容列在投影中的位置，不读取内容列时为 -1
+        int noteIndex;
+
+        /**
+         * 返回查询的 SQL，与 {@link #query} 执行的相同。
+         */
+        String toSql() {
+            return builder.buildQuery(projection, selection, null, null, orderBy, limit);
+        }
+    }
+
+    /**
+     * 按笔记、单条笔记、实时文件夹和搜索 URI 配置查询，但不执行。{@link #query} 执行它；
+     * 测试用它检查提供者实际执行的 SQL 的查询计划。
+     *
+     * @throws IllegalArgumentException 如果 URI 不是笔记的查询 URI，或分页参数无效。
+     */
+    NotesQuery prepareQuery(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+        boolean legacyCategories = mOpenHelper.readsLegacyCategories(db);
 
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        NotesQuery query = new NotesQuery();
+        SQLiteQueryBuilder qb = query.builder;
         qb.setTables(NotePad.Notes.TABLE_NAME);
 
+        // 分页查询的最大行数，null 表示不限制
+        String limit = null;
+
         // 确保 projection 中包含所有需要的列
         if (projection == null) {
             projection = new String[] {
@@ -226,44 +741,254 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             };
         }
 
+        // 读取内容列时，在投影末尾附加压缩的内容，由光标包装按需解压
+        int noteIndex = Arrays.asList(projection).indexOf(NotePad.Notes.COLUMN_NAME_NOTE);
+        boolean readsNote = noteIndex >= 0;
+
         // 根据 URI 选择不同的查询模式
         switch (sUriMatcher.match(uri)) {
             case NOTES:
-                qb.setProjectionMap(sNotesProjectionMap);
+                qb.setProjectionMap(categoryMap(readsNote ? sNotesReadMap : sNotesProjectionMap,
+                        legacyCategories));
+                limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    PageOrder order = pageOrder(sortOrder);
+                    if (order == null) {
+                        throw new IllegalArgumentException("排序方式不支持分页: " + sortOrder);
+                    }
+                    limit = Integer.toString(parsePositive(limit, uri));
+                    String key = legacyCategories ? order.legacyKey() : order.keyColumn;
+                    selectionArgs = setUpPage(qb, order, key, uri, selectionArgs);
+                    sortOrder = order.orderBy(key);
+                }
                 break;
 
             case NOTE_ID:
-                qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(NotePad.Notes._ID + "=" + uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                qb.setProjectionMap(categoryMap(readsNote ? sNotesReadMap : sNotesProjectionMap,
+                        legacyCategories));
+                // ID 作为参数绑定，使每条笔记的查询共用同一条 SQL，连接的语句缓存可以复用已编译的语句
+                qb.appendWhere(NotePad.Notes._ID + " = ?");
+                selectionArgs = prependArgs(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION),
+                        selectionArgs);
                 break;
 
             case LIVE_FOLDER_NOTES:
                 qb.setProjectionMap(sLiveFolderProjectionMap);
+                // 实时文件夹的映射没有内容列，查询内容列时由查询构建器报告无效的列
+                readsNote = false;
+                break;
+
+            case SEARCH:
+                selectionArgs = setUpSearch(qb, uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY),
+                        selectionArgs, readsNote, legacyCategories);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = SEARCH_SORT_ORDER;
+                }
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        // 添加查询条件（按内容模糊查询）
-        if (!TextUtils.isEmpty(selection)) {
-            String queryText = selectionArgs[0]; // 获取用户输入的查询文本
-            selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-            selectionArgs = new String[] { "%" + queryText + "%", "%" + queryText + "%" };
+        if (readsNote) {
+            projection = Arrays.copyOf(projection, projection.length + 1);
+            projection[projection.length - 1] = NoteCompressor.COLUMN_NAME_NOTE_Z;
         }
 
+        query.projection = projection;
+        query.selection = selection;
+        query.selectionArgs = selectionArgs;
         // 设置排序顺序
-        String orderBy = TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder;
-
-        // 执行查询
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        query.orderBy = TextUtils.isEmpty(sortOrder) ? NotePad.Notes.DEFAULT_SORT_ORDER : sortOrder;
+        query.limit = limit;
+        query.noteIndex = readsNote ? noteIndex : -1;
+        return query;
+    }
 
-        // 设置通知 URI
+    /**
+     * 查询分类字典，默认按 ID 排序。
+     */
+    private Cursor queryCategories(Uri uri, String[] projection, String selection,
+                                   String[] selectionArgs, String sortOrder) {
+        Cursor c = mOpenHelper.getReadableDatabase().query(NotePad.Categories.TABLE_NAME, projection,
+                selection, selectionArgs, null, null,
+                TextUtils.isEmpty(sortOrder) ? NotePad.Categories.DEFAULT_SORT_ORDER : sortOrder);
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * 返回查询使用的投影映射；分类 ID 的回填完成之前使用从旧的文本分类列解析分类的映射。
+     */
+    private static HashMap<String, String> categoryMap(HashMap<String, String> map,
+                                                       boolean legacyCategories) {
+        return legacyCategories ? sLegacyCategoryMaps.get(map) : map;
+    }
+
+    private static HashMap<String, String> withLegacyCategories(HashMap<String, String> map) {
+        HashMap<String, String> legacy = new HashMap<String, String>(map);
+        legacy.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NoteCategories.legacyIdSql() + " AS "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        legacy.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NoteCategories.legacyNameSql() + " AS "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY);
+        return legacy;
+    }
+
+    private static HashMap<String, String> withCompressedColumn(HashMap<String, String> map) {
+        HashMap<String, String> read = new HashMap<String, String>(map);
+        read.put(NoteCompressor.COLUMN_NAME_NOTE_Z, NoteCompressor.COLUMN_NAME_NOTE_Z);
+        return read;
+    }
+
+    /**
+     * 为分页查询配置查询构建器。下一页的条件是“排在上一页最后一行之后”，写成
+     * {@code key >= v AND (key > v OR _id > id)} 的形式（降序时方向相反），
+     * 让 SQLite 可以直接在覆盖索引上定位到起点，而不是扫描并丢弃前面的所有行。
+     * <p>
+     * 升序时 NULL 排在最前面，因此上一页停在 NULL 值上时，后面还有其余的 NULL 行和全部非空行。
+     * 唯一的降序排序列是修改时间，它总是由提供者写入，不会为 NULL。
+     *
+     * @param key 排序列或排序表达式，与 ORDER BY 子句使用的相同
+     * @return 合并了分页参数之后的选择参数。分页条件位于调用者的条件之前，因此其参数排在前面。
+     */
+    private static String[] setUpPage(SQLiteQueryBuilder qb, PageOrder order, String key, Uri uri,
+                                      String[] selectionArgs) {
+        String afterId = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID);
+        if (afterId == null) {
+            // 第一页
+            return selectionArgs;
+        }
+        String id = Long.toString(parseLong(afterId, uri));
+
+        if (order.isIdOrder()) {
+            qb.appendWhere(NotePad.Notes._ID + (order.descending ? " < ?" : " > ?"));
+            return prependArgs(id, selectionArgs);
+        }
+
+        String after = order.descending ? " < ?" : " > ?";
+        String value = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_VALUE);
+
+        if (value == null) {
+            qb.appendWhere("(" + key + " IS NULL AND " + NotePad.Notes._ID + after + ")"
+                    + (order.descending ? "" : " OR " + key + " IS NOT NULL"));
+            return prependArgs(id, selectionArgs);
+        }
+
+        qb.appendWhere(key + (order.descending ? " <= ?" : " >= ?")
+                + " AND (" + key + after + " OR " + NotePad.Notes._ID + after + ")");
+        return prependArgs(value, prependArgs(value, prependArgs(id, selectionArgs)));
+    }
+
+    private static long parseLong(String value, Uri uri) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("无效的分页参数 " + uri);
+        }
+    }
+
+    private static int parsePositive(String value, Uri uri) {
+        long n = parseLong(value, uri);
+        if (n <= 0 || n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("无效的分页参数 " + uri);
+        }
+        return (int) n;
+    }
+
+    /**
+     * 为搜索 URI 配置查询构建器。能够走全文索引的搜索词会从 notes_fts 中取出命中的 docid，
+     * 再按主键回表，因此耗时与命中数成正比，而不是与笔记总数成正比。
+     *
+     * @param readsNote 投影是否读取内容列，此时使用包含压缩内容列的映射
+     * @return 合并了搜索参数之后的选择参数。搜索参数位于 FROM 子句中，因此排在调用者参数之前。
+     */
+    private static String[] setUpSearch(SQLiteQueryBuilder qb, String queryText, String[] selectionArgs,
+                                        boolean readsNote, boolean legacyCategories) {
+        String match = buildMatchQuery(queryText);
+
+        if (match != null) {
+            qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, "
+                    + FTS_RANK_EXPRESSION + " AS " + NotePad.Notes.COLUMN_NAME_RANK
+                    + " FROM " + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?) AS hits ON "
+                    + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = hits.docid");
+            qb.setProjectionMap(categoryMap(readsNote ? sSearchReadMap : sSearchProjectionMap,
+                    legacyCategories));
+            return prependArgs(match, selectionArgs);
+        }
+
+        qb.setProjectionMap(categoryMap(readsNote ? sLikeSearchReadMap : sLikeSearchProjectionMap,
+                legacyCategories));
+        if (TextUtils.isEmpty(queryText) || TextUtils.getTrimmedLength(queryText) == 0) {
+            return selectionArgs;
+        }
+
+        // 默认分词器不切分中文等非 ASCII 文本，此时退回到模糊匹配。按块存储或压缩的内容不在内容列中，
+        // 而全文索引总是保存完整的明文，因此在索引中匹配。与全文检索一样按命中次数排序。
+        qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, ("
+                + countOccurrencesSql(NotePad.Notes.COLUMN_NAME_TITLE) + " + "
+                + countOccurrencesSql(NotePad.Notes.COLUMN_NAME_NOTE) + ") / length(?) AS "
+                + NotePad.Notes.COLUMN_NAME_RANK + " FROM " + FTS_TABLE_NAME + " WHERE "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " LIKE ?) AS hits ON " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                + " = hits.docid");
+        qb.setProjectionMap(categoryMap(readsNote ? sSearchReadMap : sSearchProjectionMap,
+                legacyCategories));
+        String term = queryText.trim();
+        String like = "%" + term + "%";
+        return prependArgs(term, prependArgs(term, prependArgs(term,
+                prependArgs(like, prependArgs(like, selectionArgs)))));
+    }
+
+    // 搜索词在列中出现的字符总数（出现次数乘以搜索词长度）的 SQL 表达式，搜索词作为参数绑定。
+    // 与 LIKE 一样只忽略 ASCII 字母的大小写
+    private static String countOccurrencesSql(String column) {
+        return "(length(ifnull(" + column + ", '')) - length(replace(lower(ifnull(" + column
+                + ", '')), lower(?), '')))";
+    }
+
+    /**
+     * 将用户输入转换为 FTS MATCH 表达式：每个词去掉引号和通配符等运算符后作为前缀短语，
+     * 多个词之间为“与”关系。
+     *
+     * @return MATCH 表达式；如果输入为空或包含全文索引无法切分的字符，返回 null。
+     */
+    static String buildMatchQuery(String queryText) {
+        if (queryText == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String term : queryText.trim().split("\\s+")) {
+            StringBuilder token = new StringBuilder(term.length());
+            for (int i = 0; i < term.length(); i++) {
+                char ch = term.charAt(i);
+                if (ch > 0x7f) {
+                    return null;
+                }
+                // 与分词器一致，把标点当作分隔符，使 "e-mail" 这样的词成为短语
+                token.append(Character.isLetterOrDigit(ch) ? ch : ' ');
+            }
+            String phrase = token.toString().trim().replaceAll(" +", " ");
+            if (phrase.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(phrase).append("*\"");
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    private static String[] prependArgs(String first, String[] args) {
+        if (args == null) {
+            return new String[] { first };
+        }
+        String[] merged = new String[args.length + 1];
+        merged[0] = first;
+        System.arraycopy(args, 0, merged, 1, args.length);
+        return merged;
+    }
+
 
 
 
@@ -286,12 +1011,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // 如果模式是笔记或实时文件夹，返回通用的内容类型。
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // 如果模式是笔记 ID，返回笔记 ID 的内容类型。
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // 笔记的修订历史
+            case NOTE_REVISIONS:
+                return NotePad.Notes.REVISIONS_CONTENT_TYPE;
+
+            // 笔记的单个修订
+            case NOTE_REVISION_ID:
+                return NotePad.Notes.REVISION_CONTENT_ITEM_TYPE;
+
+            // 分类字典
+            case CATEGORIES:
+                return NotePad.Categories.CONTENT_TYPE;
+
             // 如果 URI 模式不匹配任何已知模式，抛出异常。
             default:
                 throw new IllegalArgumentException("未知的 URI " + uri);
@@ -300,19 +1038,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 //BEGIN_INCLUDE(stream)
     /**
-     * 该方法描述了支持打开笔记 URI 作为流的 MIME 类型。
+     * 该方法描述了支持打开笔记 URI 作为流的 MIME 类型：标题加内容的纯文本，以及只有内容的流。
      */
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[]{ClipDescription.MIMETYPE_TEXT_PLAIN});
+            new String[]{ClipDescription.MIMETYPE_TEXT_PLAIN, NotePad.Notes.STREAM_TYPE_NOTE_BODY});
 
     /**
-     * 返回可用数据流的类型。支持特定笔记的 URI。
-     * 应用程序可以将这些笔记转换为纯文本流。
+     * 返回可用数据流的类型。支持特定笔记的 URI 以及笔记目录的 URI。
+     * 单条笔记可以转换为纯文本流；全部笔记可以导出为 NDJSON 或纯文本流。
      *
      * @param uri            要分析的 URI
      * @param mimeTypeFilter MIME 类型过滤器。此方法仅返回匹配该过滤器的 MIME 类型的数据流类型。
-     *                       当前仅支持 text/plain MIME 类型。
-     * @return 数据流 MIME 类型。当前仅返回 text/plain。
+     * @return 数据流 MIME 类型。单条笔记为 text/plain；笔记目录为
+     *         {@link NotePad.Notes#EXPORT_TYPE_NDJSON} 和 text/plain。
      * @throws IllegalArgumentException 如果 URI 模式不匹配任何支持的模式。
      */
     @Override
@@ -322,12 +1060,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // 如果模式是笔记或实时文件夹，返回 null。此类型的 URI 不支持数据流。
+            // 如果模式是笔记或实时文件夹，返回导出全部笔记的数据流类型
             case NOTES:
             case LIVE_FOLDER_NOTES:
+                return NoteExporter.STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // 搜索结果、修订历史和分类字典不支持数据流
+            case SEARCH:
+            case NOTE_REVISIONS:
+            case NOTE_REVISION_ID:
+            case CATEGORIES:
                 return null;
 
-            // 如果模式是笔记 ID 并且 MIME 过滤器是 text/plain，则返回 text/plain
+            // 如果模式是笔记 ID，返回与 MIME 过滤器匹配的文本流类型
             case NOTE_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
@@ -355,6 +1100,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 检查 MIME 类型过滤器是否匹配支持的 MIME 类型。
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // 笔记目录的导出流在写入线程上逐页查询，这里不需要预先查询
+        if (mimeTypes != null && sUriMatcher.match(uri) != NOTE_ID) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, null, mExporter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // 如果 MIME 类型受支持
         if (mimeTypes != null) {
 
@@ -402,10 +1154,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+            boolean bodyOnly = NotePad.Notes.STREAM_TYPE_NOTE_BODY.equals(mimeType);
+            if (!bodyOnly) {
+                pw.println(c.getString(READ_NOTE_TITLE_INDEX));
+                pw.println("");
+            }
+
+            int chunks = c.getInt(READ_NOTE_CHUNK_COUNT_INDEX);
+            if (chunks > 0) {
+                // 按块存储的内容逐块写出，不需要整体读入内存
+                NoteChunkStore.copyTo(mOpenHelper.getReadableDatabase(),
+                        c.getLong(READ_NOTE_ID_INDEX), chunks, pw);
+            } else if (!c.isNull(READ_NOTE_NOTE_INDEX)) {
+                pw.print(c.getString(READ_NOTE_NOTE_INDEX));
+            }
+
+            if (!bodyOnly) {
+                pw.println();
+            }
+        } catch (IOException e) {
             Log.w(TAG, "发生错误", e);
         } finally {
             c.close();
@@ -430,11 +1197,49 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
-        // 验证传入的 URI。仅允许使用完整的提供者 URI 来执行插入。
+        // 以“写入”模式打开数据库对象。
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // 按名称加入用户定义的分类，名称已存在时返回已有的分类
+        if (sUriMatcher.match(uri) == CATEGORIES) {
+            String name = initialValues != null
+                    ? initialValues.getAsString(NotePad.Categories.COLUMN_NAME_NAME) : null;
+            if (name == null || TextUtils.getTrimmedLength(name) == 0) {
+                throw new IllegalArgumentException("缺少分类名称");
+            }
+            // 只有字典中确实加入了新分类时才通知监听器
+            long categoryId = NoteCategories.addName(db, name);
+            if (categoryId != -1) {
+                getContext().getContentResolver().notifyChange(NotePad.Categories.CONTENT_URI, null);
+            } else {
+                categoryId = NoteCategories.idForName(db, name);
+            }
+            return ContentUris.withAppendedId(NotePad.Categories.CONTENT_URI, categoryId);
+        }
+
+        // 验证传入的 URI。其余插入只允许使用完整的提供者 URI。
         if (sUriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("未知的 URI " + uri);
         }
 
+        // 执行插入操作并获取新笔记的 ID。
+        long rowId = insertNote(db, initialValues);
+
+        // 通知注册到此提供者的观察者数据发生了变化。
+        mNotifier.rowInserted(rowId);
+
+        // 返回包含笔记 ID 模式和新行 ID 的 URI。
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+    }
+
+    /**
+     * 为未提供的列填入默认值后插入一条笔记。{@link #insert} 和 {@link #bulkInsert} 共用此方法，
+     * 因此单条插入和批量插入得到的行完全相同。
+     *
+     * @return 新行的 ID。
+     * @throws SQLException 如果插入失败。
+     */
+    private long insertNote(SQLiteDatabase db, ContentValues initialValues) {
         // 用于存储新记录值的映射。
         ContentValues values;
 
@@ -475,14 +1280,38 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_BACK_COLOR, NotePad.Notes.DEFAULT_COLOR);
         }
 
-        // 如果值映射中不包含分类，则将其设置为默认分类（任务）。
-        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY) == false) {
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_TASK);  // 默认分类为 "任务"
+        // 按名称写入的分类转换为分类 ID；没有分类时使用默认分类（任务）。
+        NoteCategories.resolveName(db, values);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID) == false) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, NotePad.Categories.ID_TASK);  // 默认分类为 "任务"
         }
 
-        // 以“写入”模式打开数据库对象。
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // 预览列总是由笔记内容生成
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                buildSnippet(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+
+        // 按块存储或压缩的内容在插入行之后写入内容块和全文索引，内容的第一个修订在同一事务中记录
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        String storedNote = takeStoredNote(db, values);
+        if (storedNote == null && !mRevisions.isEnabled()) {
+            return insertRow(db, values);
+        }
+
+        db.beginTransaction();
+        try {
+            long rowId = insertRow(db, values);
+            if (storedNote != null) {
+                writeStoredNote(db, rowId, storedNote);
+            }
+            mRevisions.record(db, rowId, null, note);
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
 
+    private static long insertRow(SQLiteDatabase db, ContentValues values) {
         // 执行插入操作并返回新笔记的 ID。
         long rowId = db.insert(
                 NotePad.Notes.TABLE_NAME,        // 插入的表格名称
@@ -490,18 +1319,402 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 values                           // 包含列名和要插入的列值的映射
         );
 
-        // 如果插入成功，rowId 会大于 0。
-        if (rowId > 0) {
-            // 创建一个包含笔记 ID 模式和新行 ID 的 URI。
-            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+        // 如果插入失败，则 rowId <= 0。抛出异常。
+        if (rowId <= 0) {
+            throw new SQLException("插入行失败，URI " + NotePad.Notes.CONTENT_URI);
+        }
+        return rowId;
+    }
 
-            // 通知注册到此提供者的观察者数据发生了变化。
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+    /**
+     * 决定值中笔记内容的存储方式并记录内容摘要，丢弃客户端写入的块数、压缩内容和摘要。
+     * <ul>
+     * <li>需要按块存储的大笔记：内容列和压缩列置为 NULL，块数在写入内容块时记录。</li>
+     * <li>可以压缩的内容：内容列置为 NULL，压缩后的内容写入压缩列，块数置为 0。</li>
+     * <li>其余内容原样保存在内容列中，压缩列置为 NULL，块数置为 0。</li>
+     * </ul>
+     * 块数置为 0 时，旧的内容块由触发器删除。
+     *
+     * @return 不在内容列中的内容，由调用者在写入行之后调用 {@link #writeStoredNote}；
+     *         内容保存在内容列中或没有写入内容时返回 null。
+     */
+    private String takeStoredNote(SQLiteDatabase db, ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT);
+        values.remove(NoteCompressor.COLUMN_NAME_NOTE_Z);
+        values.remove(COLUMN_NAME_CONTENT_HASH);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
         }
 
-        // 如果插入失败，则 rowId <= 0。抛出异常。
-        throw new SQLException("插入行失败，URI " + uri);
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(COLUMN_NAME_CONTENT_HASH, contentHash(note));
+        if (NoteChunkStore.isLarge(note)) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.putNull(NoteCompressor.COLUMN_NAME_NOTE_Z);
+            return note;
+        }
+
+        values.put(NotePad.Notes.COLUMN_NAME_CHUNK_COUNT, 0);
+        byte[] compressed = mCompressor.compress(db, note);
+        if (compressed == null) {
+            values.putNull(NoteCompressor.COLUMN_NAME_NOTE_Z);
+            return null;
+        }
+        values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(NoteCompressor.COLUMN_NAME_NOTE_Z, compressed);
+        return note;
+    }
+
+    /**
+     * 写入不在内容列中的笔记内容：大笔记写为内容块并记录块数。全文索引仍然索引完整的内容：
+     * 触发器无法从内容列得到这些内容，这里把完整文本写入索引。调用者负责事务。
+     */
+    private static void writeStoredNote(SQLiteDatabase db, long id, String text) {
+        if (NoteChunkStore.isLarge(text)) {
+            int chunks = NoteChunkStore.write(db, id, text);
+            db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " = ? WHERE " + NotePad.Notes._ID + " = ?",
+                    new Object[] { chunks, id });
+        }
+        writeFullTextNote(db, id, text);
+    }
+
+    private static void writeFullTextNote(SQLiteDatabase db, long id, String text) {
+        db.execSQL("UPDATE " + FTS_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " = ? WHERE docid = ?", new Object[] { text, id });
+    }
+
+    /**
+     * 读取按块存储的笔记内容中的一块，供导出使用。
+     *
+     * @return 块的内容；块不存在时返回 null。
+     */
+    String readNoteChunk(long id, int seq) {
+        return NoteChunkStore.readChunk(mOpenHelper.getReadableDatabase(), id, seq);
+    }
+
+    /**
+     * 生成笔记内容的预览：连续空白合并为一个空格，最多保留 {@link #SNIPPET_LENGTH} 个字符，
+     * 并且不会在代理对中间截断。
+     */
+    static String buildSnippet(String note) {
+        if (note == null) {
+            return "";
+        }
+
+        StringBuilder snippet = new StringBuilder(Math.min(note.length(), SNIPPET_LENGTH));
+        boolean pendingSpace = false;
+        for (int i = 0; i < note.length() && snippet.length() < SNIPPET_LENGTH; i++) {
+            char ch = note.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                pendingSpace = snippet.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                snippet.append(' ');
+                pendingSpace = false;
+                if (snippet.length() == SNIPPET_LENGTH) {
+                    break;
+                }
+            }
+            snippet.append(ch);
+        }
+
+        int length = snippet.length();
+        if (length > 0 && Character.isHighSurrogate(snippet.charAt(length - 1))) {
+            snippet.setLength(length - 1);
+        }
+        return snippet.toString().trim();
+    }
+
+    /**
+     * 返回更新值的副本：丢弃客户端写入的预览值，笔记内容发生变化时重新生成预览。
+     */
+    private static ContentValues withSnippet(ContentValues initialValues) {
+        ContentValues values = new ContentValues(initialValues);
+        values.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                    buildSnippet(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        }
+        return values;
+    }
+
+    /**
+     * 当客户端调用 {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])} 时调用此方法。
+     * 在一个事务中插入全部行，并且只在提交后发送一次变更通知。任何一行插入失败时，整批回滚。
+     *
+     * @return 插入的行数。
+     * @throws IllegalArgumentException 如果传入的 URI 模式无效。
+     * @throws SQLException 如果插入失败。
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        // 验证传入的 URI。仅允许使用完整的提供者 URI 来执行插入。
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("未知的 URI " + uri);
+        }
+
+        return insertBatch(mOpenHelper.getWritableDatabase(), Arrays.asList(values));
+    }
+
+    /**
+     * 在一个事务中插入全部行，提交后发送一次变更通知并按检查点策略执行检查点。
+     * 任何一行插入失败时，整批回滚。
+     *
+     * @return 插入的行数。
+     */
+    private int insertBatch(SQLiteDatabase db, List<ContentValues> rows) {
+        boolean committed = false;
+        db.beginTransaction();
+        mNotifier.beginBatch();
+        try {
+            try {
+                for (ContentValues row : rows) {
+                    mNotifier.rowInserted(insertNote(db, row));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            mNotifier.endBatch(committed);
+        }
+
+        mOpenHelper.checkpointAfterBatch(db, rows.size());
+        return rows.size();
+    }
+
+    /**
+     * 当客户端调用 {@link android.content.ContentResolver#call(Uri, String, String, Bundle)} 时调用此方法。
+     * 支持 {@link NotePad.Notes#METHOD_SAVE_NOTE}：在一个事务中保存一条笔记；
+     * {@link NotePad.Notes#METHOD_IMPORT}：从参数指定的 URI 导入笔记；以及
+     * {@link NotePad.Notes#METHOD_RECOMPRESS}：重新训练压缩字典并重新压缩全部笔记。
+     *
+     * @throws IllegalArgumentException 如果方法未知、导入源无法读取或格式错误。
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (extras == null) {
+            extras = Bundle.EMPTY;
+        }
+        if (NotePad.Notes.METHOD_SAVE_NOTE.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("缺少笔记 URI");
+            }
+            return saveNote(Uri.parse(arg),
+                    (ContentValues) extras.getParcelable(NotePad.Notes.EXTRA_NOTE_VALUES));
+        }
+        if (NotePad.Notes.METHOD_RECOMPRESS.equals(method)) {
+            return recompressNotes(extras.getBoolean(NotePad.Notes.EXTRA_TRAIN_DICTIONARY, true));
+        }
+        if (!NotePad.Notes.METHOD_IMPORT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (arg == null) {
+            throw new IllegalArgumentException("缺少导入源");
+        }
+
+        Uri source = Uri.parse(arg);
+        int batchRows = extras.getInt(NotePad.Notes.EXTRA_IMPORT_BATCH_ROWS, mImportBatchRows);
+        ResultReceiver progress = extras.getParcelable(NotePad.Notes.EXTRA_IMPORT_PROGRESS);
+        try {
+            InputStream in = getContext().getContentResolver().openInputStream(source);
+            try {
+                return importNotes(new InputStreamReader(in, "UTF-8"),
+                        extras.getString(NotePad.Notes.EXTRA_IMPORT_TYPE), batchRows, progress);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("无法读取导入源 " + source, e);
+        }
+    }
+
+    /**
+     * 从字符流导入笔记。输入被逐条解析，每累积 batchRows 条笔记就在一个事务中插入，
+     * 因此内存占用只与批大小有关，与输入的大小无关。每个事务提交后向 progress 报告进度。
+     * <p>
+     * 输入格式错误时抛出异常，此前已经提交的批次会保留。
+     *
+     * @return 包含导入行数、用时和速度的 Bundle。
+     */
+    Bundle importNotes(Reader reader, String mimeType, int batchRows, ResultReceiver progress)
+            throws IOException {
+        if (batchRows <= 0) {
+            throw new IllegalArgumentException("无效的批大小 " + batchRows);
+        }
+        NoteImporter importer = NoteImporter.forType(mimeType, reader);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        long start = SystemClock.elapsedRealtime();
+        long rows = 0;
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(Math.min(batchRows, 1024));
+        ContentValues note;
+        do {
+            note = importer.next();
+            if (note != null) {
+                batch.add(note);
+            }
+            if (batch.size() == batchRows || (note == null && !batch.isEmpty())) {
+                rows += insertBatch(db, batch);
+                batch.clear();
+                if (progress != null) {
+                    progress.send(0, importStats(rows, start));
+                }
+            }
+        } while (note != null);
+
+        Bundle result = importStats(rows, start);
+        Log.i(TAG, "导入了 " + rows + " 条笔记，用时 "
+                + result.getLong(NotePad.Notes.EXTRA_IMPORT_ELAPSED_MILLIS) + " 毫秒");
+        return result;
+    }
+
+    private static Bundle importStats(long rows, long start) {
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Bundle stats = new Bundle();
+        stats.putLong(NotePad.Notes.EXTRA_IMPORTED_ROWS, rows);
+        stats.putLong(NotePad.Notes.EXTRA_IMPORT_ELAPSED_MILLIS, elapsed);
+        stats.putDouble(NotePad.Notes.EXTRA_IMPORT_ROWS_PER_SECOND,
+                elapsed > 0 ? rows * 1000.0 / elapsed : 0);
+        return stats;
+    }
+
+    /**
+     * 按当前的压缩设置重新保存全部未分块的笔记内容。train 为 true 且压缩已打开时，先从现有笔记训练
+     * 新字典，之后的内容都使用新字典压缩；压缩已关闭时，压缩的内容被还原到内容列中。
+     * <p>
+     * 笔记按 _id 顺序分批处理，每批 {@link #RECOMPRESS_BATCH_ROWS} 行一个事务，前台读写可以在批之间进行。
+     * 笔记内容本身不变，因此不修改修改时间，也不发送变更通知。
+     *
+     * @return 包含处理行数、改写行数以及处理前后内容所占字节数的 Bundle。
+     */
+    Bundle recompressNotes(boolean train) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+
+        if (train && mCompressor.isEnabled()) {
+            byte[] dictionary = mCompressor.train(db);
+            if (dictionary != null) {
+                mCompressor.install(db, dictionary);
+            }
+        }
+
+        long afterId = 0;
+        long rows = 0;
+        long rewritten = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        String[] columns = new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_NOTE, NoteCompressor.COLUMN_NAME_NOTE_Z
+        };
+        int batch;
+        do {
+            batch = 0;
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns,
+                        NotePad.Notes._ID + " > ? AND " + NotePad.Notes.COLUMN_NAME_CHUNK_COUNT + " = 0",
+                        new String[] { Long.toString(afterId) }, null, null, NotePad.Notes._ID,
+                        Integer.toString(RECOMPRESS_BATCH_ROWS));
+                try {
+                    while (c.moveToNext()) {
+                        afterId = c.getLong(0);
+                        batch++;
+                        byte[] oldCompressed = c.isNull(2) ? null : c.getBlob(2);
+                        String text = oldCompressed == null
+                                ? c.getString(1) : mCompressor.decompress(db, oldCompressed);
+                        byte[] newCompressed = mCompressor.compress(db, text);
+
+                        bytesBefore += NoteCompressor.storedSize(text, oldCompressed);
+                        bytesAfter += NoteCompressor.storedSize(text, newCompressed);
+                        if (rewriteStoredNote(db, afterId, text, oldCompressed, newCompressed)) {
+                            rewritten++;
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            rows += batch;
+        } while (batch == RECOMPRESS_BATCH_ROWS);
+
+        mOpenHelper.checkpointAfterBatch(db, (int) Math.min(rewritten, Integer.MAX_VALUE));
+
+        Bundle result = new Bundle();
+        result.putLong(NotePad.Notes.EXTRA_RECOMPRESSED_ROWS, rewritten);
+        result.putLong(NotePad.Notes.EXTRA_STORED_BYTES_BEFORE, bytesBefore);
+        result.putLong(NotePad.Notes.EXTRA_STORED_BYTES_AFTER, bytesAfter);
+        Log.i(TAG, "重新压缩了 " + rewritten + "/" + rows + " 条笔记，内容从 " + bytesBefore
+                + " 字节变为 " + bytesAfter + " 字节，用时 "
+                + (SystemClock.elapsedRealtime() - start) + " 毫秒");
+        return result;
+    }
+
+    /**
+     * 用新的压缩结果改写一条笔记的内容。两者都是压缩的内容时只改写压缩列，全文索引不变；
+     * 在压缩与不压缩之间转换时同时改写内容列，并把完整文本写回全文索引。
+     *
+     * @return 笔记是否被改写。
+     */
+    private static boolean rewriteStoredNote(SQLiteDatabase db, long id, String text,
+                                             byte[] oldCompressed, byte[] newCompressed) {
+        if (oldCompressed != null && newCompressed != null) {
+            if (Arrays.equals(oldCompressed, newCompressed)) {
+                return false;
+            }
+            db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                    + NoteCompressor.COLUMN_NAME_NOTE_Z + " = ? WHERE " + NotePad.Notes._ID + " = ?",
+                    new Object[] { newCompressed, id });
+            return true;
+        }
+        if (oldCompressed == null && newCompressed == null) {
+            return false;
+        }
+
+        db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " = ?, " + NoteCompressor.COLUMN_NAME_NOTE_Z
+                + " = ? WHERE " + NotePad.Notes._ID + " = ?",
+                new Object[] { newCompressed == null ? text : null, newCompressed, id });
+        if (newCompressed != null) {
+            writeFullTextNote(db, id, text);
+        }
+        return true;
+    }
+
+    /**
+     * 当客户端调用 {@link android.content.ContentResolver#applyBatch(String, ArrayList)} 时调用此方法。
+     * 在一个事务中执行全部操作，任何一个操作失败时整批回滚。各操作产生的变更通知会被合并，
+     * 在事务提交后只发送一次。
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        boolean committed = false;
+
+        db.beginTransaction();
+        mNotifier.beginBatch();
+        try {
+            try {
+                results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            mNotifier.endBatch(committed);
+        }
+
+        mOpenHelper.checkpointAfterBatch(db, operations.size());
+        return results;
     }
 
     /**
@@ -523,9 +1736,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String finalWhere;
 
         int count;
+        int match = sUriMatcher.match(uri);
 
         // 根据传入的 URI 模式执行删除操作。
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // 如果传入的模式匹配笔记的一般模式，根据传入的 "where" 列名和参数执行删除。
             case NOTES:
@@ -538,26 +1752,21 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // 如果传入的 URI 匹配单个笔记 ID，则基于传入数据执行删除，但会修改 where 子句以限制删除特定的笔记 ID。
             case NOTE_ID:
-                /*
-                 * 开始构建最终的 WHERE 子句，限制为特定的笔记 ID。
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // ID 列名
-                                " = " +                                          // 检查是否相等
-                                uri.getPathSegments().                           // 获取传入的笔记 ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // 如果有其他选择条件，将其附加到最终的 WHERE 子句。
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                // 没有其他选择条件时使用缓存的预编译语句
+                if (where == null) {
+                    count = mStatementCache.delete(db, ContentUris.parseId(uri));
+                    break;
                 }
 
+                // 笔记 ID 作为第一个参数绑定，其余选择条件附加在后面。
+                finalWhere = NotePad.Notes._ID + " = ? AND (" + where + ")";
+
                 // 执行删除操作。
                 count = db.delete(
                         NotePad.Notes.TABLE_NAME,  // 数据库表名称。
                         finalWhere,                // 最终的 WHERE 子句。
-                        whereArgs                  // 传入的 where 子句值。
+                        prependArgs(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION),
+                                whereArgs)         // 笔记 ID 和传入的 where 子句值。
                 );
                 break;
 
@@ -566,10 +1775,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("未知的 URI " + uri);
         }
 
-        /* 获取当前上下文的 content resolver 对象，并通知它传入的 URI 已更改。
-         * 该对象将此信息传递给 resolver 框架，已注册的观察者将会收到通知。
+        /* 通知观察者被删除的笔记。通知会与短时间内的其他变更合并后发送。
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            if (match == NOTE_ID) {
+                mNotifier.rowDeleted(ContentUris.parseId(uri));
+            } else {
+                mNotifier.rowsDeleted();
+            }
+        }
 
         // 返回删除的行数。
         return count;
@@ -582,21 +1796,233 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * 如果更新了行数据，则会通知监听器数据已更改。
      *
      * @param uri       需要匹配并更新的 URI 模式。
-     * @param values    包含列名（键）和新值（值）的映射。
+     * @param initialValues 包含列名（键）和新值（值）的映射。
      * @param where     SQL "WHERE" 子句，根据列值选择记录。如果为 null，则会选择所有匹配 URI 模式的记录。
      * @param whereArgs 选择条件的数组。如果 "where" 参数包含占位符（"?"），则每个占位符将被数组中相应的元素替换。
      * @return 更新的行数。
      * @throws IllegalArgumentException 如果传入的 URI 模式无效。
      */
     @Override
-    public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+    public int update(Uri uri, ContentValues initialValues, String where, String[] whereArgs) {
 
         // 以“写入”模式打开数据库对象。
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentValues values = withSnippet(initialValues);
+        NoteCategories.resolveName(db, values);
+        int match = sUriMatcher.match(uri);
+
+        // 与已保存的内容相同的单条笔记写入不写入数据库，也不发送通知
+        if (match == NOTE_ID && where == null && isUnchanged(db, ContentUris.parseId(uri), values)) {
+            return 1;
+        }
+        int count = updateNotes(db, uri, match, values, where, whereArgs);
+
+        /* 通知观察者被更新的笔记和列。通知会与短时间内的其他变更合并后发送。
+         */
+        if (count > 0) {
+            if (match == NOTE_ID) {
+                mNotifier.rowUpdated(ContentUris.parseId(uri), values.keySet());
+            } else {
+                mNotifier.rowsUpdated(values.keySet());
+            }
+        }
+
+        // 返回更新的行数。
+        return count;
+    }
+
+    /**
+     * 更新笔记，按内容的存储方式写入内容列、压缩列或内容块，并为写入了内容的笔记记录修订。
+     * 需要写入内容块、全文索引或修订时，全部写入在一个事务中完成。
+     * 返回时 values 中只剩下客户端可见的列，可以直接用于变更通知。
+     *
+     * @return 更新的行数。
+     */
+    private int updateNotes(SQLiteDatabase db, Uri uri, int match, ContentValues values,
+                            String where, String[] whereArgs) {
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        boolean recordRevision = note != null && mRevisions.isEnabled();
+        String storedNote = takeStoredNote(db, values);
+        int count;
+
+        if (storedNote == null && !recordRevision) {
+            count = updateRows(db, uri, match, values, where, whereArgs);
+        } else {
+            // 先找出要更新的笔记和被替换的内容，更新行之后再为每条笔记写入内容块、全文索引和修订
+            db.beginTransaction();
+            try {
+                List<Long> ids = selectIds(db, uri, match, where, whereArgs);
+                HashMap<Long, String> previous = null;
+                if (recordRevision) {
+                    previous = new HashMap<Long, String>();
+                    for (long id : ids) {
+                        previous.put(id, readRevisionBase(db, id));
+                    }
+                }
+                count = updateRows(db, uri, match, values, where, whereArgs);
+                for (long id : ids) {
+                    if (storedNote != null) {
+                        writeStoredNote(db, id, storedNote);
+                    }
+                    if (recordRevision) {
+                        mRevisions.record(db, id, previous.get(id), note);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        // 压缩列和摘要列是内部列，对观察者而言是内容列发生了变化
+        values.remove(NoteCompressor.COLUMN_NAME_NOTE_Z);
+        values.remove(COLUMN_NAME_CONTENT_HASH);
+        return count;
+    }
+
+    /**
+     * 读取笔记行中保存的内容，作为下一个修订的差异基准。按块存储的大笔记没有记录修订，返回 null。
+     */
+    private String readRevisionBase(SQLiteDatabase db, long id) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] {
+                        NotePad.Notes.COLUMN_NAME_NOTE, NoteCompressor.COLUMN_NAME_NOTE_Z,
+                        NotePad.Notes.COLUMN_NAME_CHUNK_COUNT },
+                NotePad.Notes._ID + " = ?", new String[] { Long.toString(id) }, null, null, null);
+        try {
+            if (!c.moveToFirst() || c.getInt(2) > 0) {
+                return null;
+            }
+            return c.isNull(1) ? c.getString(0) : mCompressor.decompress(db, c.getBlob(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 判断对一条笔记的写入是否与已保存的值完全相同。内容通过摘要比较，其余列直接与保存的值比较；
+     * 修改时间不参与比较，因此只是打开再关闭笔记时编辑器的保存不会改变修改时间和列表顺序。
+     * 只写入修改时间的调用被视为有意的更新。
+     *
+     * @return 如果笔记存在且写入不会改变任何比较的列，返回 true。
+     */
+    private static boolean isUnchanged(SQLiteDatabase db, long id, ContentValues values) {
+        ArrayList<String> columns = new ArrayList<String>();
+        columns.add(COLUMN_NAME_CONTENT_HASH);
+        for (String column : values.keySet()) {
+            if (!UNCOMPARED_COLUMNS.contains(column)) {
+                columns.add(column);
+            }
+        }
+        boolean writesNote = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (columns.size() == 1 && !writesNote) {
+            return false;
+        }
+
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, columns.toArray(new String[columns.size()]),
+                NotePad.Notes._ID + " = ?", new String[] { Long.toString(id) }, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            if (writesNote && (c.isNull(0) || !Arrays.equals(c.getBlob(0),
+                    contentHash(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE))))) {
+                return false;
+            }
+            for (int i = 1; i < columns.size(); i++) {
+                String value = values.getAsString(columns.get(i));
+                if (value == null ? !c.isNull(i) : !value.equals(c.getString(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 计算笔记内容的摘要。
+     *
+     * @return 内容 UTF-8 编码的 SHA-1；内容为 null 时返回 null。
+     */
+    static byte[] contentHash(String note) {
+        if (note == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(note.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 保存一条笔记：uri 为笔记目录时插入新笔记，为单条笔记时更新它。values 中的全部列在一个事务中写入，
+     * 只产生一次变更通知。编辑器通过 {@link NotePad.Notes#METHOD_SAVE_NOTE} 调用此方法，
+     * 一次保存内容、标题和分类，而不是为每一列分别写入。
+     *
+     * @return 包含 {@link NotePad.Notes#EXTRA_NOTE_URI} 的 Bundle；笔记存在时还包含保存之后的
+     *         {@link NotePad.Notes#EXTRA_NOTE_MODIFIED}。
+     * @throws IllegalArgumentException 如果 URI 不是笔记目录或单条笔记，或者更新时没有要写入的列。
+     */
+    Bundle saveNote(Uri uri, ContentValues values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Uri noteUri;
+        switch (sUriMatcher.match(uri)) {
+            case NOTES:
+                long rowId = insertNote(db, values);
+                mNotifier.rowInserted(rowId);
+                noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+                break;
+
+            case NOTE_ID:
+                if (values == null || values.size() == 0) {
+                    throw new IllegalArgumentException("没有要保存的列 " + uri);
+                }
+                ContentValues update = withSnippet(values);
+                NoteCategories.resolveName(db, update);
+                if (isUnchanged(db, ContentUris.parseId(uri), update)) {
+                    // 与已保存的内容相同，不写入也不通知
+                    noteUri = uri;
+                } else if (updateNotes(db, uri, NOTE_ID, update, null, null) > 0) {
+                    mNotifier.rowUpdated(ContentUris.parseId(uri), update.keySet());
+                    noteUri = uri;
+                } else {
+                    noteUri = null;
+                }
+                break;
+
+            default:
+                throw new IllegalArgumentException("未知的 URI " + uri);
+        }
+
+        Bundle result = new Bundle();
+        result.putParcelable(NotePad.Notes.EXTRA_NOTE_URI, noteUri);
+        if (noteUri != null) {
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                    NotePad.Notes._ID + " = ?", new String[] { Long.toString(ContentUris.parseId(noteUri)) },
+                    null, null, null);
+            try {
+                if (c.moveToFirst() && !c.isNull(0)) {
+                    result.putLong(NotePad.Notes.EXTRA_NOTE_MODIFIED, c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    // 按 URI 和选择条件更新笔记表中的行
+    private int updateRows(SQLiteDatabase db, Uri uri, int match, ContentValues values,
+                           String where, String[] whereArgs) {
         int count;
         String finalWhere;
         // 根据传入的 URI 模式执行更新操作。
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             // 如果传入的 URI 匹配一般的笔记模式，则根据传入的数据执行更新。
             case NOTES:
@@ -612,31 +2038,22 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
             // 如果传入的 URI 匹配单个笔记 ID，则基于传入数据执行更新，但会修改 where 子句以限制更新特定的笔记 ID。
             case NOTE_ID:
-                // 从传入的 URI 获取笔记 ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
-                /*
-                 * 开始构建最终的 WHERE 子句，限制为传入的笔记 ID。
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // ID 列名
-                                " = " +                                          // 检查是否相等
-                                uri.getPathSegments().                           // 获取传入的笔记 ID
-                                        get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // 如果有其他选择条件，将其附加到最终的 WHERE 子句。
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                // 没有其他选择条件时使用缓存的预编译语句
+                if (where == null) {
+                    count = mStatementCache.update(db, ContentUris.parseId(uri), values);
+                    break;
                 }
 
+                // 笔记 ID 作为第一个参数绑定，其余选择条件附加在后面。
+                finalWhere = NotePad.Notes._ID + " = ? AND (" + where + ")";
+
                 // 执行更新操作并返回更新的行数。
                 count = db.update(
                         NotePad.Notes.TABLE_NAME, // 数据库表名称。
                         values,                   // 包含列名和新值的映射。
                         finalWhere,               // 最终的 WHERE 子句。
-                        // whereArgs 中的占位符值
-                        whereArgs                 // 选择条件的列值，或者为 null（如果值在 where 参数中）。
+                        prependArgs(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION),
+                                whereArgs)        // 笔记 ID 和传入的 where 子句值。
                 );
                 break;
 
@@ -644,14 +2061,51 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             default:
                 throw new IllegalArgumentException("未知的 URI " + uri);
         }
+        return count;
+    }
 
-        /* 获取当前上下文的 content resolver 对象，并通知它传入的 URI 已更改。
-         * 该对象将此信息传递给 resolver 框架，已注册的观察者将会收到通知。
-         */
-        getContext().getContentResolver().notifyChange(uri, null);
+    // 返回 URI 和选择条件匹配的笔记 ID
+    private static List<Long> selectIds(SQLiteDatabase db, Uri uri, int match, String where,
+                                        String[] whereArgs) {
+        String selection;
+        String[] selectionArgs;
+        switch (match) {
+            case NOTES:
+                selection = where;
+                selectionArgs = whereArgs;
+                break;
 
-        // 返回更新的行数。
-        return count;
+            case NOTE_ID:
+                selection = NotePad.Notes._ID + " = ?"
+                        + (where == null ? "" : " AND (" + where + ")");
+                selectionArgs = prependArgs(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION), whereArgs);
+                break;
+
+            default:
+                throw new IllegalArgumentException("未知的 URI " + uri);
+        }
+
+        List<Long> ids = new ArrayList<Long>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    /**
+     * 关闭缓存的预编译语句。仅供测试框架在销毁提供者时调用。
+     */
+    @Override
+    public void shutdown() {
+        mStatementCache.clear();
+        super.shutdown();
     }
 
     /**
@@ -664,4 +2118,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * 返回提供者使用的压缩器，测试可以通过它打开或关闭压缩。
+     */
+    NoteCompressor getCompressorForTest() {
+        return mCompressor;
+    }
 }
\ No newline at end of file
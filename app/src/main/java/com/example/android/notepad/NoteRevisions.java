@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * 笔记内容的修订历史。
+ *
+ * 每次写入笔记内容时在 {@link #TABLE_NAME} 表中追加一个修订。修订通常只保存与上一个修订的差异：
+ * 两者共同的前缀和后缀之外被替换的一段，即起始位置、删除的字符数和插入的文本，
+ * 因此占用的空间与编辑的大小有关，与笔记的长度无关。上一个修订的内容就是被替换的笔记内容，
+ * 由调用者从笔记表中读出，记录修订时不需要还原历史。每 {@link #SNAPSHOT_INTERVAL} 个修订，
+ * 或差异不比全文小时，保存一次完整的快照；还原任意修订最多从最近的快照开始应用
+ * {@link #SNAPSHOT_INTERVAL} - 1 个差异。每条笔记的第一个修订总是快照。
+ * <p>
+ * 每个修订同时记录内容的长度，列出修订时只读取这些元数据，只有打开单个修订时才还原它的内容。
+ * <p>
+ * 超出保留策略的旧修订在追加修订时被压缩：保留的最早一个修订改写为快照，更早的修订被删除。
+ * 笔记被删除时，触发器删除它的全部修订。
+ * <p>
+ * 按块存储的大笔记（{@link NoteChunkStore#isLarge}）不记录修订，否则一次快照的行就会超出
+ * CursorWindow。被替换的内容是大笔记时没有可用的差异基准，下一个修订保存为快照。
+ */
+final class NoteRevisions {
+
+    /**
+     * 保存修订的表名
+     */
+    static final String TABLE_NAME = "note_revisions";
+
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+    static final String COLUMN_NAME_CREATED = "created";
+    // 1 表示快照，内容列为全文；0 表示差异
+    static final String COLUMN_NAME_SNAPSHOT = "snapshot";
+    static final String COLUMN_NAME_START = "start";
+    static final String COLUMN_NAME_DELETED = "deleted";
+    static final String COLUMN_NAME_CONTENT = "content";
+    // 修订内容的字符数。版本 13 之前记录的修订为 NULL，由回填补齐
+    static final String COLUMN_NAME_LENGTH = "length";
+
+    /**
+     * 两个快照之间最多的修订数，决定还原一个修订时最多应用的差异数
+     */
+    static final int SNAPSHOT_INTERVAL = 20;
+
+    private static final String[] REVISION_COLUMNS = new String[] {
+            "_id", COLUMN_NAME_SNAPSHOT, COLUMN_NAME_START, COLUMN_NAME_DELETED, COLUMN_NAME_CONTENT
+    };
+    private static final int REVISION_ID_INDEX = 0;
+    private static final int REVISION_SNAPSHOT_INDEX = 1;
+    private static final int REVISION_START_INDEX = 2;
+    private static final int REVISION_DELETED_INDEX = 3;
+    private static final int REVISION_CONTENT_INDEX = 4;
+
+    // 修订列表的列：修订 ID、创建时间和内容长度，按客户端可见的列名返回
+    private static final String[] LIST_PROJECTION = new String[] {
+            "_id AS " + NotePad.Notes._ID,
+            COLUMN_NAME_CREATED + " AS " + NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            COLUMN_NAME_LENGTH + " AS " + NotePad.Notes.COLUMN_NAME_REVISION_SIZE
+    };
+
+    /**
+     * 单个修订 URI 返回的列：修订列表的列，以及该修订的笔记内容
+     */
+    static final String[] REVISION_COLUMNS_WITH_NOTE = new String[] {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_REVISION_SIZE, NotePad.Notes.COLUMN_NAME_NOTE
+    };
+
+    private static final String INSERT_SQL = "INSERT INTO " + TABLE_NAME + " ("
+            + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_CREATED + ", " + COLUMN_NAME_SNAPSHOT + ", "
+            + COLUMN_NAME_START + ", " + COLUMN_NAME_DELETED + ", " + COLUMN_NAME_CONTENT + ", "
+            + COLUMN_NAME_LENGTH + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private final int mKeepCount;
+    private final long mKeepMillis;
+
+    /**
+     * @param keepCount  每条笔记最多保留的修订数，0 表示不记录修订
+     * @param keepMillis 保留修订的时长，0 表示不按时间删除。最新的修订总是保留。
+     */
+    NoteRevisions(int keepCount, long keepMillis) {
+        mKeepCount = keepCount;
+        mKeepMillis = keepMillis;
+    }
+
+    /**
+     * 创建修订表，以及在笔记被删除时删除其修订的触发器。
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY,"
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_CREATED + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SNAPSHOT + " INTEGER NOT NULL,"
+                + COLUMN_NAME_START + " INTEGER NOT NULL,"
+                + COLUMN_NAME_DELETED + " INTEGER NOT NULL,"
+                + COLUMN_NAME_CONTENT + " TEXT NOT NULL,"
+                + COLUMN_NAME_LENGTH + " INTEGER"
+                + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS note_revisions_note ON " + TABLE_NAME
+                + " (" + COLUMN_NAME_NOTE_ID + ", _id);");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS note_revisions_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME
+                + " BEGIN DELETE FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * 判断是否记录修订。
+     */
+    boolean isEnabled() {
+        return mKeepCount > 0;
+    }
+
+    /**
+     * 为笔记的新内容追加一个修订，并按保留策略压缩旧修订。与被替换的内容相同时不记录。
+     * 调用者负责事务。
+     *
+     * @param previous 被替换的笔记内容，即上一个修订的内容；没有可用作差异基准的内容时为 null，
+     *                 例如新插入的笔记或被替换的是大笔记，此时修订保存为快照。
+     */
+    void record(SQLiteDatabase db, long noteId, String previous, String text) {
+        if (!isEnabled() || text == null || NoteChunkStore.isLarge(text)) {
+            return;
+        }
+        if (text.equals(previous)) {
+            return;
+        }
+
+        // 最近的快照及其后的差异数；笔记还没有修订时被替换的内容没有记录，不能作为差异基准
+        int sinceSnapshot = sinceSnapshot(db, noteId);
+        if (sinceSnapshot == 0) {
+            previous = null;
+        }
+
+        long now = System.currentTimeMillis();
+        SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+        try {
+            insert.bindLong(1, noteId);
+            insert.bindLong(2, now);
+            int start = 0;
+            int deleted = 0;
+            String content = text;
+            boolean snapshot = previous == null || sinceSnapshot >= SNAPSHOT_INTERVAL;
+            if (!snapshot) {
+                start = commonPrefix(previous, text);
+                int suffix = commonSuffix(previous, text, start);
+                deleted = previous.length() - start - suffix;
+                content = text.substring(start, text.length() - suffix);
+                // 差异不比全文小时直接保存快照
+                snapshot = content.length() >= text.length();
+            }
+            if (snapshot) {
+                start = 0;
+                deleted = 0;
+                content = text;
+            }
+            insert.bindLong(3, snapshot ? 1 : 0);
+            insert.bindLong(4, start);
+            insert.bindLong(5, deleted);
+            insert.bindString(6, content);
+            insert.bindLong(7, text.length());
+            insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+
+        compact(db, noteId, now);
+    }
+
+    /**
+     * 按保留策略删除笔记的旧修订，保留的最早一个修订改写为快照。为了不在每次保存时改写快照，
+     * 超出保留数 {@link #SNAPSHOT_INTERVAL} 个修订之后才按数量压缩。调用者负责事务。
+     */
+    void compact(SQLiteDatabase db, long noteId, long now) {
+        String[] args = new String[] { Long.toString(noteId) };
+        int count;
+        long oldest;
+        Cursor c = db.rawQuery("SELECT COUNT(*), MIN(" + COLUMN_NAME_CREATED + ") FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ?", args);
+        try {
+            c.moveToFirst();
+            count = c.getInt(0);
+            oldest = c.getLong(1);
+        } finally {
+            c.close();
+        }
+        long expiry = mKeepMillis > 0 ? now - mKeepMillis : Long.MIN_VALUE;
+        if (count <= mKeepCount + SNAPSHOT_INTERVAL && (count <= 1 || oldest >= expiry)) {
+            return;
+        }
+
+        // 保留的最早一个修订：最新的保留数个修订中，没有过期的最早一个；最新的修订总是保留
+        long firstKept = -1;
+        c = db.query(TABLE_NAME, new String[] { "_id", COLUMN_NAME_CREATED },
+                COLUMN_NAME_NOTE_ID + " = ?", args, null, null, "_id DESC",
+                Integer.toString(mKeepCount));
+        try {
+            while (c.moveToNext()) {
+                if (firstKept != -1 && c.getLong(1) < expiry) {
+                    break;
+                }
+                firstKept = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+
+        String text = read(db, noteId, firstKept);
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_SNAPSHOT + " = 1, "
+                + COLUMN_NAME_START + " = 0, " + COLUMN_NAME_DELETED + " = 0, "
+                + COLUMN_NAME_CONTENT + " = ? WHERE _id = ? AND " + COLUMN_NAME_SNAPSHOT + " = 0",
+                new Object[] { text, firstKept });
+        db.delete(TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ? AND _id < ?",
+                new String[] { Long.toString(noteId), Long.toString(firstKept) });
+    }
+
+    /**
+     * 还原一个修订的笔记内容。
+     *
+     * @return 修订的内容；修订不存在时返回 null。
+     */
+    static String read(SQLiteDatabase db, long noteId, long revisionId) {
+        long snapshotId = latestSnapshot(db, noteId, revisionId);
+        if (snapshotId <= 0) {
+            return null;
+        }
+        String text = null;
+        boolean found = false;
+        Cursor c = revisionsFrom(db, noteId, snapshotId, revisionId);
+        try {
+            while (c.moveToNext()) {
+                text = apply(text, c);
+                found = c.getLong(REVISION_ID_INDEX) == revisionId;
+            }
+        } finally {
+            c.close();
+        }
+        return found ? text : null;
+    }
+
+    /**
+     * 返回笔记的全部修订，从新到旧排列，列为 {@link NotePad.Notes#_ID}、
+     * {@link NotePad.Notes#COLUMN_NAME_CREATE_DATE} 和 {@link NotePad.Notes#COLUMN_NAME_REVISION_SIZE}。
+     * 只读取元数据，不还原任何修订的内容。
+     */
+    static Cursor list(SQLiteDatabase db, long noteId) {
+        return db.query(TABLE_NAME, LIST_PROJECTION, COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { Long.toString(noteId) }, null, null, "_id DESC");
+    }
+
+    /**
+     * 返回笔记的一个修订，列为 {@link #REVISION_COLUMNS_WITH_NOTE}，内容从最近的快照还原。
+     * 修订不存在时返回空的光标。
+     */
+    static Cursor query(SQLiteDatabase db, long noteId, long revisionId) {
+        MatrixCursor result = new MatrixCursor(REVISION_COLUMNS_WITH_NOTE, 1);
+        String text = read(db, noteId, revisionId);
+        if (text == null) {
+            return result;
+        }
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_CREATED },
+                "_id = ?", new String[] { Long.toString(revisionId) }, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                result.addRow(new Object[] { revisionId, c.getLong(0), text.length(), text });
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * 补齐 _id 在 (afterNoteId, throughNoteId] 范围内的笔记中没有长度的修订，供升级后的回填使用。
+     * 每条笔记从最早的快照开始依次还原一次。调用者负责事务。
+     */
+    static void fillLengths(SQLiteDatabase db, long afterNoteId, long throughNoteId) {
+        Cursor c = db.query(TABLE_NAME, new String[] {
+                        REVISION_COLUMNS[0], REVISION_COLUMNS[1], REVISION_COLUMNS[2],
+                        REVISION_COLUMNS[3], REVISION_COLUMNS[4], COLUMN_NAME_NOTE_ID, COLUMN_NAME_LENGTH },
+                COLUMN_NAME_NOTE_ID + " IN (SELECT " + COLUMN_NAME_NOTE_ID + " FROM " + TABLE_NAME
+                        + " WHERE " + COLUMN_NAME_NOTE_ID + " > ? AND " + COLUMN_NAME_NOTE_ID + " <= ? AND "
+                        + COLUMN_NAME_LENGTH + " IS NULL)",
+                new String[] { Long.toString(afterNoteId), Long.toString(throughNoteId) },
+                null, null, COLUMN_NAME_NOTE_ID + ", _id");
+        try {
+            long noteId = -1;
+            String text = null;
+            while (c.moveToNext()) {
+                if (c.getLong(REVISION_COLUMNS.length) != noteId) {
+                    noteId = c.getLong(REVISION_COLUMNS.length);
+                    text = null;
+                }
+                text = apply(text, c);
+                if (c.isNull(REVISION_COLUMNS.length + 1)) {
+                    db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_LENGTH + " = ? WHERE _id = ?",
+                            new Object[] { text.length(), c.getLong(REVISION_ID_INDEX) });
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    // 最近的快照及其后的修订数，笔记没有修订时返回 0
+    private static int sinceSnapshot(SQLiteDatabase db, long noteId) {
+        String id = Long.toString(noteId);
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NAME_NOTE_ID + " = ? AND _id >= (SELECT MAX(_id) FROM " + TABLE_NAME
+                + " WHERE " + COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SNAPSHOT + " = 1)",
+                new String[] { id, id });
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    // 最近一个不晚于 revisionId 的快照，没有快照时返回 0
+    private static long latestSnapshot(SQLiteDatabase db, long noteId, long revisionId) {
+        Cursor c = db.rawQuery("SELECT MAX(_id) FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NAME_NOTE_ID + " = ? AND " + COLUMN_NAME_SNAPSHOT + " = 1 AND _id <= ?",
+                new String[] { Long.toString(noteId), Long.toString(revisionId) });
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Cursor revisionsFrom(SQLiteDatabase db, long noteId, long fromId, long toId) {
+        return db.query(TABLE_NAME, REVISION_COLUMNS,
+                COLUMN_NAME_NOTE_ID + " = ? AND _id >= ? AND _id <= ?",
+                new String[] { Long.toString(noteId), Long.toString(fromId), Long.toString(toId) },
+                null, null, "_id");
+    }
+
+    // 把光标当前行的修订应用到上一个修订的内容上
+    private static String apply(String previous, Cursor c) {
+        String content = c.getString(REVISION_CONTENT_INDEX);
+        if (c.getInt(REVISION_SNAPSHOT_INDEX) != 0) {
+            return content;
+        }
+        int start = c.getInt(REVISION_START_INDEX);
+        return previous.substring(0, start) + content
+                + previous.substring(start + c.getInt(REVISION_DELETED_INDEX));
+    }
+
+    // 共同前缀的长度。不在代理对中间切分，使差异的文本总是有效的 UTF-16。
+    static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int n = 0;
+        while (n < max && a.charAt(n) == b.charAt(n)) {
+            n++;
+        }
+        if (n > 0 && Character.isHighSurrogate(a.charAt(n - 1))) {
+            n--;
+        }
+        return n;
+    }
+
+    // 共同后缀的长度，不与长度为 prefix 的共同前缀重叠
+    static int commonSuffix(String a, String b, int prefix) {
+        int max = Math.min(a.length(), b.length()) - prefix;
+        int n = 0;
+        while (n < max && a.charAt(a.length() - 1 - n) == b.charAt(b.length() - 1 - n)) {
+            n++;
+        }
+        if (n > 0 && Character.isLowSurrogate(a.charAt(a.length() - n))) {
+            n--;
+        }
+        return n;
+    }
+}
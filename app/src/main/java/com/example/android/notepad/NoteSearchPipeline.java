@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 搜索流水线：把连续的输入合并为一次查询，在后台线程执行，并且只把最新的结果交回 UI 线程。
+ *
+ * 在防抖窗口内的多次 {@link #submit(String)} 只会触发最后一次查询。新的查询开始时，
+ * 正在执行的旧查询会通过 {@link CancellationSignal} 被取消；已经完成但过期的结果会被直接关闭。
+ *
+ * 除构造函数参数中的回调 {@link Callback#onSearch} 之外，所有方法都必须在 UI 线程上调用。
+ */
+final class NoteSearchPipeline {
+    // 用于日志记录和调试
+    private static final String TAG = "NoteSearchPipeline";
+
+    /**
+     * 执行查询和接收结果的回调
+     */
+    interface Callback {
+        /**
+         * 在后台线程上执行查询。实现应把 signal 传给 ContentResolver，以便查询可以被中途取消。
+         */
+        Cursor onSearch(String query, CancellationSignal signal);
+
+        /**
+         * 在 UI 线程上接收最新一次查询的结果。回调方接管光标的所有权。
+         */
+        void onResult(String query, Cursor cursor);
+    }
+
+    private final Callback mCallback;
+    private final long mDebounceMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // 每次提交递增，只在 UI 线程上修改。只有与当前代数相同的结果才会被交付。
+    private volatile int mGeneration;
+
+    // 正在执行的查询的取消信号，由后台线程写入、UI 线程读取
+    private CancellationSignal mInFlight;
+
+    // 等待防抖窗口结束的查询
+    private String mPendingQuery;
+
+    private boolean mShutdown;
+
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch(mPendingQuery);
+        }
+    };
+
+    /**
+     * @param callback       执行查询和接收结果的回调
+     * @param debounceMillis 防抖窗口，窗口内的连续输入只会触发一次查询
+     */
+    NoteSearchPipeline(Callback callback, long debounceMillis) {
+        mCallback = callback;
+        mDebounceMillis = debounceMillis;
+    }
+
+    /**
+     * 提交一个搜索词。查询会在防抖窗口结束后执行；窗口内的新提交会替换它。
+     */
+    void submit(String query) {
+        if (mShutdown) {
+            return;
+        }
+        mPendingQuery = query;
+        mHandler.removeCallbacks(mDispatch);
+        mHandler.postDelayed(mDispatch, mDebounceMillis);
+    }
+
+    /**
+     * 跳过防抖窗口，立即执行查询（例如用户按下了搜索键）。
+     */
+    void submitNow(String query) {
+        if (mShutdown) {
+            return;
+        }
+        mHandler.removeCallbacks(mDispatch);
+        dispatch(query);
+    }
+
+    /**
+     * 取消等待中和执行中的查询，并停止后台线程。之后的提交都会被忽略。
+     */
+    void shutdown() {
+        mShutdown = true;
+        mGeneration++;
+        mHandler.removeCallbacks(mDispatch);
+        cancelInFlight();
+        mExecutor.shutdown();
+    }
+
+    private void dispatch(final String query) {
+        final int generation = ++mGeneration;
+
+        // 新的查询取代正在执行的查询
+        cancelInFlight();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 排队期间又有新的提交，直接跳过
+                if (!isCurrent(generation)) {
+                    return;
+                }
+
+                CancellationSignal signal = new CancellationSignal();
+                synchronized (NoteSearchPipeline.this) {
+                    mInFlight = signal;
+                }
+                // 在登记取消信号之前可能已经有新的提交，此时它无法取消本次查询
+                if (!isCurrent(generation)) {
+                    signal.cancel();
+                }
+
+                Cursor cursor = null;
+                try {
+                    cursor = mCallback.onSearch(query, signal);
+                    if (cursor != null) {
+                        // 在后台线程填充光标窗口，避免在 UI 线程上第一次访问时执行查询
+                        cursor.getCount();
+                    }
+                } catch (OperationCanceledException e) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return;
+                } finally {
+                    synchronized (NoteSearchPipeline.this) {
+                        if (mInFlight == signal) {
+                            mInFlight = null;
+                        }
+                    }
+                }
+
+                deliver(generation, query, cursor);
+            }
+        });
+    }
+
+    private void deliver(final int generation, final String query, final Cursor cursor) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration) {
+                    mCallback.onResult(query, cursor);
+                } else if (cursor != null) {
+                    // 结果已经过期
+                    Log.v(TAG, "Dropping stale result for " + query);
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private boolean isCurrent(final int generation) {
+        // 后台线程的检查只用于尽早放弃，最终以 deliver() 在 UI 线程上的检查为准
+        return generation == mGeneration;
+    }
+
+    private synchronized void cancelInFlight() {
+        if (mInFlight != null) {
+            mInFlight.cancel();
+            mInFlight = null;
+        }
+    }
+}
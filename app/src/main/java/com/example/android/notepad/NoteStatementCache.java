@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 单条笔记更新和删除使用的预编译语句缓存。
+ *
+ * 笔记 ID 作为参数绑定，同一种写入（相同的列集合）总是使用同一条 SQL，因此语句只需编译一次。
+ * 缓存按最近使用顺序保留最多 {@link #DEFAULT_CAPACITY} 条语句，被淘汰的语句随即关闭。
+ * 语句属于编译它的数据库连接，传入的数据库与缓存中语句所属的不同时（例如打开助手被关闭后重新打开），
+ * 整个缓存被清空后重新编译。
+ * 语句对象本身不是线程安全的，每次绑定和执行都在该语句上同步。
+ */
+final class NoteStatementCache {
+
+    /**
+     * 默认缓存的语句数。编辑器、颜色和分类修改各自只使用少数几种列集合。
+     */
+    static final int DEFAULT_CAPACITY = 16;
+
+    private static final String DELETE_SQL = "DELETE FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    // 缓存中的语句所属的数据库
+    private SQLiteDatabase mDatabase;
+
+    NoteStatementCache(final int capacity) {
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 更新一条笔记。
+     *
+     * @return 更新的行数，笔记不存在时为 0。
+     */
+    int update(SQLiteDatabase db, long id, ContentValues values) {
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        if (columns.length == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        // 列的顺序固定，同一组列总是得到同一条 SQL
+        Arrays.sort(columns);
+
+        StringBuilder sql = new StringBuilder(64);
+        sql.append("UPDATE ").append(NotePad.Notes.TABLE_NAME).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns[i]).append(" = ?");
+        }
+        sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ?");
+
+        SQLiteStatement statement = acquire(db, sql.toString());
+        try {
+            synchronized (statement) {
+                for (int i = 0; i < columns.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+                }
+                statement.bindLong(columns.length + 1, id);
+                return execute(statement);
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    /**
+     * 删除一条笔记。
+     *
+     * @return 删除的行数，笔记不存在时为 0。
+     */
+    int delete(SQLiteDatabase db, long id) {
+        SQLiteStatement statement = acquire(db, DELETE_SQL);
+        try {
+            synchronized (statement) {
+                statement.bindLong(1, id);
+                return execute(statement);
+            }
+        } finally {
+            statement.releaseReference();
+        }
+    }
+
+    // 执行已绑定参数的语句，并清除绑定，避免缓存中的语句持有笔记内容
+    private static int execute(SQLiteStatement statement) {
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    private synchronized SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        if (db != mDatabase) {
+            clear();
+            mDatabase = db;
+        }
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        // 调用者使用完毕后释放，防止语句在使用期间被淘汰并关闭
+        statement.acquireReference();
+        return statement;
+    }
+
+    /**
+     * 关闭全部缓存的语句。
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDatabase = null;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import java.util.ArrayDeque;
+
+/**
+ * 编辑器的撤销和重做。
+ *
+ * 作为 {@link TextWatcher} 记录每次编辑：起始位置、被替换的文本和插入的文本，而不是整个文档的副本，
+ * 因此撤销和重做只在 {@link Editable} 上替换被编辑的一段，与笔记的长度无关。
+ * 连续输入或连续删除的字符在 {@link #COALESCE_MILLIS} 内合并为一次编辑，换行结束一次合并。
+ * 输入法组词时每次改写整个组词区域，这样的替换从上一次编辑插入的文本之内开始，同样并入上一次编辑。
+ * <p>
+ * 撤销栈和重做栈中的编辑合计占用的内存不超过构造时给定的上限，超出时丢弃最早的编辑。
+ * 单次超过上限的编辑（例如替换整个大笔记）不能撤销，此时更早的编辑也一并丢弃。
+ * <p>
+ * 所有方法都必须在 UI 线程上调用。
+ */
+final class NoteUndoManager implements TextWatcher {
+
+    /**
+     * 连续的输入在该时间（毫秒）内合并为一次编辑
+     */
+    static final long COALESCE_MILLIS = 1000;
+
+    // 每次编辑除文本之外的估计内存占用（字节）
+    private static final int EDIT_OVERHEAD_BYTES = 64;
+
+    // 一次编辑：把 start 处的 removed 替换为 inserted
+    private static final class Edit {
+        int start;
+        final StringBuilder removed;
+        final StringBuilder inserted;
+        long time;
+
+        Edit(int start, CharSequence removed, CharSequence inserted, long time) {
+            this.start = start;
+            this.removed = new StringBuilder(removed);
+            this.inserted = new StringBuilder(inserted);
+            this.time = time;
+        }
+
+        int bytes() {
+            return EDIT_OVERHEAD_BYTES + 2 * (removed.length() + inserted.length());
+        }
+    }
+
+    // 栈顶在队列头部，最早的编辑在尾部
+    private final ArrayDeque<Edit> mUndo = new ArrayDeque<Edit>();
+    private final ArrayDeque<Edit> mRedo = new ArrayDeque<Edit>();
+    private final long mMaxBytes;
+    private long mBytes;
+
+    // 正在撤销或重做，或者暂停了记录，此时的文本变化不记录
+    private boolean mApplying;
+    private boolean mPaused;
+
+    // beforeTextChanged 中取得的被替换文本
+    private CharSequence mRemoved;
+
+    /**
+     * @param maxBytes 撤销栈和重做栈合计的内存上限（字节）
+     */
+    NoteUndoManager(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 暂停或恢复记录，例如在把笔记载入编辑器时暂停。
+     */
+    void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    /**
+     * 清空撤销和重做的历史。
+     */
+    void clear() {
+        mUndo.clear();
+        mRedo.clear();
+        mBytes = 0;
+    }
+
+    boolean canUndo() {
+        return !mUndo.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !mRedo.isEmpty();
+    }
+
+    /**
+     * 撤销最近一次编辑。
+     *
+     * @return 撤销后光标应在的位置；没有可撤销的编辑时返回 -1。
+     */
+    int undo(Editable text) {
+        Edit edit = mUndo.pollFirst();
+        if (edit == null) {
+            return -1;
+        }
+        replace(text, edit.start, edit.inserted.length(), edit.removed);
+        mRedo.addFirst(edit);
+        return edit.start + edit.removed.length();
+    }
+
+    /**
+     * 重做最近一次撤销的编辑。
+     *
+     * @return 重做后光标应在的位置；没有可重做的编辑时返回 -1。
+     */
+    int redo(Editable text) {
+        Edit edit = mRedo.pollFirst();
+        if (edit == null) {
+            return -1;
+        }
+        replace(text, edit.start, edit.removed.length(), edit.inserted);
+        mUndo.addFirst(edit);
+        return edit.start + edit.inserted.length();
+    }
+
+    /**
+     * 撤销栈和重做栈当前的估计内存占用（字节）。
+     */
+    long getBytes() {
+        return mBytes;
+    }
+
+    private void replace(Editable text, int start, int length, CharSequence with) {
+        mApplying = true;
+        try {
+            text.replace(start, start + length, with);
+        } finally {
+            mApplying = false;
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        if (!mApplying && !mPaused) {
+            // 只复制被替换的一段
+            mRemoved = count > 0 ? s.subSequence(start, start + count).toString() : "";
+        }
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mApplying || mPaused || mRemoved == null) {
+            return;
+        }
+        CharSequence inserted = count > 0 ? s.subSequence(start, start + count).toString() : "";
+        CharSequence removed = mRemoved;
+        mRemoved = null;
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        record(start, removed, inserted, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    // 记录一次新的编辑，能合并时并入栈顶的编辑
+    void record(int start, CharSequence removed, CharSequence inserted, long now) {
+        for (Edit redo : mRedo) {
+            mBytes -= redo.bytes();
+        }
+        mRedo.clear();
+
+        Edit top = mUndo.peekFirst();
+        int topBytes = top != null ? top.bytes() : 0;
+        if (top != null && now - top.time <= COALESCE_MILLIS && merge(top, start, removed, inserted)) {
+            top.time = now;
+            mBytes += top.bytes() - topBytes;
+        } else {
+            Edit edit = new Edit(start, removed, inserted, now);
+            mUndo.addFirst(edit);
+            mBytes += edit.bytes();
+        }
+
+        // 超出上限时丢弃最早的编辑
+        while (mBytes > mMaxBytes && !mUndo.isEmpty()) {
+            mBytes -= mUndo.pollLast().bytes();
+        }
+    }
+
+    // 连续输入、退格或向后删除的字符，以及从上一次插入的文本之内开始的替换，并入上一次编辑；换行结束合并
+    private static boolean merge(Edit top, int start, CharSequence removed, CharSequence inserted) {
+        boolean typing = removed.length() == 0 && top.removed.length() == 0;
+        if (typing && start == top.start + top.inserted.length() && !contains(inserted, '\n')) {
+            top.inserted.append(inserted);
+            return true;
+        }
+
+        boolean deleting = inserted.length() == 0 && top.inserted.length() == 0;
+        if (deleting && !contains(removed, '\n')) {
+            if (start + removed.length() == top.start) {
+                // 退格
+                top.removed.insert(0, removed);
+                top.start = start;
+                return true;
+            }
+            if (start == top.start) {
+                // 向后删除
+                top.removed.append(removed);
+                return true;
+            }
+        }
+
+        // 输入法改写组词区域：替换掉上一次插入的一部分，超出插入文本的部分是原有的文本
+        boolean replacing = removed.length() > 0 && inserted.length() > 0;
+        int offset = start - top.start;
+        if (replacing && offset >= 0 && offset < top.inserted.length() && !contains(inserted, '\n')) {
+            int overlap = Math.min(removed.length(), top.inserted.length() - offset);
+            top.inserted.replace(offset, offset + overlap, inserted.toString());
+            top.removed.append(removed, overlap, removed.length());
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean contains(CharSequence s, char c) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -19,7 +19,9 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.app.SearchManager;
+import android.content.BroadcastReceiver;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
@@ -27,10 +29,14 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.Loader;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -54,36 +60,37 @@ import java.util.Locale;
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler} or
- * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The list is loaded a page at a time by a {@link PagedNotesLoader} on a background thread,
+ * and searches run on the background thread of a {@link NoteSearchPipeline}. The remaining provider operations
+ * (delete, category changes) still take place on the UI thread.
  */
 /**
  * 显示笔记列表。如果传入的 Intent 中提供了 {@link Uri}，将显示对应的笔记内容，
  * 否则默认显示 {@link NotePadProvider} 的内容。
  *
- * 注意：请注意，本 Activity 中的内容提供者操作是在 UI 线程上执行的。
- * 这不是一种好的实践。这里只是为了使代码更易于阅读。一个真正的
- * 应用程序应该使用 {@link android.content.AsyncQueryHandler} 或
- * {@link android.os.AsyncTask} 对象在单独的线程上异步执行操作。
+ * 列表由 {@link PagedNotesLoader} 在后台线程分页加载，搜索在 {@link NoteSearchPipeline} 的后台线程执行。
+ * 其余的内容提供者操作（删除、修改分类）仍在 UI 线程上执行。
  */
 
-public class NotesList extends ListActivity {
+public class NotesList extends ListActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     // 用于日志记录和调试
     private static final String TAG = "NotesList";
 
     /**
-     * 光标适配器需要的列
+     * 光标适配器需要的列。NotePadProvider 为每种排序方式建立了包含这些列的覆盖索引，
+     * 修改此投影时需要同步修改索引。
      */
-    private static final String[] PROJECTION = new String[] {
+    static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
             //扩展 显示时间 颜色
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
             NotePad.Notes.COLUMN_NAME_BACK_COLOR,
-            NotePad.Notes.COLUMN_NAME_CATEGORY
+            // 分类只读取 ID，不读取名称
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+            // 内容预览由提供者在写入时生成，列表从不读取完整的笔记内容
+            NotePad.Notes.COLUMN_NAME_SNIPPET
     };
 
     /**
@@ -91,6 +98,54 @@ public class NotesList extends ListActivity {
      */
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    /**
+     * 加载笔记列表的 Loader 的 ID
+     */
+    private static final int LIST_LOADER = 0;
+
+    /**
+     * 保存排序方式的键，用于 Loader 参数和 Activity 状态
+     */
+    private static final String KEY_SORT_ORDER = "sort_order";
+
+    // 合并搜索输入并在后台执行查询
+    private NoteSearchPipeline mSearchPipeline;
+
+    // 列表的光标适配器，滚动到末尾附近时读取下一页
+    private PagedNotesAdapter mAdapter;
+
+    // 当前的排序方式
+    private String mSortOrder = NotePad.Notes.SORT_ORDER_MODIFIED;
+
+    // Loader 交付的最新列表光标，由 LoaderManager 负责关闭
+    private Cursor mListCursor;
+
+    // 系统时钟每分钟推进一次列表的日期文本；时区或时间改变时重新生成
+    private final BroadcastReceiver mClockReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_TIME_TICK.equals(intent.getAction())) {
+                mAdapter.onClockTick(System.currentTimeMillis());
+            } else {
+                mAdapter.onTimeChanged(System.currentTimeMillis());
+            }
+        }
+    };
+
+    // 列表光标中的行被原地刷新时，如果正在显示搜索结果，则按新数据重新搜索
+    private final DataSetObserver mListObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            if (mSearchCursor != null) {
+                mSearchPipeline.submitNow(mSearchQuery);
+            }
+        }
+    };
+
+    // 正在显示的搜索结果及其搜索词，由本 Activity 负责关闭
+    private Cursor mSearchCursor;
+    private String mSearchQuery;
+
     /**
      * onCreate 方法在 Android 从头启动此 Activity 时调用。
      */
@@ -125,41 +180,24 @@ public class NotesList extends ListActivity {
          */
         getListView().setOnCreateContextMenuListener(this);
 
-        /* 执行受控查询。Activity 在需要时处理光标的关闭和重新查询。
-         *
-         * 请参阅关于在 UI 线程上执行提供者操作的介绍性说明。
-         */
-        Cursor cursor = managedQuery(
-                getIntent().getData(),            // 使用提供者的默认内容 URI。
-                PROJECTION,                       // 返回每个笔记的 ID 和标题。
-                null,                             // 没有 where 子句，返回所有记录。
-                null,                             // 没有 where 子句，因此没有 where 列值。
-
-                NotePad.Notes.DEFAULT_SORT_ORDER  // 使用默认排序顺序。
-        );
+        // 恢复配置变更前的排序方式
+        if (savedInstanceState != null) {
+            mSortOrder = savedInstanceState.getString(KEY_SORT_ORDER, mSortOrder);
+        }
 
         /*
-         * 以下两个数组创建了一个光标列与 ListView 中视图 ID 之间的“映射”。
-         * dataColumns 数组中的每个元素代表一列的名称；
-         * viewIDs 数组中的每个元素代表一个视图的 ID。
-         * SimpleCursorAdapter 以升序将它们映射，以确定每列值在 ListView 中出现的位置。
+         * MyCursorAdapter 在 bindView 中按列索引自行绑定标题、日期、摘要、颜色和分类，
+         * 不使用 SimpleCursorAdapter 的列与视图映射，因此传入空的 from 和 to 数组。
          */
 
-        // 初始化为标题列，光标列名称显示在视图中的名称
-        String[] dataColumns = {NotePad.Notes.COLUMN_NAME_TITLE,NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,NotePad.Notes.COLUMN_NAME_BACK_COLOR};
-
-        // 初始化为 noteslist_item.xml 中 TextView 的视图 ID，
-        // 用于显示光标列。//
-        //
-        int[] viewIDs = {R.id.tv_title,R.id.tv_date};
-
-
-      MyCursorAdapter  adapter = new MyCursorAdapter(
+        // 光标由 Loader 在后台线程上交付，适配器不再自行在 UI 线程上重新查询
+        mAdapter = new PagedNotesAdapter(
                 this,
                 R.layout.noteslist_item,
-                cursor,
-                dataColumns,
-                viewIDs
+                null,
+                new String[0],
+                new int[0],
+                0
         );
 // 自定义格式化时间
         //
@@ -183,8 +221,117 @@ public class NotesList extends ListActivity {
 //            }
 //        });
         // 设置 ListView 的适配器为刚刚创建的光标适配器。
-        setListAdapter(adapter);
+        setListAdapter(mAdapter);
+
+        /*
+         * 在后台线程上加载列表。配置变更后 LoaderManager 会重新连接到原来的 Loader，
+         * 并直接交付上一次的结果，而不会重新查询。数据变化时 Loader 会在后台重新加载。
+         */
+        getLoaderManager().initLoader(LIST_LOADER, sortArgs(mSortOrder), this);
+
+        // 搜索在后台执行，只显示最新一次输入的结果
+        mSearchPipeline = new NoteSearchPipeline(new NoteSearchPipeline.Callback() {
+            @Override
+            public Cursor onSearch(String query, CancellationSignal signal) {
+                return queryNotes(query, signal);
+            }
+
+            @Override
+            public void onResult(String query, Cursor cursor) {
+                displayNotes(query, cursor);
+            }
+        }, getResources().getInteger(R.integer.search_debounce_millis));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 只在列表可见时跟随时钟，回到前台时补上错过的推进
+        IntentFilter filter = new IntentFilter(Intent.ACTION_TIME_TICK);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        registerReceiver(mClockReceiver, filter);
+        mAdapter.onClockTick(System.currentTimeMillis());
+    }
+
+    @Override
+    protected void onPause() {
+        unregisterReceiver(mClockReceiver);
+        super.onPause();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_SORT_ORDER, mSortOrder);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mSearchPipeline.shutdown();
+        // Loader 会把同一个光标交付给配置变更后的新 Activity，这里不再观察它
+        if (mListCursor != null) {
+            mListCursor.unregisterDataSetObserver(mListObserver);
+            mListCursor = null;
+        }
+        if (mSearchCursor != null) {
+            mAdapter.swapCursor(null);
+            mSearchCursor.close();
+            mSearchCursor = null;
+        }
+        super.onDestroy();
+    }
 
+    private static Bundle sortArgs(String sortOrder) {
+        Bundle args = new Bundle();
+        args.putString(KEY_SORT_ORDER, sortOrder);
+        return args;
+    }
+
+    /**
+     * 创建在后台线程上分页查询笔记列表的 Loader。首次只读取第一页，其余的页由适配器按需读取。
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new PagedNotesLoader(
+                this,
+                getIntent().getData(),                    // 使用提供者的默认内容 URI。
+                PROJECTION,                               // 返回列表需要的列。
+                args.getString(KEY_SORT_ORDER)            // 当前的排序方式。
+        );
+    }
+
+    /**
+     * 在 UI 线程上接收后台加载好的列表。正在搜索时保留搜索结果，并按新数据重新搜索。
+     */
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (mListCursor != data) {
+            if (mListCursor != null) {
+                mListCursor.unregisterDataSetObserver(mListObserver);
+            }
+            if (data != null) {
+                data.registerDataSetObserver(mListObserver);
+            }
+            mListCursor = data;
+        }
+        if (mSearchCursor == null) {
+            mAdapter.swapCursor(data);
+        } else {
+            mSearchPipeline.submitNow(mSearchQuery);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        if (mListCursor != null) {
+            mListCursor.unregisterDataSetObserver(mListObserver);
+        }
+        mListCursor = null;
+        if (mSearchCursor == null) {
+            mAdapter.swapCursor(null);
+        }
     }
 
 
@@ -232,13 +379,15 @@ public class NotesList extends ListActivity {
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
+                // 提交时跳过防抖，立即搜索
+                mSearchPipeline.submitNow(query);
                 return false;
             }
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                //过滤显示的笔记
-                displayNotes(newText);
+                //过滤显示的笔记。连续输入会被合并，查询在后台执行
+                mSearchPipeline.submit(newText);
                 return true;
             }
         });
@@ -269,31 +418,39 @@ public class NotesList extends ListActivity {
 
     }
 
-// 过滤笔记
-    private void displayNotes(String text) {
-        // 构造查询条件和查询参数
-        String selection = null;
-        String[] selectionArgs = null;
-
-        if (!TextUtils.isEmpty(text)) {
-            // 按标题和内容进行模糊查询
-            selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-            selectionArgs = new String[] { "%" + text + "%", "%" + text + "%" };
+// 过滤笔记。在搜索流水线的后台线程上执行。没有搜索词时返回 null，表示显示完整列表。
+    private Cursor queryNotes(String text, CancellationSignal signal) {
+        if (TextUtils.isEmpty(text)) {
+            return null;
         }
 
-        // 执行查询
-        Cursor cursor = getContentResolver().query(
-                NotePad.Notes.CONTENT_URI,        // 使用 NotePad 提供的默认内容 URI
-                PROJECTION,                       // 查询的列（ID, 标题，修改时间等）
-                selection,                        // 查询条件：如果有搜索文本，就用模糊查询条件
-                selectionArgs,                    // 查询条件的参数
-                NotePad.Notes.DEFAULT_SORT_ORDER  // 默认按修改时间排序
+        // 按标题和内容进行全文搜索，结果按相关度排序
+        Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_QUERY, text)
+                .build();
+        return getContentResolver().query(
+                searchUri,
+                PROJECTION,
+                null,
+                null,
+                null,                             // 使用相关度排序
+                signal
         );
+    }
+
+    // 显示最新一次搜索的结果。在 UI 线程上执行。搜索词为空时恢复 Loader 加载的列表。
+    private void displayNotes(String query, Cursor cursor) {
+        Cursor previous = mSearchCursor;
+
+        mSearchQuery = query;
+        mSearchCursor = cursor;
 
         // 更新适配器的光标
-        MyCursorAdapter adapter = (MyCursorAdapter) getListAdapter();
-        if (adapter != null) {
-            adapter.changeCursor(cursor); // 更新 ListView 的数据
+        mAdapter.swapCursor(cursor != null ? cursor : mListCursor);
+
+        // 只关闭自己持有的搜索结果，列表光标由 LoaderManager 管理
+        if (previous != null && previous != cursor) {
+            previous.close();
         }
     }
 
@@ -372,12 +529,6 @@ public class NotesList extends ListActivity {
         // 显示菜单
         return true;
     }
-    //定义
-    private MyCursorAdapter adapter;
-    private Cursor cursor;
-    private String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE ,  NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE } ;
-    private int[] viewIDs = { R.id.tv_title , R.id.tv_date };
-
     /**
      * 当用户从菜单中选择一个选项但没有选择列表中的项时调用此方法。如果选项是 INSERT，
      * 则会发送一个带有 ACTION_INSERT 动作的新 Intent。传入的 Intent 数据会被添加到新 Intent 中，
@@ -410,82 +561,33 @@ public class NotesList extends ListActivity {
                 toggleTheme(item);
                 return true;
 
+            //创建时间排序
             case R.id.menu_sort1:
-                cursor = managedQuery(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes._ID
-                );
-                adapter = new MyCursorAdapter(
-                        this,
-                        R.layout.noteslist_item,
-                        cursor,
-                        dataColumns,
-                        viewIDs
-                );
-                setListAdapter(adapter);
+                changeSortOrder(NotePad.Notes.SORT_ORDER_CREATED);
                 return true;
             //修改时间排序
             case R.id.menu_sort2:
-                cursor = managedQuery(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes.DEFAULT_SORT_ORDER
-                );
-                adapter = new MyCursorAdapter(
-                        this,
-                        R.layout.noteslist_item,
-                        cursor,
-                        dataColumns,
-                        viewIDs
-                );
-                setListAdapter(adapter);
+                changeSortOrder(NotePad.Notes.SORT_ORDER_MODIFIED);
                 return true;
             //颜色排序
             case R.id.menu_sort3:
-                cursor = managedQuery(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes.COLUMN_NAME_BACK_COLOR
-                );
-                adapter = new MyCursorAdapter(
-                        this,
-                        R.layout.noteslist_item,
-                        cursor,
-                        dataColumns,
-                        viewIDs
-                );
-                setListAdapter(adapter);
+                changeSortOrder(NotePad.Notes.SORT_ORDER_COLOR);
                 return true;
                 //分类排序
             case R.id.menu_sort4:
-                cursor = managedQuery(
-                        getIntent().getData(),
-                        PROJECTION,
-                        null,
-                        null,
-                        NotePad.Notes.COLUMN_NAME_CATEGORY  // 按分类排序
-                );
-                adapter = new MyCursorAdapter(
-                        this,
-                        R.layout.noteslist_item,
-                        cursor,
-                        dataColumns,
-                        viewIDs
-                );
-                setListAdapter(adapter);
+                changeSortOrder(NotePad.Notes.SORT_ORDER_CATEGORY);  // 按分类排序
                 return true;
 
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
+    // 以新的排序方式在后台重新加载列表
+    private void changeSortOrder(String sortOrder) {
+        mSortOrder = sortOrder;
+        getLoaderManager().restartLoader(LIST_LOADER, sortArgs(sortOrder), this);
+    }
+
     private void toggleTheme(MenuItem item) {
 
         int currentTheme = getSharedPreferences("prefs", MODE_PRIVATE)
@@ -619,26 +721,26 @@ public class NotesList extends ListActivity {
                 return true;
             case R.id.menu_category_study:
                 // 更新分类为“学习”
-                updateCategory(noteId, "学习");
+                updateCategory(noteId, NotePad.Categories.ID_STUDY);
                 return true;
             case R.id.menu_category_life:
                 // 更新分类为“生活”
-                updateCategory(noteId, "生活");
+                updateCategory(noteId, NotePad.Categories.ID_LIFE);
                 return true;
             case R.id.menu_category_task:
                 // 更新分类为“任务”
-                updateCategory(noteId, "任务");
+                updateCategory(noteId, NotePad.Categories.ID_TASK);
                 return true;
             default:
                 return super.onContextItemSelected(item);
         }
     }
 
-    // 更新笔记的分类
-    private void updateCategory(long noteId, String category) {
+    // 更新笔记的分类。列表由 Loader 在数据变化后自动重新加载。
+    private void updateCategory(long noteId, long categoryId) {
         // 准备更新数据
         ContentValues values = new ContentValues();
-        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);  // 更新分类字段
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);  // 更新分类 ID
 
         // 执行更新操作
         getContentResolver().update(
@@ -646,22 +748,6 @@ public class NotesList extends ListActivity {
                 values,
                 null,
                 null);
-
-        // 更新完分类后，刷新笔记列表
-        refreshNoteList();
-    }
-
-    private void refreshNoteList() {
-        // 重新查询并更新适配器
-        Cursor cursor = getContentResolver().query(
-                NotePad.Notes.CONTENT_URI,
-                null,
-                null,
-                null,
-                null);
-
-        // 假设你在使用 CursorAdapter
-        adapter.changeCursor(cursor);
     }
 
     /**
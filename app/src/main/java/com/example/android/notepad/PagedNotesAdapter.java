@@ -0,0 +1,158 @@
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.HashSet;
+
+/**
+ * 笔记列表的适配器。光标是 {@link PagedNotesCursor} 时，列表滚动到接近已读取部分的末尾，
+ * 就在后台线程上读取下一页，读取完成后在 UI 线程上追加并刷新列表。滚动回已释放的页时，
+ * 同样在后台线程上按保留的锚点重新读取，读取完成之前显示空的占位行。其他光标（例如搜索结果）
+ * 按普通光标显示。
+ */
+public class PagedNotesAdapter extends MyCursorAdapter {
+    private static final String TAG = "PagedNotesAdapter";
+
+    /**
+     * 距离已读取部分的末尾还剩多少行时开始读取下一页
+     */
+    private static final int PREFETCH_DISTANCE = PagedNotesCursor.PAGE_SIZE / 2;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 正在为其读取下一页的光标，同一个光标同时只读取一页
+    private PagedNotesCursor mLoadingCursor;
+
+    // 正在重新读取的已释放页的序号，属于 mReloadingCursor
+    private PagedNotesCursor mReloadingCursor;
+    private final HashSet<Integer> mReloadingPages = new HashSet<Integer>();
+
+    public PagedNotesAdapter(Context context, int layout, Cursor c,
+                             String[] from, int[] to, int flags) {
+        super(context, layout, c, from, to, flags);
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        Cursor cursor = getCursor();
+        if (cursor instanceof PagedNotesCursor) {
+            PagedNotesCursor paged = (PagedNotesCursor) cursor;
+            if (position >= paged.getCount() - PREFETCH_DISTANCE) {
+                loadNextPage(paged);
+            }
+
+            int page = paged.pageOf(position);
+            if (!paged.isPageResident(page)) {
+                reloadPage(paged, page);
+                return placeholder(convertView, paged, parent);
+            }
+
+            // 被释放的页重新读取时数据可能已经变化，此时显示空行，等待 Loader 交付新光标
+            if (!paged.moveToPosition(position)) {
+                return placeholder(convertView, paged, parent);
+            }
+        }
+        return super.getView(position, convertView, parent);
+    }
+
+    private View placeholder(View convertView, Cursor cursor, ViewGroup parent) {
+        View view = convertView != null ? convertView : newView(mContext, cursor, parent);
+        bindPlaceholder(view);
+        return view;
+    }
+
+    // 在后台线程上按锚点重新读取已释放的页，读取完成后放回并刷新列表
+    private void reloadPage(final PagedNotesCursor cursor, final int pageIndex) {
+        if (mReloadingCursor != cursor) {
+            mReloadingCursor = cursor;
+            mReloadingPages.clear();
+        }
+        if (!mReloadingPages.add(pageIndex)) {
+            return;
+        }
+
+        final PagedNotesCursor.Anchor anchor = cursor.pageAnchor(pageIndex);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor page = null;
+                try {
+                    page = cursor.queryPage(anchor, null);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to reload page " + pageIndex, e);
+                }
+
+                final Cursor result = page;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mReloadingCursor == cursor) {
+                            mReloadingPages.remove(pageIndex);
+                        }
+                        if (result == null) {
+                            return;
+                        }
+                        // 读取期间光标可能已被替换或关闭
+                        if (getCursor() != cursor) {
+                            result.close();
+                            return;
+                        }
+                        if (cursor.restorePage(pageIndex, result)) {
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void loadNextPage(final PagedNotesCursor cursor) {
+        if (mLoadingCursor == cursor || !cursor.hasMorePages()) {
+            return;
+        }
+        mLoadingCursor = cursor;
+
+        final PagedNotesCursor.Anchor anchor = cursor.nextPageAnchor();
+        final int pageIndex = cursor.getPageCount();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor page = null;
+                try {
+                    page = cursor.queryPage(anchor, null);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to load page " + pageIndex, e);
+                }
+
+                final Cursor result = page;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLoadingCursor == cursor) {
+                            mLoadingCursor = null;
+                        }
+                        if (result == null) {
+                            return;
+                        }
+                        // 读取期间光标可能已被替换或关闭
+                        if (getCursor() != cursor || cursor.isClosed()
+                                || cursor.getPageCount() != pageIndex) {
+                            result.close();
+                            return;
+                        }
+                        if (cursor.appendPage(result)) {
+                            notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
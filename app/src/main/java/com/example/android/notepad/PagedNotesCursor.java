@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * 按键集分页读取笔记列表的光标。
+ *
+ * 每页通过 {@link NotePad.Notes#QUERY_PARAMETER_LIMIT} 分页查询取得，并复制到内存中的小光标里，
+ * 不占用数据库的光标窗口。任何时候最多保留 {@link #MAX_RESIDENT_PAGES} 页的内容，
+ * 离当前位置最远的页会被释放，只保留重新读取它所需的锚点（上一页最后一行的排序值和 ID）。
+ * 因此内存占用只取决于页大小，与笔记总数无关。
+ *
+ * 光标只暴露已经读取过的页。{@link #appendPage(Cursor)} 追加下一页之后行数会增加，
+ * 列表需要随后通知数据变化。移动到已释放的页时光标不会同步读取，而是移动失败；
+ * 调用者在后台线程上按 {@link #pageAnchor(int)} 重新读取该页，再用 {@link #restorePage(int, Cursor)}
+ * 放回。该类不是线程安全的：交付给 UI 之前由加载线程使用，之后只在 UI 线程上使用；
+ * {@link #queryPage(Anchor, CancellationSignal)} 不修改光标状态，可以在任何线程上调用。
+ */
+final class PagedNotesCursor extends AbstractCursor {
+
+    /**
+     * 每页的行数
+     */
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * 同时保留内容的最大页数
+     */
+    static final int MAX_RESIDENT_PAGES = 4;
+
+    /**
+     * 一页的起点：上一页最后一行的排序值和 ID。
+     */
+    static final class Anchor {
+        final String value;
+        final long id;
+
+        Anchor(String value, long id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSortOrder;
+    private final int mPageSize;
+    private final int mMaxResidentPages;
+
+    // 排序列和 _id 在投影中的位置；按创建顺序排序时两者相同
+    private final int mKeyColumn;
+    private final int mIdColumn;
+
+    // 第 i 页的起点；第 0 页为 null
+    private final ArrayList<Anchor> mAnchors = new ArrayList<Anchor>();
+
+    // 第 i 页的内容；已释放的页为 null
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
+    // 已读取的行数。加载线程会读取上一个光标的行数，因此声明为 volatile。
+    private volatile int mCount;
+
+    // 最后一页之后的锚点，在追加页时记录，避免为此移动已显示页的位置
+    private Anchor mNextAnchor;
+
+    // 最后一页不满时说明已经读到末尾
+    private boolean mComplete;
+
+    // 当前位置所在的页
+    private Cursor mCurrentPage;
+
+    // 行内容被原地刷新时通知数据集观察者（适配器）
+    private final DataSetObservable mRowObservable = new DataSetObservable();
+
+    PagedNotesCursor(ContentResolver resolver, Uri uri, String[] projection, String sortOrder) {
+        this(resolver, uri, projection, sortOrder, PAGE_SIZE, MAX_RESIDENT_PAGES);
+    }
+
+    PagedNotesCursor(ContentResolver resolver, Uri uri, String[] projection, String sortOrder,
+                     int pageSize, int maxResidentPages) {
+        NotePadProvider.PageOrder order = NotePadProvider.pageOrder(sortOrder);
+        if (order == null) {
+            throw new IllegalArgumentException("排序方式不支持分页: " + sortOrder);
+        }
+
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        mSortOrder = sortOrder;
+        mPageSize = pageSize;
+        mMaxResidentPages = maxResidentPages;
+        mIdColumn = indexOf(projection, NotePad.Notes._ID);
+        mKeyColumn = indexOf(projection, order.keyColumn);
+    }
+
+    private static int indexOf(String[] projection, String column) {
+        for (int i = 0; i < projection.length; i++) {
+            if (projection[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("投影中缺少分页需要的列 " + column);
+    }
+
+    /**
+     * 是否可能还有未读取的页。
+     */
+    boolean hasMorePages() {
+        return !mComplete;
+    }
+
+    /**
+     * 已读取的页数，也就是下一页的序号。
+     */
+    int getPageCount() {
+        return mAnchors.size();
+    }
+
+    /**
+     * 下一页的起点；尚未读取任何页时返回 null，表示第一页。
+     */
+    Anchor nextPageAnchor() {
+        return mNextAnchor;
+    }
+
+    private Anchor lastRowAnchor(Cursor page) {
+        page.moveToLast();
+        return new Anchor(page.getString(mKeyColumn), page.getLong(mIdColumn));
+    }
+
+    /**
+     * 读取从 after 之后开始的一页。不修改光标状态，可以在任何线程上调用。
+     *
+     * @param after 页的起点，null 表示第一页。
+     * @return 该页内容的内存副本，最多 {@link #PAGE_SIZE} 行。
+     */
+    Cursor queryPage(Anchor after, CancellationSignal cancellationSignal) {
+        Uri.Builder builder = mUri.buildUpon().appendQueryParameter(
+                NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(mPageSize));
+        if (after != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_ID, Long.toString(after.id));
+            if (after.value != null) {
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER_VALUE, after.value);
+            }
+        }
+
+        Cursor source = mResolver.query(builder.build(), mProjection, null, null, mSortOrder,
+                cancellationSignal);
+        if (source == null) {
+            return new MatrixCursor(mProjection, 0);
+        }
+        try {
+            return copyOf(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    private Cursor copyOf(Cursor source) {
+        MatrixCursor copy = new MatrixCursor(mProjection, source.getCount());
+        while (source.moveToNext()) {
+            copy.addRow(readRow(source));
+        }
+        return copy;
+    }
+
+    // 读取光标当前行的全部列
+    private Object[] readRow(Cursor source) {
+        Object[] row = new Object[mProjection.length];
+        for (int i = 0; i < row.length; i++) {
+            switch (source.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = source.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = source.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = source.getBlob(i);
+                    break;
+                default:
+                    row[i] = source.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * 追加由 {@link #queryPage(Anchor, CancellationSignal)} 读取的下一页。
+     *
+     * @return 如果追加了至少一行则返回 true。
+     */
+    boolean appendPage(Cursor page) {
+        if (mComplete) {
+            page.close();
+            return false;
+        }
+
+        int rows = page.getCount();
+        if (rows < mPageSize) {
+            mComplete = true;
+        }
+        if (rows == 0) {
+            page.close();
+            return false;
+        }
+
+        mAnchors.add(mNextAnchor);
+        mNextAnchor = lastRowAnchor(page);
+        mPages.add(page);
+        mCount += rows;
+        evictPagesFarFrom(mPages.size() - 1);
+        return true;
+    }
+
+    /**
+     * 返回指定笔记中当前在驻留页里的那些。已释放的页不需要处理，重新读取时自然会得到新内容。
+     */
+    ArrayList<Long> residentIds(Collection<Long> ids) {
+        ArrayList<Long> resident = new ArrayList<Long>();
+        for (Cursor page : mPages) {
+            if (page == null) {
+                continue;
+            }
+            page.moveToPosition(-1);
+            while (page.moveToNext()) {
+                long id = page.getLong(mIdColumn);
+                if (ids.contains(id)) {
+                    resident.add(id);
+                }
+            }
+        }
+        restoreCurrentRow();
+        return resident;
+    }
+
+    /**
+     * 读取指定笔记的当前内容。不修改光标状态，可以在任何线程上调用。
+     *
+     * @return 笔记 ID 到行内容的映射；已不存在的笔记不在其中。
+     */
+    HashMap<Long, Object[]> queryRows(Collection<Long> ids) {
+        StringBuilder selection = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+        String[] args = new String[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            selection.append(i == 0 ? "?" : ", ?");
+            args[i++] = Long.toString(id);
+        }
+        selection.append(')');
+
+        HashMap<Long, Object[]> fresh = new HashMap<Long, Object[]>();
+        Cursor source = mResolver.query(mUri, mProjection, selection.toString(), args, null);
+        if (source != null) {
+            try {
+                while (source.moveToNext()) {
+                    fresh.put(source.getLong(mIdColumn), readRow(source));
+                }
+            } finally {
+                source.close();
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * 用 {@link #queryRows(Collection)} 读取的内容原地替换驻留页中的行，行的位置不变。
+     * 调用者必须确认这些变化不影响排序。
+     *
+     * @param ids 读取的笔记
+     * @return 替换完成时返回 true；如果有笔记已不存在，返回 false，调用者应当重新加载。
+     */
+    boolean applyRows(Collection<Long> ids, HashMap<Long, Object[]> fresh) {
+        if (fresh.size() != ids.size()) {
+            return false;
+        }
+
+        boolean any = false;
+        for (int i = 0; i < mPages.size(); i++) {
+            Cursor page = mPages.get(i);
+            if (page == null) {
+                continue;
+            }
+            MatrixCursor refreshed = new MatrixCursor(mProjection, page.getCount());
+            boolean changed = false;
+            page.moveToPosition(-1);
+            while (page.moveToNext()) {
+                Object[] row = fresh.get(page.getLong(mIdColumn));
+                changed |= row != null;
+                refreshed.addRow(row != null ? row : readRow(page));
+            }
+            if (changed) {
+                mPages.set(i, refreshed);
+                if (page == mCurrentPage) {
+                    mCurrentPage = refreshed;
+                }
+                page.close();
+                any = true;
+            } else {
+                refreshed.close();
+            }
+        }
+        restoreCurrentRow();
+
+        if (any) {
+            mRowObservable.notifyChanged();
+        }
+        return true;
+    }
+
+    // 遍历页之后把当前页移回光标的当前位置
+    private void restoreCurrentRow() {
+        if (mCurrentPage != null) {
+            mCurrentPage.moveToPosition(getPosition() % mPageSize);
+        }
+    }
+
+    /**
+     * 位置 position 所在的页的序号。
+     */
+    int pageOf(int position) {
+        return position / mPageSize;
+    }
+
+    /**
+     * 第 index 页的内容是否在内存中。
+     */
+    boolean isPageResident(int index) {
+        return index >= 0 && index < mPages.size() && mPages.get(index) != null;
+    }
+
+    /**
+     * 第 index 页的起点，用于重新读取已释放的页；第 0 页为 null。
+     */
+    Anchor pageAnchor(int index) {
+        return mAnchors.get(index);
+    }
+
+    /**
+     * 放回由 {@link #queryPage(Anchor, CancellationSignal)} 重新读取的第 index 页。
+     *
+     * @return 如果放回了该页则返回 true；该页已经驻留或光标已关闭时关闭 page 并返回 false。
+     */
+    boolean restorePage(int index, Cursor page) {
+        if (isClosed() || index >= mPages.size() || mPages.get(index) != null) {
+            page.close();
+            return false;
+        }
+        mPages.set(index, page);
+        evictPagesFarFrom(index);
+        return true;
+    }
+
+    // 释放离 focus 页最远的页，直到驻留页数不超过上限。当前位置所在的页不会被释放。
+    private void evictPagesFarFrom(int focus) {
+        int current = mCurrentPage != null ? getPosition() / mPageSize : -1;
+        int resident = 0;
+        for (Cursor page : mPages) {
+            if (page != null) {
+                resident++;
+            }
+        }
+
+        while (resident > mMaxResidentPages) {
+            int farthest = -1;
+            for (int i = 0; i < mPages.size(); i++) {
+                if (mPages.get(i) != null && i != focus && i != current
+                        && (farthest < 0 || Math.abs(i - focus) > Math.abs(farthest - focus))) {
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                break;
+            }
+            mPages.set(farthest, null).close();
+            resident--;
+        }
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // 已释放的页不在此同步读取，由调用者在后台重新读取后放回
+        Cursor page = mPages.get(pageOf(newPosition));
+        // 被释放的页重新读取后，若数据已变化，行数可能不同
+        if (page == null || !page.moveToPosition(newPosition % mPageSize)) {
+            mCurrentPage = null;
+            return false;
+        }
+        mCurrentPage = page;
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCurrentPage.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCurrentPage.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCurrentPage.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCurrentPage.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCurrentPage.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCurrentPage.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCurrentPage.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCurrentPage.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentPage.isNull(column);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        mRowObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        mRowObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (int i = 0; i < mPages.size(); i++) {
+            Cursor page = mPages.set(i, null);
+            if (page != null) {
+                page.close();
+            }
+        }
+        mCurrentPage = null;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 在后台线程上加载 {@link PagedNotesCursor} 的 Loader。
+ *
+ * 首次加载只读取第一页。数据变化后重新加载时，会读取到与上一次交付的光标相同的行数，
+ * 使列表的滚动位置在刷新后仍然有效；页是逐个读取的，超出驻留上限的页随即被释放，
+ * 因此刷新的内存占用同样与笔记总数无关。
+ * <p>
+ * 提供者的变更通知携带笔记 ID 和被修改的列。只修改了列表不显示的列时不做任何事；
+ * 修改了显示的列但不影响排序时，只在后台线程上重新读取这些行，再回到 UI 线程原地替换；
+ * 其余情况（插入、删除、排序列变化）才重新加载。行的读取按通知的顺序串行执行，
+ * 较早的读取结果不会覆盖较新的结果。
+ */
+class PagedNotesLoader extends CursorLoader {
+
+    // 接收提供者的变更通知，决定原地刷新还是重新加载
+    private final ContentObserver mObserver = new ChangeObserver();
+    private boolean mObserverRegistered;
+
+    // 上一次交付的光标，用于原地刷新变化的行，以及决定重新加载时要读取的行数
+    private volatile PagedNotesCursor mLastCursor;
+
+    private CancellationSignal mCancellationSignal;
+
+    // 在 UI 线程上应用后台读取的行
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    PagedNotesLoader(Context context, Uri uri, String[] projection, String sortOrder) {
+        super(context, uri, projection, null, null, sortOrder);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            PagedNotesCursor last = mLastCursor;
+            int rows = last != null ? last.getCount() : 0;
+
+            PagedNotesCursor cursor = new PagedNotesCursor(getContext().getContentResolver(),
+                    getUri(), getProjection(), getSortOrder());
+            try {
+                do {
+                    Cursor page = cursor.queryPage(cursor.nextPageAnchor(), mCancellationSignal);
+                    if (!cursor.appendPage(page)) {
+                        break;
+                    }
+                } while (cursor.getCount() < rows && cursor.hasMorePages());
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+            return cursor;
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (cursor instanceof PagedNotesCursor && !isReset()) {
+            mLastCursor = (PagedNotesCursor) cursor;
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(getUri(), true, mObserver);
+            mObserverRegistered = true;
+        }
+        super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mLastCursor = null;
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+    }
+
+    /**
+     * 尝试只刷新通知中列出的行。需要重新读取的行在后台读取，读取失败或有笔记已不存在时再重新加载。
+     *
+     * @return 如果变化已经处理完毕（或正在后台处理）则返回 true；返回 false 时需要重新加载。
+     */
+    private boolean refreshChangedRows(Uri uri) {
+        PagedNotesCursor cursor = mLastCursor;
+        if (uri == null || cursor == null || cursor.isClosed()) {
+            return false;
+        }
+
+        String ids = uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_IDS);
+        String columns = uri.getQueryParameter(NotePad.Notes.CHANGE_PARAMETER_COLUMNS);
+        if (ids == null || columns == null) {
+            // 有笔记被插入或删除，或者无法确定变化的行
+            return false;
+        }
+
+        HashSet<String> changed = new HashSet<String>(Arrays.asList(TextUtils.split(columns, ",")));
+        NotePadProvider.PageOrder order = NotePadProvider.pageOrder(getSortOrder());
+        if (changed.contains(order.keyColumn)) {
+            // 行的位置可能改变
+            return false;
+        }
+
+        boolean shown = false;
+        for (String column : getProjection()) {
+            shown |= changed.contains(column);
+        }
+        if (!shown) {
+            return true;
+        }
+
+        ArrayList<Long> rows = new ArrayList<Long>();
+        try {
+            for (String id : TextUtils.split(ids, ",")) {
+                rows.add(Long.valueOf(id));
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        final ArrayList<Long> resident = cursor.residentIds(rows);
+        if (!resident.isEmpty()) {
+            refreshInBackground(cursor, resident);
+        }
+        return true;
+    }
+
+    private void refreshInBackground(final PagedNotesCursor cursor, final ArrayList<Long> ids) {
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                HashMap<Long, Object[]> rows = null;
+                try {
+                    rows = cursor.queryRows(ids);
+                } catch (RuntimeException e) {
+                    // 按重新加载处理
+                }
+
+                final HashMap<Long, Object[]> result = rows;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // 读取期间光标可能已被新的加载结果替换
+                        if (cursor != mLastCursor || cursor.isClosed()) {
+                            return;
+                        }
+                        if (result == null || !cursor.applyRows(ids, result)) {
+                            onContentChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private final class ChangeObserver extends ContentObserver {
+        ChangeObserver() {
+            // 在 UI 线程上处理，与光标的其他操作在同一线程
+            super(new Handler(Looper.getMainLooper()));
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (!refreshChangedRows(uri)) {
+                onContentChanged();
+            }
+        }
+    }
+}
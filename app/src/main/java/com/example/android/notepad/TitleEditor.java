@@ -148,11 +148,10 @@ public class TitleEditor extends Activity {
              * 但在实际应用中应该使用
              * android.content.AsyncQueryHandler 或 android.os.AsyncTask。
              */
-            getContentResolver().update(
+            NoteEditor.saveNote(
+                    getContentResolver(),
                     mUri,    // 要更新的笔记的 URI。
-                    values,  // 包含要更新的列和相应值的值映射。
-                    null,    // 不使用选择条件，因此不需要 "where" 列。
-                    null     // 不使用 "where" 列，因此不需要 "where" 值。
+                    values   // 包含要更新的列和相应值的值映射。
             );
 
         }